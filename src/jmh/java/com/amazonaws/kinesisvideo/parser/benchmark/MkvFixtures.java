@@ -0,0 +1,218 @@
+package com.amazonaws.kinesisvideo.parser.benchmark;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import com.amazonaws.kinesisvideo.parser.utilities.EncodedFrame;
+import com.amazonaws.kinesisvideo.parser.utilities.H264FrameEncoder;
+
+/**
+ * Builds synthetic Kinesis Video style MKV streams in memory: segments of unknown size, each with a track of H.264
+ * frames encoded by {@link H264FrameEncoder}, clusters starting with a key frame and fragment tags around every
+ * cluster, like GetMedia returns them.
+ */
+final class MkvFixtures {
+    private static final int EBML = 0x1A45DFA3;
+    private static final int EBML_VERSION = 0x4286;
+    private static final int DOC_TYPE = 0x4282;
+    private static final int SEGMENT = 0x18538067;
+    private static final int INFO = 0x1549A966;
+    private static final int TIMECODE_SCALE = 0x2AD7B1;
+    private static final int MUXING_APP = 0x4D80;
+    private static final int TRACKS = 0x1654AE6B;
+    private static final int TRACK_ENTRY = 0xAE;
+    private static final int TRACK_NUMBER = 0xD7;
+    private static final int TRACK_UID = 0x73C5;
+    private static final int CODEC_ID = 0x86;
+    private static final int CODEC_PRIVATE = 0x63A2;
+    private static final int VIDEO = 0xE0;
+    private static final int PIXEL_WIDTH = 0xB0;
+    private static final int PIXEL_HEIGHT = 0xBA;
+    private static final int TAGS = 0x1254C367;
+    private static final int TAG = 0x7373;
+    private static final int SIMPLE_TAG = 0x67C8;
+    private static final int TAG_NAME = 0x45A3;
+    private static final int TAG_STRING = 0x4487;
+    private static final int CLUSTER = 0x1F43B675;
+    private static final int TIMECODE = 0xE7;
+    private static final int SIMPLE_BLOCK = 0xA3;
+
+    private static final long FIRST_FRAGMENT_NUMBER = 91343852333181432L;
+    private static final long FIRST_TIMESTAMP_MILLIS = 1_700_000_000_000L;
+    private static final int FRAME_DURATION_MILLIS = 33;
+    private static final int BIT_RATE = 1_000_000;
+
+    private MkvFixtures() {
+    }
+
+    static byte[] generate(int segments, int clustersPerSegment, int framesPerCluster, int width, int height) {
+        H264FrameEncoder encoder = new H264FrameEncoder(width, height, BIT_RATE);
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int frameNumber = 0;
+        for (int s = 0; s < segments; s++) {
+            out.writeBytes(element(EBML, concat(uint(EBML_VERSION, 1), string(DOC_TYPE, "matroska"))));
+            ByteArrayOutputStream segment = new ByteArrayOutputStream();
+            segment.writeBytes(element(INFO, concat(uint(TIMECODE_SCALE, 1_000_000), string(MUXING_APP, "fixtures"))));
+            segment.writeBytes(element(TRACKS, element(TRACK_ENTRY, concat(
+                    uint(TRACK_NUMBER, 1),
+                    uint(TRACK_UID, 1),
+                    string(CODEC_ID, "V_MPEG4/ISO/AVC"),
+                    element(CODEC_PRIVATE, encoder.getCodecPrivateData()),
+                    element(VIDEO, concat(uint(PIXEL_WIDTH, width), uint(PIXEL_HEIGHT, height)))))));
+            for (int c = 0; c < clustersPerSegment; c++) {
+                encoder.setFrameNumber(0);
+                long timestampMillis = FIRST_TIMESTAMP_MILLIS + (long) frameNumber * FRAME_DURATION_MILLIS;
+                String timestamp = "%d.%03d".formatted(timestampMillis / 1000, timestampMillis % 1000);
+                segment.writeBytes(tags(
+                        "AWS_KINESISVIDEO_FRAGMENT_NUMBER", Long.toString(FIRST_FRAGMENT_NUMBER + frameNumber),
+                        "AWS_KINESISVIDEO_SERVER_TIMESTAMP", timestamp,
+                        "AWS_KINESISVIDEO_PRODUCER_TIMESTAMP", timestamp));
+                ByteArrayOutputStream cluster = new ByteArrayOutputStream();
+                cluster.writeBytes(uint(TIMECODE, timestampMillis));
+                for (int f = 0; f < framesPerCluster; f++) {
+                    // Change a few pixels so that every frame has something to encode.
+                    image.getRaster().setSample(frameNumber % width, f % height, 0, 255);
+                    EncodedFrame encodedFrame = encoder.encodeFrame(image);
+                    cluster.writeBytes(element(SIMPLE_BLOCK,
+                            simpleBlock(f * FRAME_DURATION_MILLIS, encodedFrame.isKeyFrame(), encodedFrame.getByteBuffer())));
+                    frameNumber++;
+                }
+                segment.writeBytes(element(CLUSTER, cluster.toByteArray()));
+                segment.writeBytes(tags("AWS_KINESISVIDEO_MILLIS_BEHIND_NOW", "1000"));
+            }
+            out.writeBytes(unknownSizeHeader(SEGMENT));
+            out.writeBytes(segment.toByteArray());
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] simpleBlock(int timecode, boolean keyFrame, ByteBuffer annexB) {
+        ByteArrayOutputStream block = new ByteArrayOutputStream();
+        // Track number 1 as a one byte vint, a 16 bit relative timecode and the flags.
+        block.write(0x81);
+        block.write(timecode >> 8);
+        block.write(timecode);
+        block.write(keyFrame ? 0x80 : 0x00);
+        writeLengthPrefixedNals(block, annexB);
+        return block.toByteArray();
+    }
+
+    /**
+     * The encoder produces Annex B start codes while MKV carries NAL units with a 4 byte length prefix.
+     */
+    private static void writeLengthPrefixedNals(ByteArrayOutputStream out, ByteBuffer annexB) {
+        byte[] data = new byte[annexB.remaining()];
+        annexB.duplicate().get(data);
+        int nalStart = -1;
+        int i = 0;
+        while (i + 3 <= data.length) {
+            int startCodeLength = startCodeLength(data, i);
+            if (startCodeLength > 0) {
+                if (nalStart >= 0) {
+                    writeNal(out, data, nalStart, i);
+                }
+                i += startCodeLength;
+                nalStart = i;
+            } else {
+                i++;
+            }
+        }
+        if (nalStart >= 0) {
+            writeNal(out, data, nalStart, data.length);
+        }
+    }
+
+    private static int startCodeLength(byte[] data, int i) {
+        if (data[i] != 0 || data[i + 1] != 0) {
+            return 0;
+        }
+        if (data[i + 2] == 1) {
+            return 3;
+        }
+        return i + 3 < data.length && data[i + 2] == 0 && data[i + 3] == 1 ? 4 : 0;
+    }
+
+    private static void writeNal(ByteArrayOutputStream out, byte[] data, int from, int to) {
+        int length = to - from;
+        out.write(length >>> 24);
+        out.write(length >>> 16);
+        out.write(length >>> 8);
+        out.write(length);
+        out.write(data, from, length);
+    }
+
+    private static byte[] tags(String... namesAndValues) {
+        ByteArrayOutputStream simpleTags = new ByteArrayOutputStream();
+        for (int i = 0; i < namesAndValues.length; i += 2) {
+            simpleTags.writeBytes(element(SIMPLE_TAG,
+                    concat(string(TAG_NAME, namesAndValues[i]), string(TAG_STRING, namesAndValues[i + 1]))));
+        }
+        return element(TAGS, element(TAG, simpleTags.toByteArray()));
+    }
+
+    private static byte[] unknownSizeHeader(int id) {
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        writeId(header, id);
+        header.writeBytes(new byte[] {0x01, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF,
+                (byte) 0xFF, (byte) 0xFF});
+        return header.toByteArray();
+    }
+
+    private static byte[] element(int id, byte[] data) {
+        ByteArrayOutputStream element = new ByteArrayOutputStream();
+        writeId(element, id);
+        writeSize(element, data.length);
+        element.writeBytes(data);
+        return element.toByteArray();
+    }
+
+    private static byte[] uint(int id, long value) {
+        int length = 1;
+        while (length < Long.BYTES && (value >>> (8 * length)) != 0) {
+            length++;
+        }
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[length - 1 - i] = (byte) (value >>> (8 * i));
+        }
+        return element(id, data);
+    }
+
+    private static byte[] string(int id, String value) {
+        return element(id, value.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.writeBytes(part);
+        }
+        return out.toByteArray();
+    }
+
+    private static void writeId(ByteArrayOutputStream out, int id) {
+        for (int shift = 24; shift > 0; shift -= 8) {
+            if ((id >>> shift) != 0) {
+                out.write(id >>> shift);
+            }
+        }
+        out.write(id);
+    }
+
+    /**
+     * Sizes are written as 4 byte vints unless they fit in one byte, which covers every element of the fixtures.
+     */
+    private static void writeSize(ByteArrayOutputStream out, int size) {
+        if (size < 0x7F) {
+            out.write(0x80 | size);
+        } else {
+            out.write(0x10 | (size >>> 24));
+            out.write(size >>> 16);
+            out.write(size >>> 8);
+            out.write(size);
+        }
+    }
+}
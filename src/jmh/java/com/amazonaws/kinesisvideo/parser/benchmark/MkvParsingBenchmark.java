@@ -0,0 +1,205 @@
+package com.amazonaws.kinesisvideo.parser.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.Optional;
+import java.util.OptionalInt;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.amazonaws.kinesisvideo.parser.ebml.EBMLElementMetaData;
+import com.amazonaws.kinesisvideo.parser.ebml.EBMLParser;
+import com.amazonaws.kinesisvideo.parser.ebml.EBMLParserCallbacks;
+import com.amazonaws.kinesisvideo.parser.ebml.InputStreamParserByteSource;
+import com.amazonaws.kinesisvideo.parser.ebml.ParserBulkByteSource;
+import com.amazonaws.kinesisvideo.parser.mkv.Frame;
+import com.amazonaws.kinesisvideo.parser.mkv.MkvDataElement;
+import com.amazonaws.kinesisvideo.parser.mkv.MkvElement;
+import com.amazonaws.kinesisvideo.parser.mkv.MkvElementVisitException;
+import com.amazonaws.kinesisvideo.parser.mkv.MkvTypeInfoProvider;
+import com.amazonaws.kinesisvideo.parser.mkv.StreamingMkvReader;
+import com.amazonaws.kinesisvideo.parser.utilities.FragmentMetadata;
+import com.amazonaws.kinesisvideo.parser.utilities.FragmentMetadataVisitor;
+import com.amazonaws.kinesisvideo.parser.utilities.FrameVisitor;
+import com.amazonaws.kinesisvideo.parser.utilities.MkvTrackMetadata;
+import com.amazonaws.kinesisvideo.parser.utilities.OutputSegmentMerger;
+
+/**
+ * Throughput of the MKV parsing hot path over an in-memory stream built by {@link MkvFixtures}.
+ *
+ * Besides operations per second, every benchmark reports the stream bytes it went through as "bytes" (divide by 10^6
+ * for MB/s) and the elements or frames it handled as "elements", both per second. Run with -prof gc for the
+ * allocation rate.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MkvParsingBenchmark {
+    @Param({"1024", "8192", "65536"})
+    int maxContentBytesInOnePass;
+
+    @Param({"320x240", "1280x720"})
+    String resolution;
+
+    @Param({"false", "true"})
+    boolean readAheadWindow;
+
+    private byte[] mkv;
+    private MkvTypeInfoProvider typeInfoProvider;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Counters {
+        public long bytes;
+        public long elements;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            bytes = 0;
+            elements = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IllegalAccessException {
+        String[] dimensions = resolution.split("x");
+        mkv = MkvFixtures.generate(2, 5, 30, Integer.parseInt(dimensions[0]), Integer.parseInt(dimensions[1]));
+        typeInfoProvider = new MkvTypeInfoProvider();
+        typeInfoProvider.load();
+    }
+
+    @Benchmark
+    public void ebmlParserParse(Counters counters, Blackhole blackhole) {
+        var byteSource = new InputStreamParserByteSource(new ByteArrayInputStream(mkv));
+        var callbacks = new CountingCallbacks(maxContentBytesInOnePass, blackhole);
+        var parser = new EBMLParser(typeInfoProvider, callbacks, maxContentBytesInOnePass, readAheadWindow);
+        while (!byteSource.eof()) {
+            parser.parse(byteSource);
+        }
+        parser.closeParser();
+        counters.bytes += mkv.length;
+        counters.elements += callbacks.elements;
+    }
+
+    @Benchmark
+    public void streamingMkvReaderNextIfAvailable(Counters counters, Blackhole blackhole) {
+        var reader = createReader();
+        while (reader.mightHaveNext()) {
+            Optional<MkvElement> element = reader.nextIfAvailable();
+            if (element.isPresent()) {
+                blackhole.consume(element.get());
+                counters.elements++;
+            }
+        }
+        counters.bytes += mkv.length;
+    }
+
+    @Benchmark
+    public void mkvDataElementGetValueCopy(Counters counters, Blackhole blackhole) {
+        var reader = createReader();
+        while (reader.mightHaveNext()) {
+            Optional<MkvElement> element = reader.nextIfAvailable();
+            if (element.isPresent() && element.get() instanceof MkvDataElement dataElement) {
+                blackhole.consume(dataElement.getValueCopy());
+                counters.elements++;
+            }
+        }
+        counters.bytes += mkv.length;
+    }
+
+    @Benchmark
+    public void frameVisitorDispatch(Counters counters, Blackhole blackhole) throws MkvElementVisitException {
+        var frameProcessor = new CountingFrameProcessor(blackhole);
+        createReader().apply(FrameVisitor.createWithoutCopy(frameProcessor,
+                Optional.of(new FragmentMetadataVisitor.BasicMkvTagProcessor())));
+        counters.bytes += mkv.length;
+        counters.elements += frameProcessor.frames;
+    }
+
+    @Benchmark
+    public void outputSegmentMerger(Counters counters) throws MkvElementVisitException {
+        var merger = OutputSegmentMerger.createDefault(OutputStream.nullOutputStream());
+        createReader().apply(merger);
+        counters.bytes += mkv.length;
+        counters.elements += merger.getSimpleBlocksCount();
+    }
+
+    private StreamingMkvReader createReader() {
+        return StreamingMkvReader.create(new InputStreamParserByteSource(new ByteArrayInputStream(mkv)),
+                StreamingMkvReader.Configuration.builder()
+                        .maxContentBytesAtOnce(OptionalInt.of(maxContentBytesInOnePass))
+                        .useReadAheadWindow(readAheadWindow)
+                        .build());
+    }
+
+    /**
+     * Reads element contents into a scratch buffer, which is the least any consumer of the parser does.
+     */
+    private static class CountingCallbacks implements EBMLParserCallbacks {
+        private final ByteBuffer scratch;
+        private final Blackhole blackhole;
+        private long elements;
+
+        CountingCallbacks(int maxContentBytesInOnePass, Blackhole blackhole) {
+            this.scratch = ByteBuffer.allocate(maxContentBytesInOnePass);
+            this.blackhole = blackhole;
+        }
+
+        @Override
+        public void onStartElement(EBMLElementMetaData elementMetaData, long elementDataSize,
+                                   ByteBuffer idAndSizeRawBytes, ElementPathSupplier pathSupplier) {
+            elements++;
+            blackhole.consume(elementMetaData);
+        }
+
+        @Override
+        public void onPartialContent(EBMLElementMetaData elementMetaData, ParserBulkByteSource bulkByteSource,
+                                     int bytesToRead) {
+            scratch.clear();
+            bulkByteSource.readBytes(scratch, bytesToRead);
+            blackhole.consume(scratch);
+        }
+
+        @Override
+        public void onEndElement(EBMLElementMetaData elementMetaData, ElementPathSupplier pathSupplier) {
+            blackhole.consume(elementMetaData);
+        }
+    }
+
+    private static class CountingFrameProcessor implements FrameVisitor.FrameProcessor {
+        private final Blackhole blackhole;
+        private long frames;
+
+        CountingFrameProcessor(Blackhole blackhole) {
+            this.blackhole = blackhole;
+        }
+
+        @Override
+        public void process(Frame frame, MkvTrackMetadata trackMetadata, Optional<FragmentMetadata> fragmentMetadata,
+                            Optional<FragmentMetadataVisitor.MkvTagProcessor> tagProcessor,
+                            Optional<BigInteger> timescale, Optional<BigInteger> fragmentTimecode) {
+            frames++;
+            blackhole.consume(frame);
+            blackhole.consume(fragmentMetadata);
+        }
+    }
+}
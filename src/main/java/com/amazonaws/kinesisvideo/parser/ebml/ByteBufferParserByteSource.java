@@ -0,0 +1,111 @@
+/*
+Copyright 2017-2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License").
+You may not use this file except in compliance with the License.
+A copy of the License is located at
+
+   http://aws.amazon.com/apache2.0/
+
+or in the "license" file accompanying this file.
+This file is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and limitations under the License.
+*/
+package com.amazonaws.kinesisvideo.parser.ebml;
+
+import org.apache.commons.lang3.Validate;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * An implementation of ParserByteSource that serves the remaining bytes of a sequence of buffers one after the other,
+ * such as views handed out by {@link MappedFileParserByteSource#readView(int)}, without copying them first.
+ *
+ * The buffers are duplicated, so their positions are left alone. Only one thread may read from this byte source.
+ */
+public class ByteBufferParserByteSource implements ParserByteSource {
+    private static final int BYTE_MASK = 0xFF;
+
+    private final Deque<ByteBuffer> buffers = new ArrayDeque<>();
+    private long remaining;
+
+    private ByteBufferParserByteSource(final List<ByteBuffer> buffers) {
+        for (final ByteBuffer buffer : buffers) {
+            if (buffer.hasRemaining()) {
+                this.buffers.add(buffer.duplicate());
+                remaining += buffer.remaining();
+            }
+        }
+    }
+
+    public static ByteBufferParserByteSource create(final List<ByteBuffer> buffers) {
+        Validate.notNull(buffers);
+        return new ByteBufferParserByteSource(buffers);
+    }
+
+    @Override
+    public int readByte() {
+        if (eof()) {
+            return -1;
+        }
+        final ByteBuffer current = buffers.peekFirst();
+        final int result = current.get() & BYTE_MASK;
+        consumed(current, 1);
+        return result;
+    }
+
+    @Override
+    public int available() {
+        return (int) Math.min(remaining, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int readBytes(final ByteBuffer dest, final int numBytes) {
+        Validate.isTrue(dest.remaining() >= numBytes);
+        if (numBytes == 0) {
+            return 0;
+        }
+        if (eof()) {
+            return -1;
+        }
+        int numBytesRead = 0;
+        while (numBytesRead < numBytes && !buffers.isEmpty()) {
+            final ByteBuffer current = buffers.peekFirst();
+            final int fromBuffer = Math.min(numBytes - numBytesRead, current.remaining());
+            dest.put(dest.position(), current, current.position(), fromBuffer);
+            dest.position(dest.position() + fromBuffer);
+            current.position(current.position() + fromBuffer);
+            consumed(current, fromBuffer);
+            numBytesRead += fromBuffer;
+        }
+        return numBytesRead;
+    }
+
+    @Override
+    public long skip(final long numBytes) {
+        long numBytesSkipped = 0;
+        while (numBytesSkipped < numBytes && !buffers.isEmpty()) {
+            final ByteBuffer current = buffers.peekFirst();
+            final int fromBuffer = (int) Math.min(numBytes - numBytesSkipped, current.remaining());
+            current.position(current.position() + fromBuffer);
+            consumed(current, fromBuffer);
+            numBytesSkipped += fromBuffer;
+        }
+        return numBytesSkipped;
+    }
+
+    @Override
+    public boolean eof() {
+        return remaining == 0;
+    }
+
+    private void consumed(final ByteBuffer current, final int numBytes) {
+        remaining -= numBytes;
+        if (!current.hasRemaining()) {
+            buffers.removeFirst();
+        }
+    }
+}
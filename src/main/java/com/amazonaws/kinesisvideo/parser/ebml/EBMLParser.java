@@ -24,6 +24,7 @@ import java.io.Closeable;
 import java.nio.ByteBuffer;
 import java.util.List;
 import java.util.Stack;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
 /**
@@ -41,6 +42,16 @@ import java.util.stream.Collectors;
  * Once all the data in an EBML stream has being sent to the parser, the method closeParser is called to shutdown
  * the parser.
  *
+ * The parser can optionally be created with a read-ahead window. In that mode, the parser pulls whatever is
+ * available from the {@link ParserByteSource} in bulk into its own {@link ByteBuffer} and decodes the ids and sizes
+ * of elements straight from that window, instead of reading the element headers one byte at a time from the byte
+ * source. Element headers that straddle the end of the available data fall back to the byte at a time path.
+ *
+ * The parser can also be given a content filter on the types of non-master elements. Elements that do not pass it
+ * are skipped without any callback, using {@link ParserByteSource#skip(long)} where the byte source supports it,
+ * so their content is never copied out of the byte source. Callbacks can also have the rest of an element skipped
+ * the same way once they have seen the start of its content, see {@link EBMLParserCallbacks#skipRemainingContent()}.
+ *
  * TODO: add implementation details.
  *
  */
@@ -50,13 +61,19 @@ public class EBMLParser {
 
     private static final int BYTE_MASK = 0xFF;
     //TODO: have it be an argument, either constructor or method
-    private static final int DEFAULT_MAX_CONTENT_BYTES_IN_ONE_PASS = 8192;
+    public static final int DEFAULT_MAX_CONTENT_BYTES_IN_ONE_PASS = 8192;
+    private static final int DEFAULT_READ_AHEAD_WINDOW_SIZE = 8192;
+    private static final int MAX_ID_AND_SIZE_BYTES = EBMLUtils.EBML_ID_MAX_BYTES + EBMLUtils.EBML_SIZE_MAX_BYTES;
 
     private final EBMLTypeInfoProvider typeInfoProvider;
     private final Stack<EBMLParserInternalElement> masterElements;
     private final EBMLParserCallbacks callbacks;
     private final int maxContentBytesInOnePass;
     private final ByteBuffer skipBuffer;
+    private final Predicate<EBMLTypeInfo> contentFilter;
+    //Holds bytes pulled from the byte source that have not been consumed by the parser yet, in read mode.
+    //Null if the parser reads the element headers directly from the byte source.
+    private final ByteBuffer readAheadWindow;
 
     private long elementCount = 0;
     private long totalBytesRead = 0;
@@ -77,6 +94,25 @@ public class EBMLParser {
     public EBMLParser(EBMLTypeInfoProvider typeInfoProvider,
             EBMLParserCallbacks callbacks,
             int maxContentBytesInOnePass) {
+        this(typeInfoProvider, callbacks, maxContentBytesInOnePass, false);
+    }
+
+    public EBMLParser(EBMLTypeInfoProvider typeInfoProvider,
+            EBMLParserCallbacks callbacks,
+            int maxContentBytesInOnePass,
+            boolean useReadAheadWindow) {
+        this(typeInfoProvider, callbacks, maxContentBytesInOnePass, useReadAheadWindow, t -> true);
+    }
+
+    /**
+     * @param contentFilter The non-master element types whose start, content and end are passed to the callbacks.
+     *                      Other non-master elements are skipped.
+     */
+    public EBMLParser(EBMLTypeInfoProvider typeInfoProvider,
+            EBMLParserCallbacks callbacks,
+            int maxContentBytesInOnePass,
+            boolean useReadAheadWindow,
+            Predicate<EBMLTypeInfo> contentFilter) {
         this.typeInfoProvider = typeInfoProvider;
         this.callbacks = callbacks;
         this.replayIdAndSizeBuffer =
@@ -85,11 +121,20 @@ public class EBMLParser {
         this.masterElements = new Stack<>();
         this.maxContentBytesInOnePass = maxContentBytesInOnePass;
         this.skipBuffer = ByteBuffer.allocate(maxContentBytesInOnePass);
-        log.debug("Creating EBMLParser with maxContentBytesInOnePass {}", this.maxContentBytesInOnePass);
+        this.contentFilter = contentFilter;
+        if (useReadAheadWindow) {
+            this.readAheadWindow = ByteBuffer.allocate(DEFAULT_READ_AHEAD_WINDOW_SIZE);
+            this.readAheadWindow.flip();
+        } else {
+            this.readAheadWindow = null;
+        }
+        log.debug("Creating EBMLParser with maxContentBytesInOnePass {} useReadAheadWindow {}",
+                this.maxContentBytesInOnePass,
+                useReadAheadWindow);
     }
 
     public void parse(ParserByteSource byteSource) {
-        try (CallState callState = new CallState(byteSource)) {
+        try (CallState callState = createCallState(byteSource)) {
             while (callState.shouldContinueParsing()) {
                 if (log.isDebugEnabled()) {
                     log.debug("Current element read state {}", currentElement.currentElementReadState);
@@ -99,7 +144,9 @@ public class EBMLParser {
                         //check if any master elements are done because their end offset has been reached.
                         removeMasterElementsBasedOnSizeEnd();
 
-                        currentElement.readId(callState);
+                        if (!callState.readIdAndSizeFromWindow()) {
+                            currentElement.readId(callState);
+                        }
                         break;
                     case ID_DONE:
                         currentElement.readSize(callState);
@@ -110,6 +157,10 @@ public class EBMLParser {
                         //element is reached.
                         removeMasterElementsBasedOnLevel();
 
+                        if (isFilteredOut(currentElement)) {
+                            currentElement.startFilteringOutContent();
+                            break;
+                        }
 
                         //Call onstartForElement();
                         if (currentElement.isKnownType()) {
@@ -128,9 +179,11 @@ public class EBMLParser {
                         currentElement.readContent(callState, callState, callbacks, maxContentBytesInOnePass);
                         break;
                     case CONTENT_SKIPPING:
-                        Validate.isTrue(!currentElement.isKnownType(), "We should skip data for unknown elements only");
+                        Validate.isTrue(!currentElement.isKnownType() || currentElement.isFilteredOut()
+                                        || currentElement.isSkippingRemainingContent(),
+                                "We should skip data for unknown, filtered out or partially read elements only");
                         skipBuffer.rewind();
-                        currentElement.skipContent(callState, callState, skipBuffer);
+                        currentElement.skipContent(callState, callState::skipBytes, skipBuffer);
                         break;
                     case FINISHED:
                         invokeOnEndElementCallback(currentElement);
@@ -153,6 +206,16 @@ public class EBMLParser {
     }
 
 
+    /**
+     * Check if the parser holds bytes in its read-ahead window that it has not parsed yet.
+     * These bytes have already been taken out of the byte source, so the byte source can report eof while
+     * the parser still has elements to produce.
+     * @return True if there are read-ahead bytes left to parse.
+     */
+    public boolean hasBufferedBytes() {
+        return readAheadWindow != null && readAheadWindow.hasRemaining();
+    }
+
     public void closeParser() {
         if (!closed) {
             log.debug("Closing EBMLParser");
@@ -175,6 +238,13 @@ public class EBMLParser {
         closed = true;
     }
 
+    private boolean isFilteredOut(EBMLParserInternalElement element) {
+        return element.isKnownType()
+                && element.getTypeInfo().getType() != EBMLTypeInfo.TYPE.MASTER
+                && !element.isUnknownLength()
+                && !contentFilter.test(element.getTypeInfo());
+    }
+
     private void startReadingContentBasedOnType() {
         if (!currentElement.isKnownType()) {
             Validate.isTrue(!currentElement.isUnknownLength(), "Cannot skip element of unknown length");
@@ -252,7 +322,7 @@ public class EBMLParser {
     }
 
     private void invokeOnEndElementCallback(EBMLParserInternalElement finishedElement) {
-        if (finishedElement.isKnownType()) {
+        if (finishedElement.isKnownType() && !finishedElement.isFilteredOut()) {
             log.debug("Invoking onStartElement for current element {}", finishedElement);
             callbacks.onEndElement(finishedElement.getMetadata(), this::currentElementPath);
         }
@@ -265,13 +335,20 @@ public class EBMLParser {
         replayIdAndSizeBuffer.init(totalBytesRead);
     }
 
+    private CallState createCallState(ParserByteSource byteSource) {
+        if (readAheadWindow != null) {
+            return new ReadAheadCallState(byteSource);
+        }
+        return new CallState(byteSource);
+    }
+
     /**
      * This internal class maintains state for each parse call.
      */
     @RequiredArgsConstructor
     private class CallState implements Closeable, TrackingReplayableIdAndSizeByteSource, ParserBulkByteSource {
         private boolean parseMore = true;
-        private final ParserByteSource byteSource;
+        final ParserByteSource byteSource;
         @Setter
         private long readOffsetForReplayBuffer;
 
@@ -297,8 +374,9 @@ public class EBMLParser {
                     return true;
                 } else {
                     int numBytesToRead = len - availableInReplayBuffer;
-                    parseMore = byteSource.available() >= numBytesToRead;
-                    numBytesToRead = Math.min(numBytesToRead, byteSource.available());
+                    int availableBytes = availableFromSource();
+                    parseMore = availableBytes >= numBytesToRead;
+                    numBytesToRead = Math.min(numBytesToRead, availableBytes);
                     for (int i = 0; i < numBytesToRead; i++) {
                         readFromByteSourceIntoReplayBuffer();
                     }
@@ -321,8 +399,28 @@ public class EBMLParser {
             }
         }
 
+        /**
+         * Try to decode the id and size of the current element in one step without replaying.
+         * @return True if the id and size were read, false if they need to be read using the replay buffer.
+         */
+        boolean readIdAndSizeFromWindow() {
+            return false;
+        }
+
+        int availableFromSource() {
+            return byteSource.available();
+        }
+
+        int readByteFromSource() {
+            return byteSource.readByte();
+        }
+
+        int readBytesFromSource(ByteBuffer dest, int numBytes) {
+            return byteSource.readBytes(dest, numBytes);
+        }
+
         private int readFromByteSourceIntoReplayBuffer() {
-            int result = byteSource.readByte();
+            int result = readByteFromSource();
             if (result == -1) {
                 markAsEndofStream();
                 return -1;
@@ -336,7 +434,7 @@ public class EBMLParser {
         @Override
         public int availableForContent() {
             if (parseMore) {
-                int availableBytes = byteSource.available();
+                int availableBytes = availableFromSource();
                 if (availableBytes == 0) {
                     parseMore = false;
                 }
@@ -347,7 +445,7 @@ public class EBMLParser {
 
         @Override
         public int readBytes(ByteBuffer dest, int numBytes) {
-            int readBytes = byteSource.readBytes(dest, numBytes);
+            int readBytes = readBytesFromSource(dest, numBytes);
             if (readBytes == -1) {
                 markAsEndofStream();
                 return readBytes;
@@ -357,10 +455,116 @@ public class EBMLParser {
             return readBytes;
         }
 
-        private void markAsEndofStream() {
+        /**
+         * Skip numBytes of element content, reading them into the scratch buffer if the byte source cannot skip.
+         */
+        int skipBytes(ByteBuffer scratch, int numBytes) {
+            int skippedBytes = skipBytesFromSource(numBytes);
+            if (skippedBytes > 0) {
+                totalBytesRead += skippedBytes;
+                return skippedBytes;
+            }
+            return readBytes(scratch, numBytes);
+        }
+
+        int skipBytesFromSource(int numBytes) {
+            return (int) byteSource.skip(numBytes);
+        }
+
+        void markAsEndofStream() {
             endOfStream = true;
             parseMore = false;
         }
 
     }
+
+    /**
+     * Call state used when the parser has a read-ahead window.
+     * Every read is served from the window first and only goes to the byte source once the window is drained.
+     */
+    private class ReadAheadCallState extends CallState {
+        ReadAheadCallState(ParserByteSource byteSource) {
+            super(byteSource);
+        }
+
+        @Override
+        boolean readIdAndSizeFromWindow() {
+            //Bytes for this element's header may already have been consumed into the replay buffer by an
+            //earlier call that ran out of data. In that case continue on the replay path.
+            if (!replayIdAndSizeBuffer.isEmpty()) {
+                return false;
+            }
+            fillWindow(MAX_ID_AND_SIZE_BYTES);
+            int headerNumBytes = currentElement.readIdAndSize(readAheadWindow);
+            if (headerNumBytes < 0) {
+                return false;
+            }
+            //Keep the raw bytes of the header around since they are vended to the callbacks.
+            replayIdAndSizeBuffer.addBytes(readAheadWindow, headerNumBytes);
+            totalBytesRead += headerNumBytes;
+            return true;
+        }
+
+        @Override
+        int availableFromSource() {
+            return readAheadWindow.remaining() + byteSource.available();
+        }
+
+        @Override
+        int readByteFromSource() {
+            if (readAheadWindow.hasRemaining()) {
+                return readAheadWindow.get() & BYTE_MASK;
+            }
+            return byteSource.readByte();
+        }
+
+        @Override
+        int readBytesFromSource(ByteBuffer dest, int numBytes) {
+            int fromWindow = Math.min(numBytes, readAheadWindow.remaining());
+            if (fromWindow > 0) {
+                int windowLimit = readAheadWindow.limit();
+                readAheadWindow.limit(readAheadWindow.position() + fromWindow);
+                dest.put(readAheadWindow);
+                readAheadWindow.limit(windowLimit);
+            }
+            if (fromWindow == numBytes) {
+                return numBytes;
+            }
+            //Large payloads are read straight into the destination instead of going through the window.
+            int fromSource = byteSource.readBytes(dest, numBytes - fromWindow);
+            if (fromSource == -1) {
+                return fromWindow > 0 ? fromWindow : -1;
+            }
+            return fromWindow + fromSource;
+        }
+
+        @Override
+        int skipBytesFromSource(int numBytes) {
+            int fromWindow = Math.min(numBytes, readAheadWindow.remaining());
+            if (fromWindow > 0) {
+                readAheadWindow.position(readAheadWindow.position() + fromWindow);
+                return fromWindow;
+            }
+            return super.skipBytesFromSource(numBytes);
+        }
+
+        /**
+         * Pull the bytes available in the byte source into the window, if the window holds fewer than minBytes.
+         */
+        private void fillWindow(int minBytes) {
+            if (readAheadWindow.remaining() >= minBytes) {
+                return;
+            }
+            int availableBytes = byteSource.available();
+            if (availableBytes <= 0) {
+                return;
+            }
+            readAheadWindow.compact();
+            int numBytesRead = byteSource.readBytes(readAheadWindow, Math.min(availableBytes, readAheadWindow.remaining()));
+            readAheadWindow.flip();
+            if (numBytesRead == -1 && !readAheadWindow.hasRemaining()) {
+                markAsEndofStream();
+            }
+        }
+    }
 }
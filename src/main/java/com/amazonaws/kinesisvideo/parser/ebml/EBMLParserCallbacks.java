@@ -33,6 +33,15 @@ public interface EBMLParserCallbacks {
         return true;
     }
 
+    /**
+     * Asked after onPartialContent while the current element has content left. Returning true skips the rest of its
+     * content, without any more onPartialContent calls, the same way filtered out elements are skipped. The element
+     * still gets its onEndElement call. Elements of unknown length are never skipped.
+     */
+    default boolean skipRemainingContent() {
+        return false;
+    }
+
     @FunctionalInterface
     interface ElementPathSupplier {
         List<EBMLElementMetaData> getAncestors();
@@ -18,7 +18,6 @@ import lombok.ToString;
 import org.apache.commons.lang3.Validate;
 
 import java.nio.ByteBuffer;
-import java.util.Optional;
 
 import static com.amazonaws.kinesisvideo.parser.ebml.EBMLUtils.UNKNOWN_LENGTH_VALUE;
 
@@ -42,7 +41,16 @@ class EBMLParserInternalElement {
     private long dataSize;
     private long dataSizeNumBytes;
 
-    private Optional<EBMLElementMetaData> elementMetaData = Optional.empty();
+    //Null for elements of an unknown type.
+    private EBMLTypeInfo typeInfo;
+    //Created on first use, since the content of most elements is skipped without any callback.
+    private EBMLElementMetaData elementMetaData;
+    //True for elements of a known type whose content is skipped because the callbacks do not want it.
+    @Getter
+    private boolean filteredOut;
+    //True for elements whose callbacks asked to skip the rest of their content after reading part of it.
+    @Getter
+    private boolean skippingRemainingContent;
 
 
     public EBMLParserInternalElement(long startingOffset, long elementCount) {
@@ -62,25 +70,36 @@ class EBMLParserInternalElement {
         EBMLUtils.readSize(idAndSizeByteSource, this::setSize);
     }
 
+    /**
+     * Read both the id and the size of the element from a window that holds its complete header.
+     * @return the number of header bytes that were decoded or -1 if the window does not hold the complete header
+     * in which case the element stays in the NEW state.
+     */
+    public int readIdAndSize(ByteBuffer window) {
+        Validate.isTrue(currentElementReadState == ElementReadState.NEW);
+        return EBMLUtils.readIdAndSize(window, this::setId, this::setSize);
+    }
+
     public void updateTypeInfo(EBMLTypeInfoProvider typeInfoProvider) {
         Validate.isTrue(currentElementReadState == ElementReadState.SIZE_DONE);
-        Optional<EBMLTypeInfo> typeInfo = typeInfoProvider.getType(id);
-        if (typeInfo.isPresent()) {
-            elementMetaData = Optional.of(new EBMLElementMetaData(typeInfo.get(), elementCount));
-        }
+        typeInfo = typeInfoProvider.getTypeOrNull(id);
     }
 
     public boolean isKnownType() {
-        return elementMetaData.isPresent();
+        return typeInfo != null;
     }
 
     public EBMLTypeInfo getTypeInfo() {
-        return elementMetaData.get().getTypeInfo();
+        Validate.isTrue(typeInfo != null, "EBML element type info ");
+        return typeInfo;
     }
 
     public EBMLElementMetaData getMetadata() {
-        Validate.isTrue(elementMetaData.isPresent(), "EBML element metadata ");
-        return elementMetaData.get();
+        Validate.isTrue(typeInfo != null, "EBML element metadata ");
+        if (elementMetaData == null) {
+            elementMetaData = new EBMLElementMetaData(typeInfo, elementCount);
+        }
+        return elementMetaData;
     }
 
     public void startReadingContent() {
@@ -93,6 +112,11 @@ class EBMLParserInternalElement {
         currentElementReadState = ElementReadState.CONTENT_SKIPPING;
     }
 
+    public void startFilteringOutContent() {
+        startSkippingContent();
+        filteredOut = true;
+    }
+
     public void readContent(TrackingReplayableIdAndSizeByteSource idAndSizeByteSource,
             ParserBulkByteSource bulkByteSource,
             EBMLParserCallbacks callbacks,
@@ -102,11 +126,14 @@ class EBMLParserInternalElement {
 
         //Call onPartialContent if bytesToRead > 0.
         if (bytesToRead > 0) {
-            callbacks.onPartialContent(elementMetaData.get(), bulkByteSource, (int) bytesToRead);
+            callbacks.onPartialContent(getMetadata(), bulkByteSource, (int) bytesToRead);
         }
 
         if (!isUnknownLength() && idAndSizeByteSource.getTotalBytesRead() >= getContentStartOffset() + dataSize) {
             currentElementReadState = ElementReadState.FINISHED;
+        } else if (bytesToRead > 0 && !isUnknownLength() && callbacks.skipRemainingContent()) {
+            currentElementReadState = ElementReadState.CONTENT_SKIPPING;
+            skippingRemainingContent = true;
         }
     }
 
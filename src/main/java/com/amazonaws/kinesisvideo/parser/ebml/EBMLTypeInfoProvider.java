@@ -20,4 +20,12 @@ import java.util.Optional;
  */
 public interface EBMLTypeInfoProvider {
     Optional<EBMLTypeInfo> getType(int id);
+
+    /**
+     * Same as getType without the Optional, for the parser to look up every element it reads without allocating.
+     * @return The type information for the id or null if the id is unknown.
+     */
+    default EBMLTypeInfo getTypeOrNull(int id) {
+        return getType(id).orElse(null);
+    }
 }
@@ -126,6 +126,59 @@ public class EBMLUtils {
         // Read the rest of the bytes
         final long rest = readEbmlValueNumber(source, size);
 
+        resultAcceptor.accept(toEbmlSize(firstByte, size, rest), size + 1);
+    }
+
+    /**
+     * Decode the id and size of an element header directly from a buffer, without going through a
+     * {@link TrackingReplayableIdAndSizeByteSource}.
+     * The bytes are read using absolute gets, so the position of the buffer is not changed.
+     * If the buffer does not contain the complete header, nothing is decoded and the acceptors are not invoked.
+     *
+     * @param window buffer whose remaining bytes start with the element header.
+     * @param idAcceptor the callback called when the id of the ebml element is identified.
+     * @param sizeAcceptor the callback called when the size of the ebml element is identified.
+     * @return the number of bytes in the header or -1 if the buffer does not hold the complete header.
+     */
+    static int readIdAndSize(final ByteBuffer window, IdConsumer idAcceptor, SizeConsumer sizeAcceptor) {
+        final int start = window.position();
+        final int remaining = window.remaining();
+        if (remaining < 1) {
+            return -1;
+        }
+        final int firstIdByte = window.get(start) & BYTE_MASK;
+        final int numAdditionalIdBytes = getNumLeadingZeros(firstIdByte);
+        Validate.isTrue(numAdditionalIdBytes <= (EBML_ID_MAX_BYTES - 1),
+                "Trying to decode an EBML ID and it wants " + numAdditionalIdBytes
+                        + " more bytes, but IDs max out at 4 bytes. firstByte was " + firstIdByte);
+        final int idNumBytes = numAdditionalIdBytes + 1;
+        if (remaining < idNumBytes + 1) {
+            return -1;
+        }
+
+        final int firstSizeByte = window.get(start + idNumBytes) & BYTE_MASK;
+        final int numAdditionalSizeBytes = getNumLeadingZeros(firstSizeByte);
+        final int sizeNumBytes = numAdditionalSizeBytes + 1;
+        if (remaining < idNumBytes + sizeNumBytes) {
+            return -1;
+        }
+
+        int id = firstIdByte;
+        for (int i = 1; i < idNumBytes; i++) {
+            id = (id << Byte.SIZE) | (window.get(start + i) & BYTE_MASK);
+        }
+        long rest = 0;
+        for (int i = 1; i < sizeNumBytes; i++) {
+            rest = (rest << Byte.SIZE) | (window.get(start + idNumBytes + i) & BYTE_MASK);
+        }
+
+        idAcceptor.accept(id, idNumBytes);
+        sizeAcceptor.accept(toEbmlSize(firstSizeByte, numAdditionalSizeBytes, rest), sizeNumBytes);
+        return idNumBytes + sizeNumBytes;
+    }
+
+    private static long toEbmlSize(final int firstByte, final int size, final long rest) {
+        // Slap the first byte's value onto the front (with the first one-bit unset)
         long value = (firstByte & ~((byte) BYTE_WITH_FIRST_BIT_SET >> size)) << (size * Byte.SIZE) | rest;
 
         long unknownValue = (0xff >> (size + 1));
@@ -136,9 +189,7 @@ public class EBMLUtils {
         if (value == unknownValue) {
             value = -1;
         }
-
-        // Slap the first byte's value onto the front (with the first one-bit unset)
-        resultAcceptor.accept(value, size + 1);
+        return value;
     }
 
     /**
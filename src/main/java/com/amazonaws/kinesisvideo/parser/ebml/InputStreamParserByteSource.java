@@ -27,6 +27,8 @@ public class InputStreamParserByteSource implements ParserByteSource {
     private static final int BUFFER_SIZE = 8192;
     private static final int MARK_SIZE = 100;
     private final BufferedInputStream bufferedInputStream;
+    //Used to copy bytes into destination buffers that are not backed by an array, such as direct buffers.
+    private byte[] copyBuffer;
 
     public InputStreamParserByteSource(final InputStream inputStream) {
         this(inputStream, BUFFER_SIZE);
@@ -60,7 +62,12 @@ public class InputStreamParserByteSource implements ParserByteSource {
     public int readBytes(final ByteBuffer dest, final int numBytes) {
         try {
             Validate.isTrue(dest.remaining() >= numBytes);
-            final int numBytesRead = bufferedInputStream.read(dest.array(), dest.position(), numBytes);
+            if (!dest.hasArray()) {
+                return readBytesWithCopy(dest, numBytes);
+            }
+            final int numBytesRead = bufferedInputStream.read(dest.array(),
+                    dest.arrayOffset() + dest.position(),
+                    numBytes);
             if (numBytesRead > 0) {
                 dest.position(dest.position() + numBytesRead);
             }
@@ -71,6 +78,26 @@ public class InputStreamParserByteSource implements ParserByteSource {
         }
     }
 
+    private int readBytesWithCopy(final ByteBuffer dest, final int numBytes) throws IOException {
+        if (copyBuffer == null) {
+            copyBuffer = new byte[BUFFER_SIZE];
+        }
+        final int numBytesRead = bufferedInputStream.read(copyBuffer, 0, Math.min(numBytes, copyBuffer.length));
+        if (numBytesRead > 0) {
+            dest.put(copyBuffer, 0, numBytesRead);
+        }
+        return numBytesRead;
+    }
+
+    @Override
+    public long skip(final long numBytes) {
+        try {
+            return bufferedInputStream.skip(numBytes);
+        } catch (final IOException e) {
+            throw new RuntimeException("Exception while skipping bytes from input stream!", e);
+        }
+    }
+
     @Override
     public boolean eof() {
         try {
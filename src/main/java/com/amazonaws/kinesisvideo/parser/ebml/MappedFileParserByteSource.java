@@ -0,0 +1,176 @@
+/*
+Copyright 2017-2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License").
+You may not use this file except in compliance with the License.
+A copy of the License is located at
+
+   http://aws.amazon.com/apache2.0/
+
+or in the "license" file accompanying this file.
+This file is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and limitations under the License.
+*/
+package com.amazonaws.kinesisvideo.parser.ebml;
+
+import org.apache.commons.lang3.Validate;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * An implementation of ParserByteSource that memory maps a recorded file, for reading MKV files from disk.
+ *
+ * The file is mapped one chunk at a time, since a single mapping cannot exceed 2 GiB, and the next chunk is mapped
+ * starting at the read position once a read goes past the current one. Reads are bulk copies out of the mapping, and
+ * readView hands out a view of the mapping without copying at all. There is no buffering in between, so available()
+ * is simply the rest of the file.
+ *
+ * Only one thread may read from this byte source.
+ */
+public class MappedFileParserByteSource implements ParserByteSource, Closeable {
+    public static final int DEFAULT_CHUNK_SIZE = 1 << 30;
+    private static final int BYTE_MASK = 0xFF;
+
+    private final FileChannel channel;
+    private final long size;
+    private final int chunkSize;
+    private MappedByteBuffer chunk;
+    //File position of the first byte of the current chunk.
+    private long chunkStart;
+    private long position;
+
+    private MappedFileParserByteSource(final FileChannel channel, final int chunkSize) throws IOException {
+        Validate.isTrue(chunkSize > 0, "Chunk size should be positive");
+        this.channel = channel;
+        this.size = channel.size();
+        this.chunkSize = chunkSize;
+        map(0);
+    }
+
+    /**
+     * Map the file 1 GiB at a time.
+     */
+    public static MappedFileParserByteSource open(final Path path) throws IOException {
+        return open(path, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * @param chunkSize The most bytes mapped at once.
+     */
+    public static MappedFileParserByteSource open(final Path path, final int chunkSize) throws IOException {
+        final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            return new MappedFileParserByteSource(channel, chunkSize);
+        } catch (final IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public int readByte() {
+        if (eof()) {
+            return -1;
+        }
+        final int result = chunkWith(1).get((int) (position - chunkStart)) & BYTE_MASK;
+        position++;
+        return result;
+    }
+
+    @Override
+    public int available() {
+        return (int) Math.min(size - position, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int readBytes(final ByteBuffer dest, final int numBytes) {
+        Validate.isTrue(dest.remaining() >= numBytes);
+        if (numBytes == 0) {
+            return 0;
+        }
+        if (eof()) {
+            return -1;
+        }
+        final int numBytesRead = (int) Math.min(numBytes, size - position);
+        int copied = 0;
+        while (copied < numBytesRead) {
+            final MappedByteBuffer current = chunkWith(1);
+            final int index = (int) (position - chunkStart);
+            final int fromChunk = Math.min(numBytesRead - copied, current.capacity() - index);
+            dest.put(dest.position(), current, index, fromChunk);
+            dest.position(dest.position() + fromChunk);
+            position += fromChunk;
+            copied += fromChunk;
+        }
+        return numBytesRead;
+    }
+
+    /**
+     * Read the next numBytes bytes as a read-only view of the mapping instead of copying them.
+     * @param numBytes At most the chunk size.
+     * @return A view of up to numBytes bytes, fewer only at the end of the file.
+     */
+    public ByteBuffer readView(final int numBytes) {
+        Validate.isTrue(numBytes >= 0 && numBytes <= chunkSize, "A view cannot be larger than a chunk");
+        final int viewSize = (int) Math.min(numBytes, size - position);
+        final MappedByteBuffer current = chunkWith(viewSize);
+        final ByteBuffer view = current.slice((int) (position - chunkStart), viewSize).asReadOnlyBuffer();
+        position += viewSize;
+        return view;
+    }
+
+    /**
+     * Skipping only moves the read position, the skipped bytes are never touched.
+     */
+    @Override
+    public long skip(final long numBytes) {
+        final long numBytesSkipped = Math.max(0, Math.min(numBytes, size - position));
+        position += numBytesSkipped;
+        return numBytesSkipped;
+    }
+
+    @Override
+    public boolean eof() {
+        return position >= size;
+    }
+
+    /**
+     * @return The number of bytes read or skipped so far.
+     */
+    public long position() {
+        return position;
+    }
+
+    @Override
+    public void close() throws IOException {
+        //The mapping itself is released once it is garbage collected.
+        chunk = null;
+        channel.close();
+    }
+
+    /**
+     * @return The current chunk, remapped to start at the read position if it ends before numBytes more bytes.
+     */
+    private MappedByteBuffer chunkWith(final int numBytes) {
+        if (position < chunkStart || position + numBytes > chunkStart + chunk.capacity()) {
+            try {
+                map(position);
+            } catch (final IOException e) {
+                throw new UncheckedIOException("Exception while mapping file!", e);
+            }
+        }
+        return chunk;
+    }
+
+    private void map(final long start) throws IOException {
+        chunk = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(chunkSize, size - start));
+        chunkStart = start;
+    }
+}
@@ -23,4 +23,13 @@ public interface ParserByteSource extends ParserBulkByteSource {
     int available();
 
     boolean eof();
+
+    /**
+     * Skip up to numBytes bytes without handing them out, for element content nobody wants to read.
+     * @return The number of bytes skipped. Zero if nothing could be skipped, in which case the caller reads the bytes
+     * instead, which also detects the end of the stream.
+     */
+    default long skip(long numBytes) {
+        return 0;
+    }
 }
@@ -0,0 +1,247 @@
+/*
+Copyright 2017-2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License").
+You may not use this file except in compliance with the License.
+A copy of the License is located at
+
+   http://aws.amazon.com/apache2.0/
+
+or in the "license" file accompanying this file.
+This file is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and limitations under the License.
+*/
+package com.amazonaws.kinesisvideo.parser.ebml;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.Validate;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An implementation of ParserByteSource that subscribes to a publisher of byte buffers, such as the response body
+ * publisher of an asynchronous SDK client.
+ *
+ * The publisher pushes chunks on its own threads, usually an event loop, and onNext never blocks: the chunk is queued
+ * as is, without copying it. Demand drives the backpressure. The source requests maxQueuedChunks chunks up front and
+ * one more each time the parser has drained a chunk, so at most maxQueuedChunks chunks are ever queued. The parser
+ * only waits in readByte, eof or a read when no queued chunk has bytes left.
+ *
+ * Only one thread may read from this byte source.
+ */
+@Slf4j
+public class PublisherParserByteSource implements ParserByteSource, Subscriber<ByteBuffer>, Closeable {
+    private static final int DEFAULT_MAX_QUEUED_CHUNKS = 16;
+    private static final int BYTE_MASK = 0xFF;
+
+    private final int maxQueuedChunks;
+    private final Queue<ByteBuffer> chunks = new ConcurrentLinkedQueue<>();
+    //Bytes in the queued chunks, including the remaining bytes of the chunk being read.
+    private final AtomicLong queuedBytes = new AtomicLong();
+    private ByteBuffer currentChunk;
+
+    private volatile Subscription subscription;
+    private volatile boolean complete;
+    private volatile Throwable failure;
+    private volatile boolean closed;
+    private volatile Thread waitingParser;
+    //Only touched by the parser thread.
+    private long waitNanos;
+
+    private PublisherParserByteSource(final int maxQueuedChunks) {
+        Validate.isTrue(maxQueuedChunks > 0, "At least one chunk should be queued");
+        this.maxQueuedChunks = maxQueuedChunks;
+    }
+
+    public static PublisherParserByteSource create() {
+        return new PublisherParserByteSource(DEFAULT_MAX_QUEUED_CHUNKS);
+    }
+
+    public static PublisherParserByteSource create(final int maxQueuedChunks) {
+        return new PublisherParserByteSource(maxQueuedChunks);
+    }
+
+    @Override
+    public void onSubscribe(final Subscription subscription) {
+        if (this.subscription != null || closed) {
+            subscription.cancel();
+            return;
+        }
+        this.subscription = subscription;
+        subscription.request(maxQueuedChunks);
+    }
+
+    @Override
+    public void onNext(final ByteBuffer chunk) {
+        if (!chunk.hasRemaining()) {
+            //Nothing to read from it, ask for the next one right away.
+            requestNextChunk();
+            return;
+        }
+        chunks.add(chunk);
+        queuedBytes.addAndGet(chunk.remaining());
+        wakeUpParser();
+    }
+
+    @Override
+    public void onError(final Throwable throwable) {
+        failure = throwable;
+        complete = true;
+        wakeUpParser();
+    }
+
+    @Override
+    public void onComplete() {
+        complete = true;
+        wakeUpParser();
+    }
+
+    @Override
+    public int readByte() {
+        if (!awaitData()) {
+            return -1;
+        }
+        final int result = currentChunk.get() & BYTE_MASK;
+        consumed(1);
+        return result;
+    }
+
+    @Override
+    public int available() {
+        return (int) Math.min(queuedBytes.get(), Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int readBytes(final ByteBuffer dest, final int numBytes) {
+        Validate.isTrue(dest.remaining() >= numBytes);
+        if (numBytes == 0) {
+            return 0;
+        }
+        if (!awaitData()) {
+            return -1;
+        }
+        int numBytesRead = 0;
+        while (numBytesRead < numBytes && nextChunkWithBytes()) {
+            final int fromChunk = Math.min(numBytes - numBytesRead, currentChunk.remaining());
+            dest.put(dest.position(), currentChunk, currentChunk.position(), fromChunk);
+            dest.position(dest.position() + fromChunk);
+            currentChunk.position(currentChunk.position() + fromChunk);
+            numBytesRead += fromChunk;
+            consumed(fromChunk);
+        }
+        return numBytesRead;
+    }
+
+    @Override
+    public long skip(final long numBytes) {
+        long numBytesSkipped = 0;
+        while (numBytesSkipped < numBytes && nextChunkWithBytes()) {
+            final int fromChunk = (int) Math.min(numBytes - numBytesSkipped, currentChunk.remaining());
+            currentChunk.position(currentChunk.position() + fromChunk);
+            numBytesSkipped += fromChunk;
+            consumed(fromChunk);
+        }
+        return numBytesSkipped;
+    }
+
+    @Override
+    public boolean eof() {
+        return !awaitData();
+    }
+
+    /**
+     * @return The total time the parser has spent waiting for the publisher to push more bytes, that is for the network.
+     * Only to be called from the parser thread.
+     */
+    public long getWaitNanos() {
+        return waitNanos;
+    }
+
+    /**
+     * Cancel the subscription and drop the queued chunks.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        final Subscription currentSubscription = subscription;
+        if (currentSubscription != null) {
+            currentSubscription.cancel();
+        }
+        chunks.clear();
+        currentChunk = null;
+        queuedBytes.set(0);
+    }
+
+    /**
+     * Make the current chunk one with bytes left, requesting a new chunk for every drained one.
+     * @return False if no queued chunk has bytes left.
+     */
+    private boolean nextChunkWithBytes() {
+        while (currentChunk == null || !currentChunk.hasRemaining()) {
+            if (currentChunk != null) {
+                currentChunk = null;
+                requestNextChunk();
+            }
+            currentChunk = chunks.poll();
+            if (currentChunk == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void consumed(final int numBytes) {
+        queuedBytes.addAndGet(-numBytes);
+    }
+
+    private void requestNextChunk() {
+        final Subscription currentSubscription = subscription;
+        if (currentSubscription != null && !closed) {
+            currentSubscription.request(1);
+        }
+    }
+
+    /**
+     * Wait until a queued chunk has bytes to read or the publisher is done.
+     * @return True if there are bytes to read.
+     */
+    private boolean awaitData() {
+        while (!nextChunkWithBytes()) {
+            if (complete || closed) {
+                //The publisher may have pushed its last chunk before completing.
+                if (nextChunkWithBytes()) {
+                    return true;
+                }
+                if (failure != null && !closed) {
+                    throw new RuntimeException("Exception while receiving bytes from publisher!", failure);
+                }
+                return false;
+            }
+            waitingParser = Thread.currentThread();
+            if (chunks.isEmpty() && !complete && !closed) {
+                final long parkStart = System.nanoTime();
+                LockSupport.park(this);
+                waitNanos += System.nanoTime() - parkStart;
+            }
+            waitingParser = null;
+        }
+        return true;
+    }
+
+    private void wakeUpParser() {
+        final Thread parser = waitingParser;
+        if (parser != null) {
+            LockSupport.unpark(parser);
+        }
+    }
+}
@@ -40,6 +40,16 @@ class ReplayIdAndSizeBuffer {
         count++;
     }
 
+    void addBytes(ByteBuffer src, int len) {
+        Validate.isTrue(count + len <= buffer.length, "Too many bytes being added to replay buffer " + (count + len));
+        src.get(buffer, count, len);
+        count += len;
+    }
+
+    boolean isEmpty() {
+        return count == 0;
+    }
+
     boolean inReplayBuffer(long readOffset) {
         return (readOffset - startingOffset) < count;
     }
@@ -0,0 +1,257 @@
+/*
+Copyright 2017-2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License").
+You may not use this file except in compliance with the License.
+A copy of the License is located at
+
+   http://aws.amazon.com/apache2.0/
+
+or in the "license" file accompanying this file.
+This file is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and limitations under the License.
+*/
+package com.amazonaws.kinesisvideo.parser.ebml;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.Validate;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An implementation of ParserByteSource that is filled from an input stream by its own reader thread.
+ *
+ * The reader thread copies whatever the input stream returns into a single-producer single-consumer ring in off-heap
+ * memory and the parser drains the ring. The two threads only share the read and write positions, so available() is
+ * a volatile read and a blocking read on the input stream never holds up the parser while there are bytes in the
+ * ring. The reader thread waits while the ring is full and the parser only waits in readByte, eof or a read when the
+ * ring is empty.
+ *
+ * Only one thread may read from this byte source.
+ */
+@Slf4j
+public class RingBufferParserByteSource implements ParserByteSource, Closeable {
+    private static final int DEFAULT_CAPACITY = 4 * 1024 * 1024;
+    private static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+    private static final int BYTE_MASK = 0xFF;
+
+    private final InputStream inputStream;
+    private final ByteBuffer ring;
+    private final int mask;
+    private final byte[] chunk;
+    private final Thread readerThread;
+
+    //Total bytes written by the reader thread and read by the parser. Indices into the ring are these modulo capacity.
+    private volatile long writePosition;
+    private volatile long readPosition;
+    private volatile boolean endOfInput;
+    private volatile Throwable failure;
+    private volatile boolean closed;
+    private volatile Thread waitingParser;
+    //Only touched by the parser thread.
+    private long waitNanos;
+    private volatile Thread waitingReader;
+
+    private RingBufferParserByteSource(final InputStream inputStream, final int capacity, final int chunkSize) {
+        Validate.isTrue(Integer.bitCount(capacity) == 1, "Ring capacity should be a power of two");
+        Validate.isTrue(chunkSize > 0 && chunkSize <= capacity / 2, "Chunk size should be at most half the capacity");
+        this.inputStream = inputStream;
+        this.ring = ByteBuffer.allocateDirect(capacity);
+        this.mask = capacity - 1;
+        this.chunk = new byte[chunkSize];
+        this.readerThread = Thread.ofVirtual().name("mkv-reader").unstarted(this::fill);
+    }
+
+    /**
+     * Create a byte source with a 4 MiB ring and start its reader thread.
+     */
+    public static RingBufferParserByteSource create(final InputStream inputStream) {
+        return create(inputStream, DEFAULT_CAPACITY, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * @param capacity The size of the ring, a power of two.
+     * @param chunkSize The most bytes the reader thread asks the input stream for at once, at most half the capacity.
+     */
+    public static RingBufferParserByteSource create(final InputStream inputStream, final int capacity,
+                                                    final int chunkSize) {
+        final RingBufferParserByteSource byteSource = new RingBufferParserByteSource(inputStream, capacity, chunkSize);
+        byteSource.readerThread.start();
+        return byteSource;
+    }
+
+    @Override
+    public int readByte() {
+        if (!awaitData()) {
+            return -1;
+        }
+        final long position = readPosition;
+        final int result = ring.get((int) (position & mask)) & BYTE_MASK;
+        advanceReadPosition(position + 1);
+        return result;
+    }
+
+    @Override
+    public int available() {
+        return (int) (writePosition - readPosition);
+    }
+
+    @Override
+    public int readBytes(final ByteBuffer dest, final int numBytes) {
+        Validate.isTrue(dest.remaining() >= numBytes);
+        if (numBytes == 0) {
+            return 0;
+        }
+        if (!awaitData()) {
+            return -1;
+        }
+        final long position = readPosition;
+        final int numBytesRead = (int) Math.min(numBytes, writePosition - position);
+        final int index = (int) (position & mask);
+        final int untilEnd = Math.min(numBytesRead, ring.capacity() - index);
+        dest.put(dest.position(), ring, index, untilEnd);
+        if (untilEnd < numBytesRead) {
+            dest.put(dest.position() + untilEnd, ring, 0, numBytesRead - untilEnd);
+        }
+        dest.position(dest.position() + numBytesRead);
+        advanceReadPosition(position + numBytesRead);
+        return numBytesRead;
+    }
+
+    /**
+     * Skipping only moves the read position, so it never waits and never touches the skipped bytes.
+     */
+    @Override
+    public long skip(final long numBytes) {
+        final long position = readPosition;
+        final long numBytesSkipped = Math.min(numBytes, writePosition - position);
+        if (numBytesSkipped > 0) {
+            advanceReadPosition(position + numBytesSkipped);
+        }
+        return Math.max(numBytesSkipped, 0);
+    }
+
+    @Override
+    public boolean eof() {
+        return !awaitData();
+    }
+
+    /**
+     * @return The total time the parser has spent waiting for the reader thread to fill the ring, that is for the network.
+     * Only to be called from the parser thread.
+     */
+    public long getWaitNanos() {
+        return waitNanos;
+    }
+
+    /**
+     * Stop the reader thread and close the input stream.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        readerThread.interrupt();
+        LockSupport.unpark(readerThread);
+        try {
+            inputStream.close();
+        } catch (final IOException e) {
+            log.warn("Exception while closing input stream", e);
+        }
+    }
+
+    /**
+     * Wait until the ring has bytes to read or the input stream is exhausted.
+     * @return True if there are bytes to read.
+     */
+    private boolean awaitData() {
+        while (writePosition == readPosition) {
+            if (endOfInput || closed) {
+                //The reader thread may have written its last bytes before setting endOfInput.
+                if (writePosition != readPosition) {
+                    return true;
+                }
+                if (failure != null) {
+                    throw new RuntimeException("Exception while reading bytes from input stream!", failure);
+                }
+                return false;
+            }
+            waitingParser = Thread.currentThread();
+            if (writePosition == readPosition && !endOfInput && !closed) {
+                final long parkStart = System.nanoTime();
+                LockSupport.park(this);
+                waitNanos += System.nanoTime() - parkStart;
+            }
+            waitingParser = null;
+        }
+        return true;
+    }
+
+    private void advanceReadPosition(final long position) {
+        readPosition = position;
+        final Thread reader = waitingReader;
+        if (reader != null) {
+            LockSupport.unpark(reader);
+        }
+    }
+
+    private void fill() {
+        try {
+            while (!closed) {
+                awaitSpace();
+                if (closed) {
+                    break;
+                }
+                final int numBytesRead = inputStream.read(chunk, 0, chunk.length);
+                if (numBytesRead == -1) {
+                    break;
+                }
+                write(numBytesRead);
+            }
+        } catch (final IOException | RuntimeException e) {
+            //SDK response streams also fail with runtime exceptions, which should not look like a clean end of input.
+            if (!closed) {
+                log.warn("Exception while filling ring from input stream", e);
+                failure = e;
+            }
+        } finally {
+            endOfInput = true;
+            wakeUpParser();
+        }
+    }
+
+    private void awaitSpace() {
+        while (!closed && ring.capacity() - (writePosition - readPosition) < chunk.length) {
+            waitingReader = Thread.currentThread();
+            if (!closed && ring.capacity() - (writePosition - readPosition) < chunk.length) {
+                LockSupport.park(this);
+            }
+            waitingReader = null;
+        }
+    }
+
+    private void write(final int numBytes) {
+        final long position = writePosition;
+        final int index = (int) (position & mask);
+        final int untilEnd = Math.min(numBytes, ring.capacity() - index);
+        ring.put(index, chunk, 0, untilEnd);
+        if (untilEnd < numBytes) {
+            ring.put(0, chunk, untilEnd, numBytes - untilEnd);
+        }
+        writePosition = position + numBytes;
+        wakeUpParser();
+    }
+
+    private void wakeUpParser() {
+        final Thread parser = waitingParser;
+        if (parser != null) {
+            LockSupport.unpark(parser);
+        }
+    }
+}
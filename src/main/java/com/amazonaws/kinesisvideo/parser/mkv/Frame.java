@@ -72,6 +72,21 @@ public class Frame {
         return builder.frameData(frameData).build();
     }
 
+    /**
+     * Create a copy of this frame whose data buffer does not share memory with the buffer it was created from.
+     * Frames created without a copy are views on a buffer that the parser reuses, so they have to be copied
+     * in order to retain them after they have been processed.
+     * @return A frame with the same meta-data and a copy of the frame data.
+     */
+    public Frame copy() {
+        ByteBuffer source = frameData.duplicate();
+        source.rewind();
+        ByteBuffer frameDataCopy = ByteBuffer.allocate(source.remaining());
+        frameDataCopy.put(source);
+        frameDataCopy.flip();
+        return toBuilder().frameData(frameDataCopy).build();
+    }
+
     /**
      * Create a FrameBuilder
      * @param simpleBlockDataBuffer
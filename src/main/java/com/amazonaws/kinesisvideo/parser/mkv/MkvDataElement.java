@@ -75,6 +75,25 @@ public class MkvDataElement extends MkvElement {
         return valueCopy;
     }
 
+    /**
+     * Interpret the data of a SimpleBlock element as a frame without copying it.
+     * The data of the returned frame is a view on the data buffer of this element. So, it can only be accessed
+     * before nextIfAvailable is called again on the StreamingMkvReader. To retain the frame, call
+     * {@link Frame#copy()} on it or use getValueCopy() instead.
+     * @return A frame whose data shares the data buffer of this element.
+     */
+    public Frame getFrameWithoutCopy() {
+        Validate.isTrue(MkvTypeInfos.SIMPLEBLOCK.equals(elementMetaData.getTypeInfo()),
+                "Only SimpleBlock elements contain frames, not " + elementMetaData.getTypeInfo().getName());
+        if (valueCopy != null) {
+            return (Frame) valueCopy.getVal();
+        }
+        Validate.notNull(dataBuffer, "The data buffer is no longer available, use getValueCopy() to retain frames");
+        ByteBuffer view = dataBuffer.duplicate();
+        view.rewind();
+        return Frame.withoutCopy(view);
+    }
+
     private void createValueByCopyingBytes() {
         dataBuffer.rewind();
         try {
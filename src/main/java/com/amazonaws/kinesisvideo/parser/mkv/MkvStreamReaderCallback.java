@@ -16,8 +16,8 @@ package com.amazonaws.kinesisvideo.parser.mkv;
 import com.amazonaws.kinesisvideo.parser.ebml.EBMLElementMetaData;
 import com.amazonaws.kinesisvideo.parser.ebml.EBMLParserCallbacks;
 import com.amazonaws.kinesisvideo.parser.ebml.EBMLTypeInfo;
+import com.amazonaws.kinesisvideo.parser.ebml.MkvTypeInfos;
 import com.amazonaws.kinesisvideo.parser.ebml.ParserBulkByteSource;
-import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.Validate;
 
@@ -34,7 +34,6 @@ import java.util.function.Predicate;
  * EBML parser callback used by the MKVStream reader
  */
 @Slf4j
-@RequiredArgsConstructor
 class MkvStreamReaderCallback implements EBMLParserCallbacks{
 
     //NOTE: if object creation rate becomes a performance bottleneck convert these to nullables
@@ -43,11 +42,49 @@ class MkvStreamReaderCallback implements EBMLParserCallbacks{
 
     private final boolean shouldStoreElementPaths;
     private final Predicate<EBMLTypeInfo> elementFilter;
+    private final Optional<ReadBufferPool> readBufferPool;
+    private final boolean keyFramesOnly;
 
-    //TODO: make this dynamic
     private static final int MAX_BUFFER_SIZE = 1_000_000;
-    ByteBuffer readBuffer = ByteBuffer.allocate(MAX_BUFFER_SIZE);
+    //Track number (at most 8 bytes), timecode (2 bytes) and flags (1 byte) at the start of a SimpleBlock.
+    private static final int MAX_SIMPLE_BLOCK_HEADER_BYTES = 11;
+    private static final int KEY_FRAME_FLAG = 0x80;
+    private static final int SKIP_BUFFER_SIZE = 8192;
+    //Number of data elements in a row that need a buffer at least two size classes smaller than the read buffer
+    //before the read buffer is given back to the pool for a smaller one.
+    private static final int OVERSIZED_ELEMENTS_BEFORE_SHRINK = 64;
+    //When a pool is used, the read buffer is acquired for the first data element and kept as long as elements fit in
+    //it. It is swapped for a larger one when an element does not fit, and for a smaller one once a spike is over, so
+    //that streams alternating between small and large elements do not go back to the pool for every element.
+    //Otherwise it grows and is never shrunk.
+    ByteBuffer readBuffer;
+    private int oversizedElements;
 
+    //When only key frames are wanted, the header of a SimpleBlock is read into simpleBlockHeader first.
+    //The parser skips the rest of blocks that are not key frames, so their payload is never copied. Only blocks
+    //of unknown length, which the parser cannot skip, are read into the small skipBuffer.
+    private final ByteBuffer simpleBlockHeader = ByteBuffer.allocate(MAX_SIMPLE_BLOCK_HEADER_BYTES);
+    private ByteBuffer skipBuffer;
+    private boolean checkingKeyFrame;
+    private boolean droppingCurrentElement;
+    private long pendingElementDataSize;
+
+    MkvStreamReaderCallback(boolean shouldStoreElementPaths, Predicate<EBMLTypeInfo> elementFilter) {
+        this(shouldStoreElementPaths, elementFilter, Optional.empty(), false);
+    }
+
+    MkvStreamReaderCallback(boolean shouldStoreElementPaths,
+            Predicate<EBMLTypeInfo> elementFilter,
+            Optional<ReadBufferPool> readBufferPool,
+            boolean keyFramesOnly) {
+        this.shouldStoreElementPaths = shouldStoreElementPaths;
+        this.elementFilter = elementFilter;
+        this.readBufferPool = readBufferPool;
+        this.keyFramesOnly = keyFramesOnly;
+        if (!readBufferPool.isPresent()) {
+            readBuffer = ByteBuffer.allocate(MAX_BUFFER_SIZE);
+        }
+    }
 
     @Override
     public void onStartElement(EBMLElementMetaData elementMetaData,
@@ -63,12 +100,13 @@ class MkvStreamReaderCallback implements EBMLParserCallbacks{
                     .dataSize(elementDataSize)
                     .idAndSizeRawBytes(idAndSizeRawBytes).build());
         } else {
-            if (elementDataSize > readBuffer.capacity()) {
-                int sizeToAllocate = ((int )Math.ceil((double )elementDataSize/MAX_BUFFER_SIZE))*MAX_BUFFER_SIZE;
-                log.debug("Resizing readBuffer to {}", sizeToAllocate);
-                readBuffer = ByteBuffer.allocate(sizeToAllocate);
+            if (keyFramesOnly && MkvTypeInfos.SIMPLEBLOCK.equals(elementMetaData.getTypeInfo())) {
+                checkingKeyFrame = true;
+                pendingElementDataSize = elementDataSize;
+                simpleBlockHeader.clear();
+            } else {
+                prepareReadBuffer(elementDataSize);
             }
-            readBuffer.clear();
 
             if (elementFilter.test(elementMetaData.getTypeInfo())) {
                 log.debug("Data Element to start building {} data size {} ", elementMetaData, elementDataSize);
@@ -81,6 +119,44 @@ class MkvStreamReaderCallback implements EBMLParserCallbacks{
         }
     }
 
+    private void prepareReadBuffer(long elementDataSize) {
+        if (readBufferPool.isPresent()) {
+            ReadBufferPool pool = readBufferPool.get();
+            if (readBuffer == null || readBuffer.capacity() < elementDataSize || shouldShrink(pool, elementDataSize)) {
+                releaseReadBuffer();
+                readBuffer = pool.acquire(elementDataSize);
+                oversizedElements = 0;
+            }
+        } else if (elementDataSize > readBuffer.capacity()) {
+            int sizeToAllocate = ((int )Math.ceil((double )elementDataSize/MAX_BUFFER_SIZE))*MAX_BUFFER_SIZE;
+            log.debug("Resizing readBuffer to {}", sizeToAllocate);
+            readBuffer = ByteBuffer.allocate(sizeToAllocate);
+        }
+        readBuffer.clear();
+    }
+
+    /**
+     * @return True once enough elements in a row would have fit in a buffer of a size class at most a quarter of the
+     * read buffer.
+     */
+    private boolean shouldShrink(ReadBufferPool pool, long elementDataSize) {
+        if (pool.capacityFor(elementDataSize) > readBuffer.capacity() / 4) {
+            oversizedElements = 0;
+            return false;
+        }
+        return ++oversizedElements >= OVERSIZED_ELEMENTS_BEFORE_SHRINK;
+    }
+
+    /**
+     * Return the read buffer to the pool, if one is used. A new buffer is acquired for the next data element.
+     */
+    void releaseReadBuffer() {
+        if (readBufferPool.isPresent() && readBuffer != null) {
+            readBufferPool.get().release(readBuffer);
+            readBuffer = null;
+        }
+    }
+
     private List<EBMLElementMetaData> getPath(ElementPathSupplier pathSupplier) {
         List<EBMLElementMetaData> elementPath;
         if (shouldStoreElementPaths) {
@@ -103,10 +179,54 @@ class MkvStreamReaderCallback implements EBMLParserCallbacks{
         }
 
         if(!elementMetaData.isMaster()) {
-            bulkByteSource.readBytes(readBuffer, bytesToRead);
+            if (droppingCurrentElement) {
+                skipBuffer.clear();
+                bulkByteSource.readBytes(skipBuffer, Math.min(bytesToRead, skipBuffer.capacity()));
+            } else if (checkingKeyFrame) {
+                bulkByteSource.readBytes(simpleBlockHeader, Math.min(bytesToRead, simpleBlockHeader.remaining()));
+                checkKeyFrame();
+            } else {
+                bulkByteSource.readBytes(readBuffer, bytesToRead);
+            }
         }
     }
 
+    /**
+     * Decide whether to keep the current SimpleBlock once its header has been read.
+     * Key frames continue into the read buffer, other frames are dropped.
+     */
+    private void checkKeyFrame() {
+        if (simpleBlockHeader.position() == 0) {
+            return;
+        }
+        int trackNumberBytes = Integer.numberOfLeadingZeros(simpleBlockHeader.get(0) & 0xFF) - (Integer.SIZE - 8) + 1;
+        int headerBytes = trackNumberBytes + 3;
+        if (headerBytes > MAX_SIMPLE_BLOCK_HEADER_BYTES) {
+            //Not a valid track number, leave it to the frame parsing to complain about it.
+            keepCheckedSimpleBlock();
+            return;
+        }
+        if (simpleBlockHeader.position() < headerBytes) {
+            return;
+        }
+        if ((simpleBlockHeader.get(headerBytes - 1) & KEY_FRAME_FLAG) != 0) {
+            keepCheckedSimpleBlock();
+        } else {
+            checkingKeyFrame = false;
+            droppingCurrentElement = true;
+            if (skipBuffer == null) {
+                skipBuffer = ByteBuffer.allocate(SKIP_BUFFER_SIZE);
+            }
+        }
+    }
+
+    private void keepCheckedSimpleBlock() {
+        checkingKeyFrame = false;
+        prepareReadBuffer(pendingElementDataSize);
+        simpleBlockHeader.flip();
+        readBuffer.put(simpleBlockHeader);
+    }
+
     @Override
     public void onEndElement(EBMLElementMetaData elementMetaData, ElementPathSupplier pathSupplier) {
         if(elementMetaData.isMaster()) {
@@ -117,7 +237,14 @@ class MkvStreamReaderCallback implements EBMLParserCallbacks{
                     .elementPath(getPath(pathSupplier))
                     .build());
         } else {
-            if (elementFilter.test(elementMetaData.getTypeInfo())) {
+            if (checkingKeyFrame) {
+                keepCheckedSimpleBlock();
+            }
+            if (droppingCurrentElement) {
+                log.debug("Dropping Data Element {} since it is not a key frame", elementMetaData);
+                droppingCurrentElement = false;
+                currentMkvDataElementInfo = Optional.empty();
+            } else if (elementFilter.test(elementMetaData.getTypeInfo())) {
                 Validate.isTrue(currentMkvDataElementInfo.isPresent());
                 log.debug("Data Element to return {} data size {} ", elementMetaData, readBuffer.position());
                 readBuffer.flip();
@@ -133,6 +260,11 @@ class MkvStreamReaderCallback implements EBMLParserCallbacks{
         return elementsToReturn.isEmpty();
     }
 
+    @Override
+    public boolean skipRemainingContent() {
+        return droppingCurrentElement;
+    }
+
     boolean hasElementsToReturn() {
         return !elementsToReturn.isEmpty();
     }
@@ -20,30 +20,101 @@ import org.apache.commons.lang3.Validate;
 
 import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
 
 /**
  * A class to provide the type information for the EBML elements used by Mkv.
  * This type information is used by the EBML parser.
+ *
+ * The types are kept in an open addressed table keyed by the int id, built once when the class is initialized and
+ * shared by all providers, so a lookup neither boxes the id nor allocates.
  */
 public class MkvTypeInfoProvider implements EBMLTypeInfoProvider {
-    private final Map<Integer,EBMLTypeInfo> typeInfoMap = new HashMap();
+    //A valid EBML id has its length marker bit set, so zero marks an empty slot.
+    private static final int EMPTY_ID = 0;
+    //Fibonacci hashing spreads the ids, which share their high length marker bits, over the table.
+    private static final int HASH_MULTIPLIER = 0x9E3779B9;
 
-    public void load() throws IllegalAccessException {
-        for (Field field : MkvTypeInfos.class.getDeclaredFields()) {
-            if (Modifier.isStatic(field.getModifiers()) && field.getType().equals(EBMLTypeInfo.class)) {
-                EBMLTypeInfo type = (EBMLTypeInfo )field.get(null);
-                Validate.isTrue(!typeInfoMap.containsKey(type.getId()));
-                typeInfoMap.put(type.getId(), type);
+    private static final int[] IDS;
+    private static final EBMLTypeInfo[] TYPE_INFOS;
+    private static final Optional<EBMLTypeInfo>[] OPTIONAL_TYPE_INFOS;
+    private static final int SHIFT;
+    private static final int MASK;
+
+    static {
+        final List<EBMLTypeInfo> types = mkvTypeInfos();
+        //At most a quarter full, so probes are short.
+        int bits = Integer.SIZE - Integer.numberOfLeadingZeros(types.size() * 4 - 1);
+        IDS = new int[1 << bits];
+        TYPE_INFOS = new EBMLTypeInfo[1 << bits];
+        OPTIONAL_TYPE_INFOS = newOptionalArray(1 << bits);
+        SHIFT = Integer.SIZE - bits;
+        MASK = (1 << bits) - 1;
+        for (EBMLTypeInfo type : types) {
+            Validate.isTrue(type.getId() != EMPTY_ID);
+            Validate.isTrue(slotOf(type.getId()) < 0, "Duplicate id " + type.getId());
+            int slot = hash(type.getId());
+            while (IDS[slot] != EMPTY_ID) {
+                slot = (slot + 1) & MASK;
             }
+            IDS[slot] = type.getId();
+            TYPE_INFOS[slot] = type;
+            OPTIONAL_TYPE_INFOS[slot] = Optional.of(type);
         }
     }
 
+    /**
+     * The types are loaded once when the class is initialized, so there is nothing left to do.
+     */
+    public void load() throws IllegalAccessException {
+    }
 
     @Override
     public Optional<EBMLTypeInfo> getType(int id) {
-        return Optional.ofNullable(typeInfoMap.get(id));
+        int slot = slotOf(id);
+        return slot < 0 ? Optional.empty() : OPTIONAL_TYPE_INFOS[slot];
+    }
+
+    @Override
+    public EBMLTypeInfo getTypeOrNull(int id) {
+        int slot = slotOf(id);
+        return slot < 0 ? null : TYPE_INFOS[slot];
+    }
+
+    private static int slotOf(int id) {
+        if (id == EMPTY_ID) {
+            return -1;
+        }
+        for (int slot = hash(id); IDS[slot] != EMPTY_ID; slot = (slot + 1) & MASK) {
+            if (IDS[slot] == id) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    private static int hash(int id) {
+        return (id * HASH_MULTIPLIER) >>> SHIFT;
+    }
+
+    private static List<EBMLTypeInfo> mkvTypeInfos() {
+        final List<EBMLTypeInfo> types = new ArrayList<>();
+        for (Field field : MkvTypeInfos.class.getDeclaredFields()) {
+            if (Modifier.isStatic(field.getModifiers()) && field.getType().equals(EBMLTypeInfo.class)) {
+                try {
+                    types.add((EBMLTypeInfo) field.get(null));
+                } catch (IllegalAccessException e) {
+                    throw new IllegalStateException("Could not load mkv info", e);
+                }
+            }
+        }
+        return types;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Optional<EBMLTypeInfo>[] newOptionalArray(int length) {
+        return (Optional<EBMLTypeInfo>[]) new Optional[length];
     }
 }
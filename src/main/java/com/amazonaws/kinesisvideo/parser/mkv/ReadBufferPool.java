@@ -0,0 +1,147 @@
+/*
+Copyright 2017-2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License").
+You may not use this file except in compliance with the License.
+A copy of the License is located at
+
+   http://aws.amazon.com/apache2.0/
+
+or in the "license" file accompanying this file.
+This file is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and limitations under the License.
+*/
+package com.amazonaws.kinesisvideo.parser.mkv;
+
+import lombok.Builder;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.Validate;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of read buffers that can be shared by many {@link StreamingMkvReader}s.
+ * Buffers are handed out in power of two size classes between minBufferSize and maxPooledBufferSize.
+ * A reader keeps its buffer while elements fit in it and returns it to the pool when it needs a larger one, or once
+ * elements have needed a much smaller one for a while, so a single large element does not pin a large buffer to the
+ * reader for the rest of the stream.
+ * Idle buffers are kept in the pool until maxPooledBytes is reached; buffers returned after that are dropped.
+ * Elements larger than maxPooledBufferSize get a buffer of the exact size that is never pooled.
+ *
+ * This class is thread safe.
+ */
+@Slf4j
+public class ReadBufferPool {
+    private static final int DEFAULT_MIN_BUFFER_SIZE = 64 * 1024;
+    private static final int DEFAULT_MAX_POOLED_BUFFER_SIZE = 16 * 1024 * 1024;
+    private static final long DEFAULT_MAX_POOLED_BYTES = 64L * 1024 * 1024;
+
+    @Getter
+    private final int minBufferSize;
+    @Getter
+    private final int maxPooledBufferSize;
+    @Getter
+    private final long maxPooledBytes;
+    @Getter
+    private final boolean direct;
+
+    private final int minSizeClassShift;
+    private final List<Deque<ByteBuffer>> freeBuffers;
+    private final AtomicLong pooledBytes = new AtomicLong();
+
+    @Builder
+    private ReadBufferPool(Integer minBufferSize, Integer maxPooledBufferSize, Long maxPooledBytes, boolean direct) {
+        int minSize = minBufferSize != null ? minBufferSize : DEFAULT_MIN_BUFFER_SIZE;
+        int maxSize = maxPooledBufferSize != null ? maxPooledBufferSize : DEFAULT_MAX_POOLED_BUFFER_SIZE;
+        Validate.isTrue(minSize > 0, "minBufferSize should be positive");
+        Validate.isTrue(maxSize >= minSize, "maxPooledBufferSize should not be smaller than minBufferSize");
+        Validate.isTrue(maxSize <= (1 << 30), "maxPooledBufferSize should be at most 1GB");
+        this.minBufferSize = roundUpToPowerOfTwo(minSize);
+        this.maxPooledBufferSize = roundUpToPowerOfTwo(maxSize);
+        this.maxPooledBytes = maxPooledBytes != null ? maxPooledBytes : DEFAULT_MAX_POOLED_BYTES;
+        this.direct = direct;
+        this.minSizeClassShift = Integer.numberOfTrailingZeros(this.minBufferSize);
+
+        int numSizeClasses = Integer.numberOfTrailingZeros(this.maxPooledBufferSize) - minSizeClassShift + 1;
+        this.freeBuffers = new ArrayList<>(numSizeClasses);
+        for (int i = 0; i < numSizeClasses; i++) {
+            freeBuffers.add(new ConcurrentLinkedDeque<>());
+        }
+    }
+
+    /**
+     * Get a cleared buffer with a capacity of at least minCapacity.
+     * @param minCapacity The minimum capacity required.
+     * @return A buffer from the pool or a newly allocated one.
+     */
+    public ByteBuffer acquire(long minCapacity) {
+        int capacity = capacityFor(minCapacity);
+        if (capacity > maxPooledBufferSize) {
+            log.debug("Allocating unpooled read buffer of size {}", capacity);
+            return allocate(capacity);
+        }
+        ByteBuffer buffer = freeBuffers.get(sizeClassIndex(capacity)).pollFirst();
+        if (buffer == null) {
+            log.debug("Allocating read buffer of size {}", capacity);
+            return allocate(capacity);
+        }
+        pooledBytes.addAndGet(-capacity);
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Return a buffer to the pool. The caller should not use the buffer after releasing it.
+     * @param buffer A buffer previously acquired from this pool.
+     */
+    public void release(ByteBuffer buffer) {
+        int capacity = buffer.capacity();
+        if (capacity > maxPooledBufferSize || buffer.isDirect() != direct || capacity != capacityFor(capacity)) {
+            return;
+        }
+        if (pooledBytes.addAndGet(capacity) > maxPooledBytes) {
+            pooledBytes.addAndGet(-capacity);
+            log.debug("Dropping read buffer of size {} since the pool is full", capacity);
+            return;
+        }
+        freeBuffers.get(sizeClassIndex(capacity)).offerFirst(buffer);
+    }
+
+    /**
+     * The capacity of the buffer that is handed out by {@link #acquire(long)} for a given size.
+     * @param minCapacity The minimum capacity required.
+     * @return The size class for the capacity or the exact capacity if it is larger than the largest size class.
+     */
+    public int capacityFor(long minCapacity) {
+        Validate.isTrue(minCapacity <= Integer.MAX_VALUE, "Cannot allocate a read buffer of size " + minCapacity);
+        if (minCapacity <= minBufferSize) {
+            return minBufferSize;
+        }
+        if (minCapacity > maxPooledBufferSize) {
+            return (int) minCapacity;
+        }
+        return roundUpToPowerOfTwo((int) minCapacity);
+    }
+
+    public long getPooledBytes() {
+        return pooledBytes.get();
+    }
+
+    private ByteBuffer allocate(int capacity) {
+        return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    private int sizeClassIndex(int capacity) {
+        return Integer.numberOfTrailingZeros(capacity) - minSizeClassShift;
+    }
+
+    private static int roundUpToPowerOfTwo(int value) {
+        return value <= 1 ? 1 : Integer.highestOneBit(value - 1) << 1;
+    }
+}
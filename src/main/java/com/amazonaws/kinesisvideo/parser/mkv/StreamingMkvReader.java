@@ -16,6 +16,7 @@ package com.amazonaws.kinesisvideo.parser.mkv;
 import com.amazonaws.kinesisvideo.parser.ebml.EBMLParser;
 import com.amazonaws.kinesisvideo.parser.ebml.EBMLTypeInfo;
 import com.amazonaws.kinesisvideo.parser.ebml.ParserByteSource;
+import lombok.Builder;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.Validate;
 
@@ -44,6 +45,9 @@ import java.util.function.Predicate;
  * can only be accessed before nextIfAvailable is called again. To retain the value of the MkvDataElement for later use
  * call getValueCopy() on it. It copies the raw bytes and interprets it based on the type of the MkvDataElement.
  *
+ * When the reader is configured with a {@link ReadBufferPool}, close() should be called once the reader is no longer
+ * used so that its read buffer goes back to the pool.
+ *
  */
 @Slf4j
 public class StreamingMkvReader {
@@ -65,25 +69,38 @@ public class StreamingMkvReader {
             Collection<EBMLTypeInfo> typeInfosToRead,
             ParserByteSource byteSource,
             OptionalInt maxContentBytesAtOnce) {
-        this.requirePath = requirePath;
-        typeInfosToRead.stream().forEach(t -> Validate.isTrue(t.getType() != EBMLTypeInfo.TYPE.MASTER));
-        this.typeInfosToRead = new HashSet(typeInfosToRead);
+        this(requirePath, typeInfosToRead, byteSource, maxContentBytesAtOnce, false);
+    }
+
+    StreamingMkvReader(boolean requirePath,
+            Collection<EBMLTypeInfo> typeInfosToRead,
+            ParserByteSource byteSource,
+            OptionalInt maxContentBytesAtOnce,
+            boolean useReadAheadWindow) {
+        this(byteSource, Configuration.builder()
+                .requirePath(requirePath)
+                .typeInfosToRead(typeInfosToRead)
+                .maxContentBytesAtOnce(maxContentBytesAtOnce)
+                .useReadAheadWindow(useReadAheadWindow)
+                .build());
+    }
+
+    private StreamingMkvReader(ParserByteSource byteSource, Configuration configuration) {
+        this.requirePath = configuration.requirePath;
+        configuration.typeInfosToRead.stream().forEach(t -> Validate.isTrue(t.getType() != EBMLTypeInfo.TYPE.MASTER));
+        this.typeInfosToRead = new HashSet(configuration.typeInfosToRead);
 
         this.byteSource = byteSource;
-        this.mkvStreamReaderCallback = new MkvStreamReaderCallback(this.requirePath, elementFilter());
+        this.mkvStreamReaderCallback = new MkvStreamReaderCallback(this.requirePath,
+                elementFilter(),
+                configuration.readBufferPool,
+                configuration.keyFramesOnly);
         this.previousDataElement = Optional.empty();
-        MkvTypeInfoProvider typeInfoProvider = new MkvTypeInfoProvider();
-        try {
-            typeInfoProvider.load();
-        } catch (IllegalAccessException e) {
-            //TODO: fix this
-            throw new RuntimeException("Could not load mkv info", e);
-        }
-        if (maxContentBytesAtOnce.isPresent()) {
-            this.parser = new EBMLParser(typeInfoProvider, mkvStreamReaderCallback, maxContentBytesAtOnce.getAsInt());
-        } else {
-            this.parser = new EBMLParser(typeInfoProvider, mkvStreamReaderCallback);
-        }
+        this.parser = new EBMLParser(new MkvTypeInfoProvider(),
+                mkvStreamReaderCallback,
+                configuration.maxContentBytesAtOnce.orElse(EBMLParser.DEFAULT_MAX_CONTENT_BYTES_IN_ONE_PASS),
+                configuration.useReadAheadWindow,
+                contentFilter());
     }
 
     public static StreamingMkvReader createDefault(ParserByteSource byteSource) {
@@ -94,6 +111,27 @@ public class StreamingMkvReader {
         return new StreamingMkvReader(true, new ArrayList<>(), byteSource, OptionalInt.of(maxContentBytesAtOnce));
     }
 
+    /**
+     * Create a reader whose parser pulls data from the byte source in bulk into a read-ahead window and decodes
+     * element ids and sizes from that window, instead of reading element headers one byte at a time.
+     * @param byteSource The byte source to read the mkv stream from.
+     * @return A StreamingMkvReader using a read-ahead window.
+     */
+    public static StreamingMkvReader createWithReadAheadWindow(ParserByteSource byteSource) {
+        return new StreamingMkvReader(true, new ArrayList<>(), byteSource, OptionalInt.empty(), true);
+    }
+
+    /**
+     * Create a StreamingMkvReader.
+     *
+     * @param byteSource The byte source to read the mkv stream from.
+     * @param configuration Configuration options for the reader.
+     * @return A StreamingMkvReader configured as requested.
+     */
+    public static StreamingMkvReader create(ParserByteSource byteSource, Configuration configuration) {
+        return new StreamingMkvReader(byteSource, configuration);
+    }
+
     public boolean mightHaveNext() {
         if (mkvStreamReaderCallback.hasElementsToReturn()) {
             log.debug("ReaderCallback has elements to return ");
@@ -103,6 +141,10 @@ public class StreamingMkvReader {
             return true;
         } else if (byteSource.eof()) {
             log.debug("byteSource has reached eof");
+            if (!parser.isClosed() && parser.hasBufferedBytes()) {
+                log.debug("byteSource has reached eof but parser still has read-ahead bytes to parse");
+                return true;
+            }
             if(!parser.isClosed()) {
                 log.debug("byteSource has reached eof and calling close on parser");
                 parser.closeParser();
@@ -112,6 +154,7 @@ public class StreamingMkvReader {
         log.debug("No more elements to process byteSource.eof {} parser.isClosed {} ",
                 byteSource.eof(),
                 parser.isClosed());
+        close();
         return false;
     }
 
@@ -143,6 +186,18 @@ public class StreamingMkvReader {
         }
     }
 
+    /**
+     * Return the read buffer of this reader to its {@link ReadBufferPool}, if one is configured.
+     * The data buffer of the last returned data element is no longer accessible after this call.
+     * This does not close the byte source.
+     */
+    public void close() {
+        if (previousDataElement.isPresent()) {
+            previousDataElement.get().clearDataBuffer();
+            previousDataElement = Optional.empty();
+        }
+        mkvStreamReaderCallback.releaseReadBuffer();
+    }
 
     private Optional<MkvElement> getMkvElementToReturn() {
         Optional<MkvElement> currentElement = mkvStreamReaderCallback.getMkvElementIfAvailable();
@@ -171,4 +226,59 @@ public class StreamingMkvReader {
         }
     }
 
+    /**
+     * Elements that are not read are skipped by the parser itself, so their content never reaches the read buffer.
+     */
+    private Predicate<EBMLTypeInfo> contentFilter() {
+        if (typeInfosToRead.isEmpty()) {
+            return (t) -> true;
+        }
+        return typeInfosToRead::contains;
+    }
+
+    /**
+     * Configuration options for modifying the behavior of the {@link StreamingMkvReader}.
+     */
+    @Builder
+    public static class Configuration {
+
+        /**
+         * When true, data elements carry the path of master elements they are nested in.
+         */
+        @Builder.Default
+        private final boolean requirePath = true;
+
+        /**
+         * The non-master element types to return. All non-master element types are returned when empty.
+         */
+        @Builder.Default
+        private final Collection<EBMLTypeInfo> typeInfosToRead = new ArrayList<>();
+
+        /**
+         * The maximum number of content bytes the parser reads in one pass.
+         */
+        @Builder.Default
+        private final OptionalInt maxContentBytesAtOnce = OptionalInt.empty();
+
+        /**
+         * When true, the parser decodes element ids and sizes from a read-ahead window.
+         * See {@link #createWithReadAheadWindow(ParserByteSource)}.
+         */
+        @Builder.Default
+        private final boolean useReadAheadWindow = false;
+
+        /**
+         * The pool to take read buffers for data elements from. When empty, the reader allocates its own read buffer
+         * that grows to fit the largest element seen.
+         */
+        @Builder.Default
+        private final Optional<ReadBufferPool> readBufferPool = Optional.empty();
+
+        /**
+         * When true, SimpleBlocks that are not key frames are dropped as soon as their header has been read.
+         * Their payload is skipped without being buffered and they are not returned by the reader.
+         */
+        @Builder.Default
+        private final boolean keyFramesOnly = false;
+    }
 }
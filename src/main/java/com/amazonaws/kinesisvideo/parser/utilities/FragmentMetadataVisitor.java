@@ -133,6 +133,15 @@ public class FragmentMetadataVisitor extends CompositeMkvElementVisitor {
 
         @Override
         public void visit(MkvStartMasterElement startMasterElement) throws MkvElementVisitException {
+            if (state != State.NEW
+                    && MkvTypeInfos.SEGMENT.equals(startMasterElement.getElementMetaData().getTypeInfo())) {
+                //The previous segment was cut short, as when a GetMedia response ends mid fragment and the same
+                //visitor goes on with the response of a new GetMedia call.
+                log.warn("Segment start {} while in {}. Starting over in PRE_CLUSTER", startMasterElement, state);
+                resetCollectedData();
+                state = State.PRE_CLUSTER;
+                return;
+            }
             switch (state) {
                 case NEW:
                     if (MkvTypeInfos.SEGMENT.equals(startMasterElement.getElementMetaData().getTypeInfo())) {
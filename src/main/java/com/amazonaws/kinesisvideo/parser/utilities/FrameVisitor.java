@@ -19,6 +19,7 @@ import com.amazonaws.kinesisvideo.parser.mkv.FrameProcessException;
 import com.amazonaws.kinesisvideo.parser.mkv.MkvElementVisitor;
 import com.amazonaws.kinesisvideo.parser.mkv.MkvValue;
 import com.amazonaws.kinesisvideo.parser.mkv.visitors.CompositeMkvElementVisitor;
+import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.NotImplementedException;
 import org.apache.commons.lang3.Validate;
@@ -26,19 +27,38 @@ import org.apache.commons.lang3.Validate;
 import java.math.BigInteger;
 import java.util.Optional;
 
+/**
+ * Visitor that hands every frame in a SimpleBlock to a {@link FrameProcessor}, along with the metadata of the track
+ * and fragment it belongs to.
+ *
+ * By default each frame is a copy of the SimpleBlock data. A FrameVisitor created with createWithoutCopy hands
+ * out frames that are views on the parser's read buffer instead. Those frames are only valid for the duration of
+ * the {@link FrameProcessor#process} call; processors that keep a frame around after that must call
+ * {@link Frame#copy()} on it.
+ */
 @Slf4j
 public class FrameVisitor extends CompositeMkvElementVisitor {
+    @Getter
     private final FragmentMetadataVisitor fragmentMetadataVisitor;
     private final FrameVisitorInternal frameVisitorInternal;
     private final FrameProcessor frameProcessor;
     private final Optional<Long> trackNumber;
     private final Optional<FragmentMetadataVisitor.MkvTagProcessor> tagProcessor;
+    private final boolean copyFrames;
+    private final boolean keyFramesOnly;
     private Optional<BigInteger> timescale;
     private Optional<BigInteger> fragmentTimecode;
 
     private FrameVisitor(final FragmentMetadataVisitor fragmentMetadataVisitor,
                          final Optional<FragmentMetadataVisitor.MkvTagProcessor> tagProcessor,
                          final FrameProcessor frameProcessor, final Optional<Long> trackNumber) {
+        this(fragmentMetadataVisitor, tagProcessor, frameProcessor, trackNumber, true, false);
+    }
+
+    private FrameVisitor(final FragmentMetadataVisitor fragmentMetadataVisitor,
+                         final Optional<FragmentMetadataVisitor.MkvTagProcessor> tagProcessor,
+                         final FrameProcessor frameProcessor, final Optional<Long> trackNumber,
+                         final boolean copyFrames, final boolean keyFramesOnly) {
         super(fragmentMetadataVisitor);
         this.fragmentMetadataVisitor = fragmentMetadataVisitor;
         this.frameVisitorInternal = new FrameVisitorInternal();
@@ -46,6 +66,8 @@ public class FrameVisitor extends CompositeMkvElementVisitor {
         this.frameProcessor = frameProcessor;
         this.tagProcessor = tagProcessor;
         this.trackNumber = trackNumber;
+        this.copyFrames = copyFrames;
+        this.keyFramesOnly = keyFramesOnly;
         this.timescale = Optional.empty();
         this.fragmentTimecode = Optional.empty();
     }
@@ -67,6 +89,34 @@ public class FrameVisitor extends CompositeMkvElementVisitor {
                 tagProcessor, frameProcessor, trackNumber);
     }
 
+    /**
+     * Create a FrameVisitor that does not copy the frame data before handing it to the frame processor.
+     * The frames are only valid for the duration of the process call. See {@link Frame#copy()} to retain them.
+     */
+    public static FrameVisitor createWithoutCopy(final FrameProcessor frameProcessor,
+                                                 final Optional<FragmentMetadataVisitor.MkvTagProcessor> tagProcessor) {
+        return createWithoutCopy(frameProcessor, tagProcessor, Optional.empty());
+    }
+
+    public static FrameVisitor createWithoutCopy(final FrameProcessor frameProcessor,
+                                                 final Optional<FragmentMetadataVisitor.MkvTagProcessor> tagProcessor,
+                                                 final Optional<Long> trackNumber) {
+        return createWithoutCopy(frameProcessor, tagProcessor, trackNumber, false);
+    }
+
+    /**
+     * Create a FrameVisitor that does not copy the frame data and, when keyFramesOnly is true, only hands key frames
+     * to the frame processor. Pair it with a {@link com.amazonaws.kinesisvideo.parser.mkv.StreamingMkvReader}
+     * configured with keyFramesOnly to drop the other frames before they are buffered.
+     */
+    public static FrameVisitor createWithoutCopy(final FrameProcessor frameProcessor,
+                                                 final Optional<FragmentMetadataVisitor.MkvTagProcessor> tagProcessor,
+                                                 final Optional<Long> trackNumber,
+                                                 final boolean keyFramesOnly) {
+        return new FrameVisitor(FragmentMetadataVisitor.create(tagProcessor),
+                tagProcessor, frameProcessor, trackNumber, false, keyFramesOnly);
+    }
+
     public void close() {
         frameProcessor.close();
     }
@@ -131,14 +181,23 @@ public class FrameVisitor extends CompositeMkvElementVisitor {
             }
 
             if (MkvTypeInfos.SIMPLEBLOCK.equals(dataElement.getElementMetaData().getTypeInfo())) {
-                final MkvValue<Frame> frame = dataElement.getValueCopy();
-                Validate.notNull(frame);
-                final long frameTrackNo = frame.getVal().getTrackNumber();
+                final Frame frame;
+                if (copyFrames) {
+                    final MkvValue<Frame> frameValue = dataElement.getValueCopy();
+                    Validate.notNull(frameValue);
+                    frame = frameValue.getVal();
+                } else {
+                    frame = dataElement.getFrameWithoutCopy();
+                }
+                if (keyFramesOnly && !frame.isKeyFrame()) {
+                    return;
+                }
+                final long frameTrackNo = frame.getTrackNumber();
                 final MkvTrackMetadata trackMetadata =
                         fragmentMetadataVisitor.getMkvTrackMetadata(frameTrackNo);
 
                 if (trackNumber.orElse(frameTrackNo) == frameTrackNo) {
-                    frameProcessor.process(frame.getVal(), trackMetadata,
+                    frameProcessor.process(frame, trackMetadata,
                             fragmentMetadataVisitor.getCurrentFragmentMetadata(),
                             tagProcessor, timescale, fragmentTimecode);
                 }
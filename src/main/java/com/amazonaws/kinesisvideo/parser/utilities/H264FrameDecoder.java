@@ -16,6 +16,7 @@ package com.amazonaws.kinesisvideo.parser.utilities;
 import com.amazonaws.kinesisvideo.parser.mkv.Frame;
 import com.amazonaws.kinesisvideo.parser.mkv.FrameProcessException;
 import lombok.Getter;
+import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
 import org.jcodec.codecs.h264.H264Decoder;
 import org.jcodec.codecs.h264.mp4.AvcCBox;
@@ -26,7 +27,9 @@ import org.jcodec.scale.Transform;
 import org.jcodec.scale.Yuv420jToRgb;
 
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Optional;
 
@@ -34,9 +37,23 @@ import static org.jcodec.codecs.h264.H264Utils.splitMOVPacket;
 
 /**
  * H264 Frame Decoder class which uses JCodec decoder to decode frames.
+ *
+ * The decoder keeps the parsed codec private data and the pictures and image it decodes into between frames.
+ * They are only set up again when the codec private data or the dimensions of the track change. As a result, the
+ * image returned by decodeH264Frame is overwritten by the next call; copy it to keep it around.
  */
 @Slf4j
-public class H264FrameDecoder implements FrameVisitor.FrameProcessor  {
+public class H264FrameDecoder implements ReferenceFrameDecoder {
+
+    /**
+     * Told how long decoding each frame took, split into decoding the picture and converting it to an image.
+     */
+    @FunctionalInterface
+    public interface DecodeTimer {
+        DecodeTimer NONE = (decodeNanos, convertNanos) -> { };
+
+        void decoded(long decodeNanos, long convertNanos);
+    }
 
     private final H264Decoder decoder = new H264Decoder();
     private final Transform transform = new Yuv420jToRgb();
@@ -45,6 +62,21 @@ public class H264FrameDecoder implements FrameVisitor.FrameProcessor  {
     private int frameCount;
 
     private byte[] codecPrivateData;
+    private AvcCBox avcC;
+
+    private int pixelWidth;
+    private int pixelHeight;
+    private Picture yuv;
+    private Picture rgb;
+    private BufferedImage bufferedImage;
+    // Work around for color issues in JCodec: the decoded planes are converted with U and V swapped.
+    // https://github.com/jcodec/jcodec/issues/59
+    // https://github.com/jcodec/jcodec/issues/192
+    private final byte[][] swappedPlanes = new byte[3][];
+    private Picture swappedYuv;
+
+    @Setter
+    private DecodeTimer decodeTimer = DecodeTimer.NONE;
 
     @Override
     public void process(final Frame frame, final MkvTrackMetadata trackMetadata,
@@ -53,41 +85,66 @@ public class H264FrameDecoder implements FrameVisitor.FrameProcessor  {
     }
 
     public BufferedImage decodeH264Frame(final Frame frame, final MkvTrackMetadata trackMetadata) {
+        final long decodeStart = System.nanoTime();
+        final Picture pic = decodePicture(frame, trackMetadata);
+        final long convertStart = System.nanoTime();
+
+        if (pic != null) {
+            swappedPlanes[0] = pic.getPlaneData(0);
+            swappedPlanes[1] = pic.getPlaneData(2);
+            swappedPlanes[2] = pic.getPlaneData(1);
+            transform.transform(swappedYuv, rgb);
+            AWTUtil.toBufferedImage(rgb, bufferedImage);
+            frameCount++;
+        } else {
+            Arrays.fill(((DataBufferByte) bufferedImage.getRaster().getDataBuffer()).getData(), (byte) 0);
+        }
+        decodeTimer.decoded(convertStart - decodeStart, System.nanoTime() - convertStart);
+        return bufferedImage;
+    }
+
+    /**
+     * Feed a frame to the decoder without converting the decoded picture to an image.
+     * This is used for reference frames that later frames depend on but that are not needed as images themselves.
+     */
+    @Override
+    public void decodeReferenceFrame(final Frame frame, final MkvTrackMetadata trackMetadata) {
+        decodePicture(frame, trackMetadata);
+    }
+
+    private Picture decodePicture(final Frame frame, final MkvTrackMetadata trackMetadata) {
         final ByteBuffer frameBuffer = frame.getFrameData();
-        final int pixelWidth = trackMetadata.getPixelWidth().get().intValue();
-        final int pixelHeight = trackMetadata.getPixelHeight().get().intValue();
-        codecPrivateData = trackMetadata.getCodecPrivateData().array();
+        updateTrackState(trackMetadata);
         log.debug("Decoding frames ... ");
         // Read the bytes that appear to comprise the header
         // See: https://www.matroska.org/technical/specs/index.html#simpleblock_structure
 
-        final Picture rgb = Picture.create(pixelWidth, pixelHeight, ColorSpace.RGB);
-        final BufferedImage bufferedImage = new BufferedImage(pixelWidth, pixelHeight, BufferedImage.TYPE_3BYTE_BGR);
-        final AvcCBox avcC = AvcCBox.parseAvcCBox(ByteBuffer.wrap(codecPrivateData));
-
-        decoder.addSps(avcC.getSpsList());
-        decoder.addPps(avcC.getPpsList());
-
-        final Picture buf = Picture.create(pixelWidth + ((16 - (pixelWidth % 16)) % 16),
-                pixelHeight + ((16 - (pixelHeight % 16)) % 16), ColorSpace.YUV420J);
         final List<ByteBuffer> byteBuffers = splitMOVPacket(frameBuffer, avcC);
-        final Picture pic = decoder.decodeFrameFromNals(byteBuffers, buf.getData());
+        return decoder.decodeFrameFromNals(byteBuffers, yuv.getData());
+    }
 
-        if (pic != null) {
-            // Work around for color issues in JCodec
-            // https://github.com/jcodec/jcodec/issues/59
-            // https://github.com/jcodec/jcodec/issues/192
-            final byte[][] dataTemp = new byte[3][pic.getData().length];
-            dataTemp[0] = pic.getPlaneData(0);
-            dataTemp[1] = pic.getPlaneData(2);
-            dataTemp[2] = pic.getPlaneData(1);
-
-            final Picture tmpBuf = Picture.createPicture(pixelWidth, pixelHeight, dataTemp, ColorSpace.YUV420J);
-            transform.transform(tmpBuf, rgb);
-            AWTUtil.toBufferedImage(rgb, bufferedImage);
-            frameCount++;
+    private void updateTrackState(final MkvTrackMetadata trackMetadata) {
+        final byte[] trackCodecPrivateData = trackMetadata.getCodecPrivateData().array();
+        if (trackCodecPrivateData != codecPrivateData && !Arrays.equals(trackCodecPrivateData, codecPrivateData)) {
+            log.debug("Codec private data changed, parsing new SPS and PPS");
+            avcC = AvcCBox.parseAvcCBox(ByteBuffer.wrap(trackCodecPrivateData));
+            decoder.addSps(avcC.getSpsList());
+            decoder.addPps(avcC.getPpsList());
+        }
+        codecPrivateData = trackCodecPrivateData;
+
+        final int trackPixelWidth = trackMetadata.getPixelWidth().get().intValue();
+        final int trackPixelHeight = trackMetadata.getPixelHeight().get().intValue();
+        if (bufferedImage == null || trackPixelWidth != pixelWidth || trackPixelHeight != pixelHeight) {
+            log.debug("Allocating pictures for resolution {}x{}", trackPixelWidth, trackPixelHeight);
+            pixelWidth = trackPixelWidth;
+            pixelHeight = trackPixelHeight;
+            yuv = Picture.create(pixelWidth + ((16 - (pixelWidth % 16)) % 16),
+                    pixelHeight + ((16 - (pixelHeight % 16)) % 16), ColorSpace.YUV420J);
+            rgb = Picture.create(pixelWidth, pixelHeight, ColorSpace.RGB);
+            bufferedImage = new BufferedImage(pixelWidth, pixelHeight, BufferedImage.TYPE_3BYTE_BGR);
+            swappedYuv = Picture.createPicture(pixelWidth, pixelHeight, swappedPlanes, ColorSpace.YUV420J);
         }
-        return bufferedImage;
     }
 
     public ByteBuffer getCodecPrivateData() {
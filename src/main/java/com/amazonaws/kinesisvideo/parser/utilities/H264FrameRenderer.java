@@ -14,6 +14,7 @@ See the License for the specific language governing permissions and limitations
 package com.amazonaws.kinesisvideo.parser.utilities;
 
 import java.awt.image.BufferedImage;
+import java.math.BigInteger;
 import java.util.Optional;
 import java.util.function.Consumer;
 
@@ -23,27 +24,56 @@ import lombok.extern.slf4j.Slf4j;
 
 import static com.amazonaws.kinesisvideo.parser.utilities.BufferedImageUtil.addTextToImage;
 
-
+/**
+ * Decodes H.264 frames, draws the fragment number and tags on them and hands the images to a consumer.
+ *
+ * A {@link DecodedFrameConsumer} also gets the frame and the track and fragment metadata the image was decoded from.
+ * The image is reused for the next frame, see {@link H264FrameDecoder}.
+ */
 @Slf4j
 public class H264FrameRenderer extends H264FrameDecoder {
     private static final int PIXEL_TO_LEFT = 10;
     private static final int PIXEL_TO_TOP_LINE_1 = 20;
     private static final int PIXEL_TO_TOP_LINE_2 = 40;
 
-    private final Consumer<BufferedImage> bufferedImageConsumer;
+    @FunctionalInterface
+    public interface DecodedFrameConsumer {
+        void accept(BufferedImage bufferedImage, Frame frame, MkvTrackMetadata trackMetadata,
+                    Optional<FragmentMetadata> fragmentMetadata, Optional<BigInteger> timescale,
+                    Optional<BigInteger> fragmentTimecode);
+    }
+
+    private final DecodedFrameConsumer decodedFrameConsumer;
 
     protected H264FrameRenderer(final Consumer<BufferedImage> bufferedImageConsumer) {
+        this((image, frame, trackMetadata, fragmentMetadata, timescale, fragmentTimecode) ->
+                bufferedImageConsumer.accept(image));
+    }
+
+    protected H264FrameRenderer(final DecodedFrameConsumer decodedFrameConsumer) {
         super();
-        this.bufferedImageConsumer = bufferedImageConsumer;
+        this.decodedFrameConsumer = decodedFrameConsumer;
     }
 
     public static H264FrameRenderer create(Consumer<BufferedImage> bufferedImageConsumer) {
         return new H264FrameRenderer(bufferedImageConsumer);
     }
 
+    public static H264FrameRenderer createWithMetadata(DecodedFrameConsumer decodedFrameConsumer) {
+        return new H264FrameRenderer(decodedFrameConsumer);
+    }
+
     @Override
     public void process(Frame frame, MkvTrackMetadata trackMetadata, Optional<FragmentMetadata> fragmentMetadata,
                         Optional<FragmentMetadataVisitor.MkvTagProcessor> tagProcessor) throws FrameProcessException {
+        process(frame, trackMetadata, fragmentMetadata, tagProcessor, Optional.empty(), Optional.empty());
+    }
+
+    @Override
+    public void process(Frame frame, MkvTrackMetadata trackMetadata, Optional<FragmentMetadata> fragmentMetadata,
+                        Optional<FragmentMetadataVisitor.MkvTagProcessor> tagProcessor,
+                        Optional<BigInteger> timescale, Optional<BigInteger> fragmentTimecode)
+            throws FrameProcessException {
         final BufferedImage bufferedImage = decodeH264Frame(frame, trackMetadata);
         if (tagProcessor.isPresent()) {
             final FragmentMetadataVisitor.BasicMkvTagProcessor processor =
@@ -63,7 +93,7 @@ public class H264FrameRenderer extends H264FrameDecoder {
                         PIXEL_TO_LEFT, PIXEL_TO_TOP_LINE_2);
             }
         }
-        bufferedImageConsumer.accept(bufferedImage);
+        decodedFrameConsumer.accept(bufferedImage, frame, trackMetadata, fragmentMetadata, timescale, fragmentTimecode);
     }
 
 
@@ -0,0 +1,183 @@
+/*
+Copyright 2017-2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License").
+You may not use this file except in compliance with the License.
+A copy of the License is located at
+
+   http://aws.amazon.com/apache2.0/
+
+or in the "license" file accompanying this file.
+This file is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and limitations under the License.
+*/
+package com.amazonaws.kinesisvideo.parser.utilities;
+
+import com.amazonaws.kinesisvideo.parser.mkv.Frame;
+import com.amazonaws.kinesisvideo.parser.mkv.FrameProcessException;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.Validate;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Frame processor that only hands one frame per sampling interval to a decoder, such as an {@link H264FrameDecoder}.
+ *
+ * The time of a frame is (cluster Timecode + SimpleBlock timecode) x TimecodeScale. The first frame at or after the
+ * next sampling time is decoded and processed by the decoder. Frames in between are not decoded when they are
+ * processed: reference frames are kept since the last keyframe and only fed to the decoder, without conversion to an
+ * image, once a sampled frame depends on them. Non-reference frames are dropped right away. A keyframe drops the
+ * kept frames, so a group of pictures without a sampling time in it is never decoded at all.
+ *
+ * Every H.264 track is sampled on its own. Frames of other tracks, such as audio, are handed to the decoder as they
+ * are, as if there were no sampler.
+ */
+@Slf4j
+public class H264FrameSampler implements FrameVisitor.FrameProcessor {
+    private static final long DEFAULT_TIMECODE_SCALE = 1_000_000L;
+    private static final int NAL_TYPE_MASK = 0x1F;
+    private static final int NAL_REF_IDC_MASK = 0x60;
+    private static final int NAL_TYPE_SLICE = 1;
+    private static final int NAL_TYPE_IDR_SLICE = 5;
+    private static final String H264_CODEC_ID = "V_MPEG4/ISO/AVC";
+
+    private final ReferenceFrameDecoder decoder;
+    private final long intervalNanos;
+
+    private final Map<Long, TrackState> tracks = new HashMap<>();
+
+    @Getter
+    private int sampledFrameCount;
+    @Getter
+    private int referenceFrameCount;
+    @Getter
+    private int skippedFrameCount;
+
+    private H264FrameSampler(final ReferenceFrameDecoder decoder, final Duration interval) {
+        Validate.isTrue(!interval.isNegative(), "Sampling interval should not be negative");
+        this.decoder = decoder;
+        this.intervalNanos = interval.toNanos();
+    }
+
+    public static H264FrameSampler create(final ReferenceFrameDecoder decoder, final Duration interval) {
+        return new H264FrameSampler(decoder, interval);
+    }
+
+    public static H264FrameSampler createWithFramesPerSecond(final ReferenceFrameDecoder decoder,
+                                                             final double framesPerSecond) {
+        Validate.isTrue(framesPerSecond > 0, "Frames per second should be positive");
+        return new H264FrameSampler(decoder, Duration.ofNanos((long) (1_000_000_000L / framesPerSecond)));
+    }
+
+    @Override
+    public void process(final Frame frame, final MkvTrackMetadata trackMetadata,
+                        final Optional<FragmentMetadata> fragmentMetadata,
+                        final Optional<FragmentMetadataVisitor.MkvTagProcessor> tagProcessor,
+                        final Optional<BigInteger> timescale, final Optional<BigInteger> fragmentTimecode)
+            throws FrameProcessException {
+        if (!H264_CODEC_ID.equals(trackMetadata.getCodecId())) {
+            decoder.process(frame, trackMetadata, fragmentMetadata, tagProcessor, timescale, fragmentTimecode);
+            return;
+        }
+        final TrackState track = tracks.computeIfAbsent(frame.getTrackNumber(), t -> new TrackState());
+        if (frame.isKeyFrame()) {
+            track.seenKeyFrame = true;
+            track.pendingReferenceFrames.clear();
+        } else if (!track.seenKeyFrame) {
+            //Nothing before the first keyframe can be decoded.
+            skippedFrameCount++;
+            return;
+        }
+
+        final long frameTimeNanos = frameTimeNanos(frame, timescale, fragmentTimecode);
+        if (frameTimeNanos >= track.nextSampleTimeNanos) {
+            for (final Frame referenceFrame : track.pendingReferenceFrames) {
+                decoder.decodeReferenceFrame(referenceFrame, trackMetadata);
+                referenceFrameCount++;
+            }
+            track.pendingReferenceFrames.clear();
+            decoder.process(frame, trackMetadata, fragmentMetadata, tagProcessor, timescale, fragmentTimecode);
+            sampledFrameCount++;
+            long nextSampleTimeNanos = track.nextSampleTimeNanos == Long.MIN_VALUE ? frameTimeNanos : track.nextSampleTimeNanos;
+            nextSampleTimeNanos += intervalNanos;
+            if (nextSampleTimeNanos <= frameTimeNanos) {
+                nextSampleTimeNanos = frameTimeNanos + intervalNanos;
+            }
+            track.nextSampleTimeNanos = nextSampleTimeNanos;
+        } else if (isReferenceFrame(frame, trackMetadata)) {
+            //The frame may be a view on the parser's read buffer, so keep a copy of it.
+            track.pendingReferenceFrames.add(frame.copy());
+        } else {
+            skippedFrameCount++;
+        }
+    }
+
+    @Override
+    public void close() {
+        tracks.clear();
+        decoder.close();
+    }
+
+    private static long frameTimeNanos(final Frame frame,
+                                       final Optional<BigInteger> timescale,
+                                       final Optional<BigInteger> fragmentTimecode) {
+        final long clusterTimecode = fragmentTimecode.map(BigInteger::longValue).orElse(0L);
+        final long timecodeScale = timescale.map(BigInteger::longValue).orElse(DEFAULT_TIMECODE_SCALE);
+        return (clusterTimecode + frame.getTimeCode()) * timecodeScale;
+    }
+
+    /**
+     * Sampling state of one track.
+     */
+    private static class TrackState {
+        private final List<Frame> pendingReferenceFrames = new ArrayList<>();
+        private boolean seenKeyFrame;
+        private long nextSampleTimeNanos = Long.MIN_VALUE;
+    }
+
+    /**
+     * A frame is a reference frame unless it is marked discardable or none of its slices has a non-zero nal_ref_idc.
+     */
+    static boolean isReferenceFrame(final Frame frame, final MkvTrackMetadata trackMetadata) {
+        if (frame.isDiscardable()) {
+            return false;
+        }
+        final ByteBuffer codecPrivateData = trackMetadata.getCodecPrivateData();
+        if (codecPrivateData.limit() < 5) {
+            return true;
+        }
+        //The lengthSizeMinusOne field of the AVCDecoderConfigurationRecord.
+        final int nalLengthSize = (codecPrivateData.get(4) & 0x3) + 1;
+        final ByteBuffer data = frame.getFrameData().duplicate();
+        data.rewind();
+        boolean hasSlice = false;
+        while (data.remaining() > nalLengthSize) {
+            int nalLength = 0;
+            for (int i = 0; i < nalLengthSize; i++) {
+                nalLength = (nalLength << 8) | (data.get() & 0xFF);
+            }
+            if (nalLength <= 0 || nalLength > data.remaining()) {
+                //Not a length prefixed frame that we understand, so keep it to be safe.
+                return true;
+            }
+            final int nalHeader = data.get(data.position()) & 0xFF;
+            final int nalType = nalHeader & NAL_TYPE_MASK;
+            if (nalType >= NAL_TYPE_SLICE && nalType <= NAL_TYPE_IDR_SLICE) {
+                if ((nalHeader & NAL_REF_IDC_MASK) != 0) {
+                    return true;
+                }
+                hasSlice = true;
+            }
+            data.position(data.position() + nalLength);
+        }
+        return !hasSlice;
+    }
+}
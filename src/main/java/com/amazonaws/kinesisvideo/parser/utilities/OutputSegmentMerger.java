@@ -15,8 +15,8 @@ package com.amazonaws.kinesisvideo.parser.utilities;
 
 
 import com.amazonaws.kinesisvideo.parser.ebml.EBMLTypeInfo;
+import com.amazonaws.kinesisvideo.parser.ebml.EBMLUtils;
 import com.amazonaws.kinesisvideo.parser.ebml.MkvTypeInfos;
-import com.amazonaws.kinesisvideo.parser.mkv.Frame;
 import com.amazonaws.kinesisvideo.parser.mkv.MkvDataElement;
 import com.amazonaws.kinesisvideo.parser.mkv.MkvElement;
 import com.amazonaws.kinesisvideo.parser.mkv.MkvElementVisitException;
@@ -31,15 +31,18 @@ import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.Validate;
 
-import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.math.BigInteger;
 import java.nio.ByteBuffer;
 import java.nio.channels.Channels;
+import java.nio.channels.GatheringByteChannel;
 import java.nio.channels.WritableByteChannel;
-import java.util.ArrayList;
-import java.util.Collections;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Optional;
 import java.util.stream.Collectors;
@@ -52,19 +55,29 @@ import static com.amazonaws.kinesisvideo.parser.utilities.OutputSegmentMerger.Me
  * Each mkv stream has one segment.
  * This class merges consecutive mkv streams as long as they share the same track and EBML information.
  * It merges based on the elements that are the child elements of the track and EBML master elements.
- * It collects all the child elements for each master element for each mkv stream.
- * It compares the collected child elements of each master element in one mkv stream
- * with the collected child elements of the same master element in the previous mkv stream.
+ * For each master element in each mkv stream it digests the type and size of the element and its children,
+ * and the data of the children that are not master elements.
+ * It compares the digest of each master element in one mkv stream
+ * with the digest of the same master element in the previous mkv stream.
  * If the test passes for both thr track and EBML master elements in an mkv stream,
  * its headers up to its first cluster are not emitted to the output stream, otherwise they are emitted.
  * All data within or after cluster is emitted.
  *
+ * The headers and cluster starts are buffered in reusable direct buffers until the merger knows whether to emit them.
+ * They are written together with the element that follows them, and every data element is written with its id and
+ * size, in a single gathering write when the output stream is a file.
+ *
+ * A merger created with {@link #createRolling(OutputStreamFactory, Configuration)} writes to a sequence of outputs
+ * instead of a single one. Whenever a segment does not match the previous one, or the current output reaches the
+ * size or duration limits in the {@link Configuration}, it opens the next output and keeps going. An output that
+ * starts in the middle of a segment starts with the headers of that segment, so every output is a playable mkv.
+ *
  * The Merger can also be configured for different merging behaviors. See {@link Configuration}.
  */
 @Slf4j
-public class OutputSegmentMerger extends CompositeMkvElementVisitor {
-    private final OutputStream outputStream;
-    private final List<CollectorState> collectorStates;
+public class OutputSegmentMerger extends CompositeMkvElementVisitor implements Closeable {
+    private OutputStream outputStream;
+    private final List<HeaderFingerprint> headerFingerprints;
     private final Configuration configuration;
 
     enum MergeState { NEW, BUFFERING_SEGMENT, BUFFERING_CLUSTER_START, EMITTING, DONE }
@@ -72,37 +85,57 @@ public class OutputSegmentMerger extends CompositeMkvElementVisitor {
 
     private final MergeVisitor mergeVisitor = new MergeVisitor();
 
-    private final ByteArrayOutputStream bufferingSegmentStream = new ByteArrayOutputStream();
-    private WritableByteChannel bufferingSegmentChannel;
+    private final StagingBuffer bufferingSegmentChannel = new StagingBuffer();
+
+    private final StagingBuffer bufferingClusterChannel = new StagingBuffer();
 
-    private final ByteArrayOutputStream bufferingClusterStream = new ByteArrayOutputStream();
-    private WritableByteChannel bufferingClusterChannel;
+    //The headers of the segment being emitted, to start the next output with when rolling in the middle of it.
+    private final StagingBuffer outputHeaderChannel = new StagingBuffer();
 
 
     private final CountVisitor countVisitor;
 
-    private final WritableByteChannel outputChannel;
+    private WritableByteChannel outputChannel;
     private long emittedSegments = 0;
 
+    // fields for rolling over to the next output
+    private static final long DEFAULT_TIMECODE_SCALE = 1_000_000L;
+    private final OutputStreamFactory outputStreamFactory;
+    private int outputsCount = 0;
+    private long outputBytes = 0;
+    private long outputStartTimecode = NO_CLUSTER_TIMECODE;
+    private long timecodeScale = DEFAULT_TIMECODE_SCALE;
+
     // fields for tracking cluster and cluster durations
-    private Optional<BigInteger> lastClusterTimecode = Optional.empty();
-    private final List<Integer> clusterFrameTimeCodes = new ArrayList<>();
+    private static final long NO_CLUSTER_TIMECODE = -1;
+    private long lastClusterTimecode = NO_CLUSTER_TIMECODE;
+    //Only the number of frames and their earliest and latest timecodes are needed for the cluster duration.
+    private int clusterFrameCount = 0;
+    private int minClusterFrameTimeCode;
+    private int maxClusterFrameTimeCode;
+    //Rewritten cluster timecodes are written into this buffer, which grows to the largest timecode data size seen.
+    private ByteBuffer adjustedTimeCodeBuffer = ByteBuffer.allocate(Long.BYTES);
 
 
     public static final List<EBMLTypeInfo> DEFAULT_MASTER_ELEMENTS_TO_MERGE_ON = ImmutableList.of(
             MkvTypeInfos.TRACKS,
             MkvTypeInfos.EBML
     );
+    private static final int FRAME_TIMECODE_BYTES = 2;
     private static final ByteBuffer SEGMENT_ELEMENT_WITH_UNKNOWN_LENGTH =
             ByteBuffer.wrap(new byte[] { (byte) 0x18, (byte) 0x53, (byte) 0x80, (byte) 0x67,
                     (byte) 0x01, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF,
                     (byte) 0xFF, (byte) 0xFF });
 
-    private static final ByteBuffer VOID_ELEMENT_WITH_SIZE_ONE =
-            ByteBuffer.wrap(new byte [] { (byte) 0xEC, (byte) 0x81, (byte) 0x42 });
 
+    private OutputSegmentMerger(final OutputStream outputStream,
+            final CountVisitor countVisitor,
+            final Configuration configuration) {
+        this(outputStream, null, countVisitor, configuration);
+    }
 
     private OutputSegmentMerger(final OutputStream outputStream,
+            final OutputStreamFactory outputStreamFactory,
             final CountVisitor countVisitor,
             final Configuration configuration) {
         super(countVisitor);
@@ -110,11 +143,12 @@ public class OutputSegmentMerger extends CompositeMkvElementVisitor {
         this.countVisitor = countVisitor;
 
         this.outputStream = outputStream;
-        this.outputChannel = Channels.newChannel(this.outputStream);
-        this.bufferingSegmentChannel = Channels.newChannel(bufferingSegmentStream);
-        this.bufferingClusterChannel = Channels.newChannel(bufferingClusterStream);
-        this.collectorStates = configuration.typeInfosToMergeOn.stream()
-                .map(CollectorState::new)
+        if (outputStream != null) {
+            this.outputChannel = channelOf(outputStream);
+        }
+        this.outputStreamFactory = outputStreamFactory;
+        this.headerFingerprints = configuration.typeInfosToMergeOn.stream()
+                .map(HeaderFingerprint::new)
                 .collect(Collectors.toList());
         this.configuration = configuration;
     }
@@ -153,6 +187,35 @@ public class OutputSegmentMerger extends CompositeMkvElementVisitor {
                 .build());
     }
 
+    /**
+     * Create an OutputSegmentMerger that rolls over to a new output instead of stopping at a non matching segment.
+     * The outputs are opened when there is something to write to them, and the merger closes them when it moves on
+     * to the next one. Close the merger to close the last output.
+     *
+     * @param outputStreamFactory Opens the outputs to write the merged segments to, in order.
+     * @param configuration Configuration options for how to manage merging and when to roll over.
+     * @return an OutputSegmentMerger that can be used to split the segments from Kinesis Video into several outputs.
+     */
+    public static OutputSegmentMerger createRolling(final OutputStreamFactory outputStreamFactory,
+            final Configuration configuration) {
+        Validate.notNull(outputStreamFactory);
+        Validate.isTrue(!configuration.stopAtFirstNonMatchingSegment,
+                "A rolling merger moves on to the next output instead of stopping");
+        return new OutputSegmentMerger(null, outputStreamFactory, getCountVisitor(), configuration);
+    }
+
+    /**
+     * Opens the outputs of a rolling merger.
+     */
+    @FunctionalInterface
+    public interface OutputStreamFactory {
+        /**
+         * @param outputIndex The number of outputs opened before this one.
+         * @return The output stream to write the next output to. The merger closes it.
+         */
+        OutputStream create(int outputIndex) throws IOException;
+    }
+
     /**
      * Configuration options for modifying the behavior of the {@link OutputSegmentMerger}.
      */
@@ -181,6 +244,19 @@ public class OutputSegmentMerger extends CompositeMkvElementVisitor {
          */
         @Builder.Default
         private final List<EBMLTypeInfo> typeInfosToMergeOn = DEFAULT_MASTER_ELEMENTS_TO_MERGE_ON;
+
+        /**
+         * For rolling mergers, the size in bytes after which the next cluster goes to a new output.
+         */
+        @Builder.Default
+        private final Optional<Long> maxOutputBytes = Optional.empty();
+
+        /**
+         * For rolling mergers, the time between the first and the last cluster timecode of an output after which
+         * the next cluster goes to a new output. An output can be longer by up to the duration of its last cluster.
+         */
+        @Builder.Default
+        private final Optional<Duration> maxOutputDuration = Optional.empty();
     }
 
     private static CountVisitor getCountVisitor() {
@@ -200,11 +276,31 @@ public class OutputSegmentMerger extends CompositeMkvElementVisitor {
         return countVisitor.getCount(MkvTypeInfos.SIMPLEBLOCK);
     }
 
+    /**
+     * @return The number of outputs a rolling merger has opened so far.
+     */
+    public int getOutputsCount() {
+        return outputsCount;
+    }
+
     @Override
     public boolean isDone() {
         return MergeState.DONE == state;
     }
 
+    /**
+     * Close the current output of a rolling merger. The output stream of any other merger belongs to the caller,
+     * so it is left open.
+     */
+    @Override
+    public void close() throws IOException {
+        if (outputStreamFactory != null && outputStream != null) {
+            outputStream.close();
+            outputStream = null;
+            outputChannel = null;
+        }
+    }
+
     private class MergeVisitor extends MkvElementVisitor {
 
         @Override
@@ -235,13 +331,15 @@ public class OutputSegmentMerger extends CompositeMkvElementVisitor {
                                             state);
                                     state = MergeState.DONE;
                                 } else {
-                                    emitBufferedSegmentData(true);
-                                    resetChannels();
                                     log.info("Detected start of element {} transitioning from {} to EMITTING",
                                             startElementTypeInfo,
                                             state);
+                                    if (outputStreamFactory != null && emittedSegments >= 1) {
+                                        openNextOutput();
+                                    }
                                     state = EMITTING;
-                                    emit(startMasterElement);
+                                    emitBufferedSegmentData(startMasterElement);
+                                    resetChannels();
                                 }
                             } else {
                                 log.info("Detected start of element {} transitioning from {} to BUFFERING_CLUSTER_START",
@@ -258,7 +356,13 @@ public class OutputSegmentMerger extends CompositeMkvElementVisitor {
                         bufferAndCollect(startMasterElement);
                         break;
                     case EMITTING:
-                        emit(startMasterElement);
+                        if (MkvTypeInfos.CLUSTER.equals(startMasterElement.getElementMetaData().getTypeInfo())
+                                && shouldRollOutput()) {
+                            openNextOutput();
+                            emitOutputHeader(startMasterElement);
+                        } else {
+                            emit(startMasterElement);
+                        }
                         break;
                     case DONE:
                         log.warn("OutputSegmentMerger is already done. It will not process any more elements.");
@@ -274,8 +378,8 @@ public class OutputSegmentMerger extends CompositeMkvElementVisitor {
 
         private void wrapIOException(final IOException ie) throws MkvElementVisitException {
             String exceptionMessage = "IOException in merge visitor ";
-            if (lastClusterTimecode.isPresent()) {
-                exceptionMessage += "in or immediately after cluster with timecode "+lastClusterTimecode.get();
+            if (lastClusterTimecode != NO_CLUSTER_TIMECODE) {
+                exceptionMessage += "in or immediately after cluster with timecode "+lastClusterTimecode;
             } else {
                 exceptionMessage += "in first cluster";
             }
@@ -318,9 +422,10 @@ public class OutputSegmentMerger extends CompositeMkvElementVisitor {
                         break;
                     case BUFFERING_CLUSTER_START:
                         if (MkvTypeInfos.TIMECODE.equals(dataElement.getElementMetaData().getTypeInfo())) {
-                            final BigInteger currentTimeCode = (BigInteger) dataElement.getValueCopy().getVal();
-                            if (lastClusterTimecode.isPresent()
-                                    && currentTimeCode.compareTo(lastClusterTimecode.get()) <= 0) {
+                            final long currentTimeCode = readUnsignedInteger(dataElement);
+                            final boolean timeCodeWentBack = lastClusterTimecode != NO_CLUSTER_TIMECODE
+                                    && currentTimeCode <= lastClusterTimecode;
+                            if (timeCodeWentBack || shouldRollOutput()) {
                                 if (configuration.stopAtFirstNonMatchingSegment && emittedSegments >= 1) {
                                     log.info("Detected time code going back from {} to {}, state from {} to DONE",
                                             lastClusterTimecode,
@@ -328,15 +433,17 @@ public class OutputSegmentMerger extends CompositeMkvElementVisitor {
                                             state);
                                     state = MergeState.DONE;
                                 } else {
+                                    if (outputStreamFactory != null) {
+                                        openNextOutput();
+                                    }
                                     //emit buffered segment start
-                                    emitBufferedSegmentData(true);
+                                    emitBufferedSegmentData();
                                 }
                             }
                             if (!isDone()) {
-                                emitClusterStart();
-                                resetChannels();
                                 state = EMITTING;
-                                emitAdjustedTimeCode(dataElement);
+                                emitClusterStart(dataElement, adjustTimeCode(dataElement));
+                                resetChannels();
                             }
                         } else {
                             bufferAndCollect(dataElement);
@@ -344,7 +451,7 @@ public class OutputSegmentMerger extends CompositeMkvElementVisitor {
                         break;
                     case EMITTING:
                         if (MkvTypeInfos.TIMECODE.equals(dataElement.getElementMetaData().getTypeInfo())) {
-                            emitAdjustedTimeCode(dataElement);
+                            emit(dataElement.getIdAndSizeRawBytes(), adjustTimeCode(dataElement));
                         } else if (MkvTypeInfos.SIMPLEBLOCK.equals(dataElement.getElementMetaData().getTypeInfo())) {
                             emitFrame(dataElement);
                         } else {
@@ -367,17 +474,26 @@ public class OutputSegmentMerger extends CompositeMkvElementVisitor {
         }
     }
 
-    private void emitClusterStart() throws IOException {
-        bufferingClusterChannel.close();
-        final int numBytes = outputChannel.write(ByteBuffer.wrap(bufferingClusterStream.toByteArray()));
+    /**
+     * Write the buffered cluster start along with the timecode of the cluster that ends it.
+     */
+    private void emitClusterStart(final MkvDataElement timeCodeElement, final ByteBuffer timeCodeData)
+            throws IOException {
+        Validate.isTrue(state == EMITTING, "emitting in wrong state "+state);
+        final long numBytes = write(bufferingClusterChannel.contents(),
+                timeCodeElement.getIdAndSizeRawBytes(),
+                timeCodeData);
         log.debug("Wrote buffered cluster start data to output stream {} bytes", numBytes);
     }
 
-    private void emitAdjustedTimeCode(final MkvDataElement timeCodeElement) throws MkvElementVisitException {
+    /**
+     * @return The timecode data to emit, with the timecode changed when packing clusters.
+     */
+    private ByteBuffer adjustTimeCode(final MkvDataElement timeCodeElement) {
         if (configuration.packClusters) {
             final int dataSize = (int) timeCodeElement.getDataSize();
-            final BigInteger adjustedTimeCode;
-            if (lastClusterTimecode.isPresent()) {
+            final long adjustedTimeCode;
+            if (lastClusterTimecode != NO_CLUSTER_TIMECODE) {
                 // The timecode of the cluster should be the timecode of the previous cluster plus the previous cluster duration.
                 // c.timecode = (c-1).timecode + (c-1).duration
                 // However, neither the cluster nor the frames in the cluster have an explicit duration to use as the cluster
@@ -386,69 +502,82 @@ public class OutputSegmentMerger extends CompositeMkvElementVisitor {
                 // no frame after it to take the diff with. So, we just estimate the frame duration as the average of all
                 // the other frame durations.
 
-                // Sort cluster frame timecodes (this handles b-frames)
-                Collections.sort(clusterFrameTimeCodes);
-
-                // Get frame durations
-                final List<Integer> frameDurations = new ArrayList<>();
-                for (int i = 1; i < clusterFrameTimeCodes.size(); i++) {
-                    frameDurations.add(clusterFrameTimeCodes.get(i) - clusterFrameTimeCodes.get(i -1));
-                }
-
-                // Get average duration and add it to the other durations to account for the last frame
-                final int averageFrameDuration;
-                if (frameDurations.isEmpty()) {
-                    averageFrameDuration = 1;
+                // The differences between the sorted frame timecodes (sorted to handle b-frames) add up to the
+                // difference between the latest and the earliest timecode, so there is no need to sort them.
+                final int clusterDuration;
+                if (clusterFrameCount < 2) {
+                    clusterDuration = 1;
                 } else {
-                    averageFrameDuration = frameDurations.stream().mapToInt(Integer::intValue).sum() / frameDurations.size();
+                    final int framesSpan = maxClusterFrameTimeCode - minClusterFrameTimeCode;
+                    // Add the average duration to account for the last frame
+                    clusterDuration = framesSpan + framesSpan / (clusterFrameCount - 1);
                 }
-                frameDurations.add(averageFrameDuration);
-
-                // Sum up the frame durations to get the cluster duration
-                final int clusterDuration = frameDurations.stream().mapToInt(Integer::intValue).sum();
 
                 // Add duration to the previous cluster timecode
-                adjustedTimeCode = lastClusterTimecode.get().add(BigInteger.valueOf(clusterDuration));
+                adjustedTimeCode = lastClusterTimecode + clusterDuration;
             } else {
 
                 // For the first cluster set the timecode to 0
-                adjustedTimeCode = BigInteger.valueOf(0L);
+                adjustedTimeCode = 0L;
             }
 
             // When replacing the cluster timecode value, we want to use the same size data value so that parent element
-            // sizes are not impacted.
-            final byte[] newDataBytes = adjustedTimeCode.toByteArray();
-            Validate.isTrue(dataSize >= newDataBytes.length,
+            // sizes are not impacted. The timecode needs a byte more than its significant bits, as a positive two's
+            // complement number would.
+            final int timeCodeBytes = (Long.SIZE - Long.numberOfLeadingZeros(adjustedTimeCode)) / Byte.SIZE + 1;
+            Validate.isTrue(dataSize >= timeCodeBytes,
                     "Adjusted timecode is not compatible with the existing data size");
-            final ByteBuffer newDataBuffer = ByteBuffer.allocate(dataSize);
-            newDataBuffer.position(dataSize - newDataBytes.length);
-            newDataBuffer.put(newDataBytes);
-            newDataBuffer.rewind();
-
-            final MkvDataElement adjustedTimeCodeElement = MkvDataElement.builder()
-                    .idAndSizeRawBytes(timeCodeElement.getIdAndSizeRawBytes())
-                    .elementMetaData(timeCodeElement.getElementMetaData())
-                    .elementPath(timeCodeElement.getElementPath())
-                    .dataSize(timeCodeElement.getDataSize())
-                    .dataBuffer(newDataBuffer)
-                    .build();
-            emit(adjustedTimeCodeElement);
-            lastClusterTimecode = Optional.of(adjustedTimeCode);
+            if (adjustedTimeCodeBuffer.capacity() < dataSize) {
+                adjustedTimeCodeBuffer = ByteBuffer.allocate(dataSize);
+            }
+            adjustedTimeCodeBuffer.clear().limit(dataSize);
+            for (int i = 0; i < dataSize; i++) {
+                final int shift = (dataSize - 1 - i) * Byte.SIZE;
+                adjustedTimeCodeBuffer.put(i, shift < Long.SIZE ? (byte) (adjustedTimeCode >>> shift) : 0);
+            }
+            lastClusterTimecode = adjustedTimeCode;
+            startOutputAt(adjustedTimeCode);
 
             // Since we are at the start of a new cluster, reset the frame state from the previous cluster.
             // Note: this could also be done directly on the "cluster start" event, but resetting the values here because
             // they are currently only used for cluster packing, so keeping cluster packing code together.
-            clusterFrameTimeCodes.clear();
+            clusterFrameCount = 0;
+            return adjustedTimeCodeBuffer;
         } else {
-            emit(timeCodeElement);
-            lastClusterTimecode = Optional.of((BigInteger) timeCodeElement.getValueCopy().getVal());
+            lastClusterTimecode = readUnsignedInteger(timeCodeElement);
+            startOutputAt(lastClusterTimecode);
+            return timeCodeElement.getDataBuffer();
         }
     }
 
+    /**
+     * Read an unsigned integer, such as the timecode of a cluster, straight from the data buffer of its element.
+     */
+    private static long readUnsignedInteger(final MkvDataElement timeCodeElement) {
+        final ByteBuffer dataBuffer = timeCodeElement.getDataBuffer();
+        long timeCode = 0;
+        for (int i = 0; i < timeCodeElement.getDataSize(); i++) {
+            timeCode = (timeCode << Byte.SIZE) | (dataBuffer.get(i) & 0xFF);
+        }
+        return timeCode;
+    }
+
     private void emitFrame(final MkvDataElement simpleBlockElement) throws MkvElementVisitException {
         if (configuration.packClusters) {
-            final Frame frame = (Frame) simpleBlockElement.getValueCopy().getVal();
-            clusterFrameTimeCodes.add(frame.getTimeCode());
+            //Read the timecode of the frame, after its track number, without parsing the rest of the frame.
+            final ByteBuffer dataBuffer = simpleBlockElement.getDataBuffer();
+            dataBuffer.rewind();
+            EBMLUtils.readEbmlInt(dataBuffer);
+            final int frameTimeCode = (int) EBMLUtils.readDataSignedInteger(dataBuffer, FRAME_TIMECODE_BYTES);
+            dataBuffer.rewind();
+            if (clusterFrameCount == 0) {
+                minClusterFrameTimeCode = frameTimeCode;
+                maxClusterFrameTimeCode = frameTimeCode;
+            } else {
+                minClusterFrameTimeCode = Math.min(minClusterFrameTimeCode, frameTimeCode);
+                maxClusterFrameTimeCode = Math.max(maxClusterFrameTimeCode, frameTimeCode);
+            }
+            clusterFrameCount++;
         }
         emit(simpleBlockElement);
     }
@@ -459,7 +588,8 @@ public class OutputSegmentMerger extends CompositeMkvElementVisitor {
                 "Trying to buffer in wrong state " + state);
         //Buffer and collect
         if (MergeState.BUFFERING_SEGMENT == state) {
-            if (!collectorStates.isEmpty() && MkvTypeInfos.SEGMENT.equals(startMasterElement.getElementMetaData()
+            //A rolling merger also changes the length of the segment when it splits it across outputs.
+            if ((!headerFingerprints.isEmpty() || outputStreamFactory != null) && MkvTypeInfos.SEGMENT.equals(startMasterElement.getElementMetaData()
                     .getTypeInfo()) && !startMasterElement.isUnknownLength()) {
                 //if the start master element belongs to a segment that has a defined length,
                 //change it to one with an unknown length since we will be changing the length of the segment
@@ -472,18 +602,21 @@ public class OutputSegmentMerger extends CompositeMkvElementVisitor {
         } else {
             startMasterElement.writeToChannel(bufferingClusterChannel);
         }
-        this.sendElementToAllCollectors(startMasterElement);
+        this.sendElementToAllFingerprints(startMasterElement);
     }
 
     private void bufferAndCollect(final MkvDataElement dataElement) throws MkvElementVisitException {
         Validate.isTrue(state == MergeState.BUFFERING_SEGMENT || state == MergeState.BUFFERING_CLUSTER_START,
                 "Trying to buffer in wrong state " + state);
         if (MergeState.BUFFERING_SEGMENT == state) {
+            if (MkvTypeInfos.TIMECODESCALE.equals(dataElement.getElementMetaData().getTypeInfo())) {
+                timecodeScale = readUnsignedInteger(dataElement);
+            }
             writeToChannel(bufferingSegmentChannel, dataElement);
         } else {
             writeToChannel(bufferingClusterChannel, dataElement);
         }
-        this.sendElementToAllCollectors(dataElement);
+        this.sendElementToAllFingerprints(dataElement);
     }
 
     private static void writeToChannel(final WritableByteChannel byteChannel, final MkvDataElement dataElement) throws MkvElementVisitException {
@@ -491,85 +624,304 @@ public class OutputSegmentMerger extends CompositeMkvElementVisitor {
     }
 
     private void emit(final MkvStartMasterElement startMasterElement) throws MkvElementVisitException {
-        Validate.isTrue(state == EMITTING, "emitting in wrong state "+state);
-        startMasterElement.writeToChannel(outputChannel);
+        emit(startMasterElement.getIdAndSizeRawBytes(), null);
     }
 
     private void emit(final MkvDataElement dataElement) throws MkvElementVisitException {
+        emit(dataElement.getIdAndSizeRawBytes(), dataElement.getDataBuffer());
+    }
+
+    private void emit(final ByteBuffer idAndSizeRawBytes, final ByteBuffer dataBuffer) throws MkvElementVisitException {
         Validate.isTrue(state == EMITTING, "emitting in wrong state "+state);
-        dataElement.writeToChannel(outputChannel);
+        try {
+            write(idAndSizeRawBytes, dataBuffer);
+        } catch (final IOException e) {
+            throw new MkvElementVisitException("Writing to output channel failed", e);
+        }
     }
 
     private void collect(final MkvEndMasterElement endMasterElement) throws MkvElementVisitException {
-        //only trigger collectors since endelements do not have any data to buffer.
-        this.sendElementToAllCollectors(endMasterElement);
+        //only trigger fingerprints since endelements do not have any data to buffer.
+        this.sendElementToAllFingerprints(endMasterElement);
     }
 
-    private void sendElementToAllCollectors(final MkvElement dataElement) throws MkvElementVisitException {
-        for (final CollectorState cs : collectorStates) {
-            dataElement.accept(cs.getCollector());
+    private void sendElementToAllFingerprints(final MkvElement element) throws MkvElementVisitException {
+        for (final HeaderFingerprint headerFingerprint : headerFingerprints) {
+            element.accept(headerFingerprint);
         }
     }
 
-    private void emitBufferedSegmentData(final boolean shouldEmitSegmentData) throws IOException {
-        bufferingSegmentChannel.close();
+    private void emitBufferedSegmentData() throws IOException {
+        retainOutputHeader();
+        final long numBytes = write(bufferingSegmentChannel.contents());
+        log.debug("Wrote buffered header data to output stream {} bytes", numBytes);
+        emittedSegments++;
+    }
 
-        if (shouldEmitSegmentData) {
-            final int numBytes = outputChannel.write(ByteBuffer.wrap(bufferingSegmentStream.toByteArray()));
-            log.debug("Wrote buffered header data to output stream {} bytes",numBytes);
-            emittedSegments++;
-        } else {
-            //We can merge the segments, so we dont need to write the buffered headers
-            // However, we still need to introduce a dummy void element to prevent consumers
-            //getting confused by two consecutive elements of the same type.
-            VOID_ELEMENT_WITH_SIZE_ONE.rewind();
-            outputChannel.write(VOID_ELEMENT_WITH_SIZE_ONE);
+    /**
+     * Write the buffered headers along with the start of the element that ends them.
+     */
+    private void emitBufferedSegmentData(final MkvStartMasterElement startMasterElement) throws IOException {
+        Validate.isTrue(state == EMITTING, "emitting in wrong state "+state);
+        retainOutputHeader();
+        final long numBytes = write(bufferingSegmentChannel.contents(), startMasterElement.getIdAndSizeRawBytes());
+        log.debug("Wrote buffered header data to output stream {} bytes", numBytes);
+        emittedSegments++;
+    }
+
+    /**
+     * Start a new output in the middle of a segment with the headers of the segment, followed by the cluster start.
+     */
+    private void emitOutputHeader(final MkvStartMasterElement clusterStartElement) throws IOException {
+        Validate.isTrue(state == EMITTING, "emitting in wrong state "+state);
+        final long numBytes = write(outputHeaderChannel.contents(), clusterStartElement.getIdAndSizeRawBytes());
+        log.debug("Wrote segment header data to new output {} bytes", numBytes);
+    }
+
+    private void retainOutputHeader() {
+        if (outputStreamFactory != null) {
+            outputHeaderChannel.clear();
+            outputHeaderChannel.write(bufferingSegmentChannel.contents());
         }
     }
 
-    private void resetChannels() {
-        bufferingSegmentStream.reset();
-        bufferingSegmentChannel = Channels.newChannel(bufferingSegmentStream);
+    private boolean shouldRollOutput() {
+        //Every output gets at least one cluster.
+        if (outputStreamFactory == null || outputStartTimecode == NO_CLUSTER_TIMECODE) {
+            return false;
+        }
+        if (configuration.maxOutputBytes.isPresent() && outputBytes >= configuration.maxOutputBytes.get()) {
+            return true;
+        }
+        return configuration.maxOutputDuration.isPresent()
+                && lastClusterTimecode != NO_CLUSTER_TIMECODE
+                && (lastClusterTimecode - outputStartTimecode) * timecodeScale
+                    >= configuration.maxOutputDuration.get().toNanos();
+    }
+
+    /**
+     * Close the current output, if any, and open the next one. Cluster timecodes start over in the new output, so
+     * packed clusters start at 0 again.
+     */
+    private void openNextOutput() throws IOException {
+        close();
+        log.info("Opening output {}", outputsCount);
+        outputStream = outputStreamFactory.create(outputsCount++);
+        outputChannel = channelOf(outputStream);
+        outputBytes = 0;
+        outputStartTimecode = NO_CLUSTER_TIMECODE;
+        lastClusterTimecode = NO_CLUSTER_TIMECODE;
+        clusterFrameCount = 0;
+    }
+
+    /**
+     * Remember the first cluster timecode of the current output.
+     */
+    private void startOutputAt(final long clusterTimecode) {
+        if (outputStartTimecode == NO_CLUSTER_TIMECODE) {
+            outputStartTimecode = clusterTimecode;
+        }
+    }
 
-        bufferingClusterStream.reset();
-        bufferingClusterChannel = Channels.newChannel(bufferingClusterStream);
+    private static WritableByteChannel channelOf(final OutputStream outputStream) {
+        //File streams, such as stdout, have a channel that supports gathering writes.
+        if (outputStream instanceof FileOutputStream) {
+            return ((FileOutputStream) outputStream).getChannel();
+        }
+        return Channels.newChannel(outputStream);
+    }
+
+    /**
+     * Write all the buffers from the start, in one gathering write if the output channel supports it.
+     * Null buffers are skipped. The buffers are rewound again afterwards, as elements expect.
+     */
+    private long write(final ByteBuffer... buffers) throws IOException {
+        if (outputChannel == null) {
+            openNextOutput();
+        }
+        long numBytes = 0;
+        int count = 0;
+        for (final ByteBuffer buffer : buffers) {
+            if (buffer != null) {
+                buffer.rewind();
+                numBytes += buffer.remaining();
+                buffers[count++] = buffer;
+            }
+        }
+        try {
+            if (outputChannel instanceof GatheringByteChannel) {
+                long remaining = numBytes;
+                while (remaining > 0) {
+                    remaining -= ((GatheringByteChannel) outputChannel).write(buffers, 0, count);
+                }
+            } else {
+                for (int i = 0; i < count; i++) {
+                    while (buffers[i].hasRemaining()) {
+                        outputChannel.write(buffers[i]);
+                    }
+                }
+            }
+        } finally {
+            for (int i = 0; i < count; i++) {
+                buffers[i].rewind();
+            }
+        }
+        outputBytes += numBytes;
+        return numBytes;
+    }
+
+    private void resetChannels() {
+        bufferingSegmentChannel.clear();
+        bufferingClusterChannel.clear();
     }
 
     private boolean shouldEmitBufferedSegmentData() {
-        boolean doAllCollectorsMatchPreviousResults = false;
-        if (!collectorStates.isEmpty()) {
-            doAllCollectorsMatchPreviousResults =
-                    collectorStates.stream().allMatch(CollectorState::doCurrentAndOldResultsMatch);
+        boolean doAllFingerprintsMatchPreviousSegment = false;
+        if (!headerFingerprints.isEmpty()) {
+            doAllFingerprintsMatchPreviousSegment =
+                    headerFingerprints.stream().allMatch(HeaderFingerprint::matchesPreviousSegment);
         }
-        log.info("Number of collectors {}. Did all collectors match previous results: {} ",
-                collectorStates.size(),
-                doAllCollectorsMatchPreviousResults);
-        return !doAllCollectorsMatchPreviousResults;
+        log.info("Number of header fingerprints {}. Did all fingerprints match the previous segment: {} ",
+                headerFingerprints.size(),
+                doAllFingerprintsMatchPreviousSegment);
+        return !doAllFingerprintsMatchPreviousSegment;
     }
 
     private void resetCollectors() {
-        collectorStates.forEach(CollectorState::reset);
+        headerFingerprints.forEach(HeaderFingerprint::reset);
+    }
+
+    /**
+     * Growable direct buffer that elements are written to while the merger buffers them. It is cleared and reused
+     * for every segment, and its contents are written to the output without another copy.
+     */
+    private static class StagingBuffer implements WritableByteChannel {
+        private static final int INITIAL_CAPACITY = 4096;
+        private ByteBuffer buffer = ByteBuffer.allocateDirect(INITIAL_CAPACITY);
+
+        @Override
+        public int write(final ByteBuffer src) {
+            final int numBytes = src.remaining();
+            if (buffer.remaining() < numBytes) {
+                int capacity = buffer.capacity();
+                while (capacity - buffer.position() < numBytes) {
+                    capacity *= 2;
+                }
+                final ByteBuffer grown = ByteBuffer.allocateDirect(capacity);
+                buffer.flip();
+                grown.put(buffer);
+                buffer = grown;
+            }
+            buffer.put(src);
+            return numBytes;
+        }
+
+        /**
+         * @return A view of the bytes written since the buffer was last cleared.
+         */
+        ByteBuffer contents() {
+            return buffer.duplicate().flip();
+        }
+
+        void clear() {
+            buffer.clear();
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
     }
 
-    private static class CollectorState {
+    /**
+     * Digest of a master element and its children in the headers of a segment. It is compared with the digest of the
+     * previous segment, so no copies of the elements are kept around for the comparison.
+     * Like {@link MkvElement#equivalent(MkvElement)}, it takes in the type and size of every element and the data that
+     * the value of a data element is read from, but not the raw bytes of ids and sizes, so a size encoded in more bytes
+     * than needed still matches.
+     */
+    private static class HeaderFingerprint extends MkvElementVisitor {
+        private static final byte START_OF_MASTER_ELEMENT = 1;
+        private static final byte END_OF_MASTER_ELEMENT = 2;
+        private static final byte DATA_ELEMENT = 3;
+
         @Getter
         private final EBMLTypeInfo parentTypeInfo;
-        @Getter
-        private final MkvChildElementCollector collector;
-        private List<MkvElement> previousResult = new ArrayList<>();
-
-        public CollectorState(final EBMLTypeInfo parentTypeInfo) {
+        private final MessageDigest digest;
+        private final ByteBuffer typeAndSize = ByteBuffer.allocate(1 + Integer.BYTES + Long.BYTES);
+        private byte[] previousSegment;
+        private byte[] currentSegment;
+
+        HeaderFingerprint(final EBMLTypeInfo parentTypeInfo) {
+            Validate.isTrue(parentTypeInfo.getType().equals(EBMLTypeInfo.TYPE.MASTER),
+                    "Header fingerprints can only be taken of master elements");
             this.parentTypeInfo = parentTypeInfo;
-            this.collector = new MkvChildElementCollector(parentTypeInfo);
+            try {
+                this.digest = MessageDigest.getInstance("SHA-256");
+            } catch (final NoSuchAlgorithmException e) {
+                throw new IllegalStateException("SHA-256 is not available", e);
+            }
+            //As if the previous segment did not have the element either.
+            this.previousSegment = digest.digest();
+        }
+
+        @Override
+        public void visit(final MkvStartMasterElement startMasterElement) {
+            if (isParentType(startMasterElement) || isChild(startMasterElement)) {
+                update(START_OF_MASTER_ELEMENT, startMasterElement, startMasterElement.getDataSize());
+            }
+        }
+
+        @Override
+        public void visit(final MkvEndMasterElement endMasterElement) {
+            if (isParentType(endMasterElement) || isChild(endMasterElement)) {
+                update(END_OF_MASTER_ELEMENT, endMasterElement, 0);
+            }
+        }
+
+        @Override
+        public void visit(final MkvDataElement dataElement) {
+            if (isChild(dataElement)) {
+                update(DATA_ELEMENT, dataElement, dataElement.getDataSize());
+                final ByteBuffer data = dataElement.getDataBuffer().duplicate();
+                data.rewind();
+                digest.update(data);
+            }
+        }
+
+        private void update(final byte kind, final MkvElement element, final long dataSize) {
+            typeAndSize.clear();
+            typeAndSize.put(kind)
+                    .putInt(element.getElementMetaData().getTypeInfo().getId())
+                    .putLong(dataSize)
+                    .flip();
+            digest.update(typeAndSize);
+        }
+
+        boolean matchesPreviousSegment() {
+            if (currentSegment == null) {
+                currentSegment = digest.digest();
+            }
+            return Arrays.equals(currentSegment, previousSegment);
+        }
+
+        void reset() {
+            previousSegment = currentSegment != null ? currentSegment : digest.digest();
+            currentSegment = null;
+            digest.reset();
         }
 
-        public void reset() {
-            previousResult = collector.copyOfCollection();
-            collector.clearCollection();
+        private boolean isParentType(final MkvElement element) {
+            return element.getElementMetaData().getTypeInfo().equals(parentTypeInfo);
         }
 
-        boolean doCurrentAndOldResultsMatch() {
-            return collector.equivalent(previousResult);
+        private boolean isChild(final MkvElement element) {
+            return element.getElementPath().size() > parentTypeInfo.getLevel()
+                    && element.getElementPath().get(parentTypeInfo.getLevel()).getTypeInfo().equals(parentTypeInfo);
         }
     }
 }
@@ -0,0 +1,27 @@
+/*
+Copyright 2017-2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License").
+You may not use this file except in compliance with the License.
+A copy of the License is located at
+
+   http://aws.amazon.com/apache2.0/
+
+or in the "license" file accompanying this file.
+This file is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and limitations under the License.
+*/
+package com.amazonaws.kinesisvideo.parser.utilities;
+
+import com.amazonaws.kinesisvideo.parser.mkv.Frame;
+
+/**
+ * A frame processor that can also be fed frames only so that later frames can reference them, which is what an
+ * {@link H264FrameSampler} hands the frames it does not sample but needs to a decoder.
+ */
+public interface ReferenceFrameDecoder extends FrameVisitor.FrameProcessor {
+    /**
+     * Feed a frame that later frames depend on, without producing an image for it.
+     */
+    void decodeReferenceFrame(Frame frame, MkvTrackMetadata trackMetadata);
+}
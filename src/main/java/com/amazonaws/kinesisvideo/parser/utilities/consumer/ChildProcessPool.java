@@ -0,0 +1,268 @@
+/*
+Copyright 2017-2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License").
+You may not use this file except in compliance with the License.
+A copy of the License is located at
+
+   http://aws.amazon.com/apache2.0/
+
+or in the "license" file accompanying this file.
+This file is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and limitations under the License.
+*/
+package com.amazonaws.kinesisvideo.parser.utilities.consumer;
+
+import lombok.Builder;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.Validate;
+
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.time.Duration;
+import java.util.Deque;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of warm child processes, such as transcoders, that are handed one job after another instead of being started
+ * for every job.
+ *
+ * A job is sent to the stdin of a child as a sequence of frames, each a 4 byte big endian length followed by that many
+ * bytes. A frame of length 0 ends the job, after which the child should be ready for the next one. Closing the stdin of
+ * a child asks it to exit. Children that speak this protocol can be as simple as a wrapper that starts reading a new
+ * input on every job.
+ *
+ * A child is checked to be alive before it is handed out, and a child whose stdin fails is destroyed. A child is
+ * recycled after maxJobsPerProcess jobs: its stdin is closed and it is destroyed if it has not exited after
+ * exitTimeout. Up to maxProcesses children run at once; starting a job blocks until one is free.
+ *
+ * This class is thread safe.
+ */
+@Slf4j
+public class ChildProcessPool implements Closeable {
+    private static final int DEFAULT_MAX_PROCESSES = 1;
+    private static final int DEFAULT_MAX_JOBS_PER_PROCESS = 1000;
+    private static final Duration DEFAULT_EXIT_TIMEOUT = Duration.ofSeconds(5);
+    private static final int END_OF_JOB = 0;
+
+    private final ProcessBuilder processBuilder;
+    @Getter
+    private final int maxProcesses;
+    @Getter
+    private final int maxJobsPerProcess;
+    @Getter
+    private final Duration exitTimeout;
+
+    private final Semaphore freeProcesses;
+    private final Deque<PooledProcess> idleProcesses = new ConcurrentLinkedDeque<>();
+    private final AtomicInteger startedProcesses = new AtomicInteger();
+    private volatile boolean closed;
+
+    @Builder
+    private ChildProcessPool(final ProcessBuilder processBuilder,
+            final Integer maxProcesses,
+            final Integer maxJobsPerProcess,
+            final Duration exitTimeout) {
+        Validate.notNull(processBuilder, "processBuilder is required");
+        this.processBuilder = processBuilder;
+        this.maxProcesses = maxProcesses != null ? maxProcesses : DEFAULT_MAX_PROCESSES;
+        this.maxJobsPerProcess = maxJobsPerProcess != null ? maxJobsPerProcess : DEFAULT_MAX_JOBS_PER_PROCESS;
+        this.exitTimeout = exitTimeout != null ? exitTimeout : DEFAULT_EXIT_TIMEOUT;
+        Validate.isTrue(this.maxProcesses > 0, "maxProcesses should be positive");
+        Validate.isTrue(this.maxJobsPerProcess > 0, "maxJobsPerProcess should be positive");
+        this.freeProcesses = new Semaphore(this.maxProcesses, true);
+    }
+
+    /**
+     * Start the children up front, so that the first jobs do not wait for them to start.
+     * Call it before starting any jobs.
+     */
+    public void prestart() throws IOException {
+        final int notStarted = freeProcesses.availablePermits() - idleProcesses.size();
+        for (int i = 0; i < notStarted; i++) {
+            idleProcesses.offerLast(start());
+        }
+    }
+
+    /**
+     * Start a job on a free child, waiting for one if they are all busy.
+     * @return The stream to write the job to. Closing it ends the job and gives the child back to the pool.
+     */
+    public JobOutputStream startJob() throws IOException {
+        Validate.isTrue(!closed, "The pool is closed");
+        try {
+            freeProcesses.acquire();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a child process");
+        }
+        try {
+            PooledProcess pooledProcess = idleProcesses.pollFirst();
+            while (pooledProcess != null && !pooledProcess.process.isAlive()) {
+                log.warn("Child process {} exited with {}, replacing it",
+                        pooledProcess.process.pid(),
+                        pooledProcess.process.exitValue());
+                pooledProcess = idleProcesses.pollFirst();
+            }
+            if (pooledProcess == null) {
+                pooledProcess = start();
+            }
+            pooledProcess.jobs++;
+            return new JobOutputStream(pooledProcess);
+        } catch (final IOException | RuntimeException e) {
+            freeProcesses.release();
+            throw e;
+        }
+    }
+
+    /**
+     * @return The number of children started so far, including the ones that have been recycled since.
+     */
+    public int getStartedProcesses() {
+        return startedProcesses.get();
+    }
+
+    /**
+     * Ask the idle children to exit. Children that are running a job exit once the job ends.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        PooledProcess pooledProcess;
+        while ((pooledProcess = idleProcesses.pollFirst()) != null) {
+            retire(pooledProcess);
+        }
+    }
+
+    private PooledProcess start() throws IOException {
+        final Process process = processBuilder.start();
+        startedProcesses.incrementAndGet();
+        log.info("Started child process {}", process.pid());
+        return new PooledProcess(process);
+    }
+
+    private void release(final PooledProcess pooledProcess, final boolean healthy) {
+        try {
+            if (!healthy) {
+                log.warn("Destroying child process {} after a failed job", pooledProcess.process.pid());
+                pooledProcess.process.destroyForcibly();
+            } else if (closed || pooledProcess.jobs >= maxJobsPerProcess || !pooledProcess.process.isAlive()) {
+                retire(pooledProcess);
+            } else {
+                idleProcesses.offerFirst(pooledProcess);
+            }
+        } finally {
+            freeProcesses.release();
+        }
+    }
+
+    private void retire(final PooledProcess pooledProcess) {
+        log.info("Recycling child process {} after {} jobs", pooledProcess.process.pid(), pooledProcess.jobs);
+        try {
+            pooledProcess.stdin.close();
+        } catch (final IOException e) {
+            log.debug("Closing the stdin of child process {} failed", pooledProcess.process.pid(), e);
+        }
+        pooledProcess.process.onExit()
+                .completeOnTimeout(pooledProcess.process, exitTimeout.toMillis(), TimeUnit.MILLISECONDS)
+                .thenAccept(Process::destroyForcibly);
+    }
+
+    private static class PooledProcess {
+        private final Process process;
+        private final DataOutputStream stdin;
+        private int jobs;
+
+        PooledProcess(final Process process) {
+            this.process = process;
+            this.stdin = new DataOutputStream(process.getOutputStream());
+        }
+    }
+
+    /**
+     * The stream a job is written to. Every write is sent to the child as a frame.
+     */
+    public class JobOutputStream extends OutputStream {
+        private final PooledProcess pooledProcess;
+        private boolean healthy = true;
+        private boolean ended;
+
+        private JobOutputStream(final PooledProcess pooledProcess) {
+            this.pooledProcess = pooledProcess;
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            Validate.isTrue(!ended, "The job has ended");
+            if (len == 0) {
+                return;
+            }
+            try {
+                pooledProcess.stdin.writeInt(len);
+                pooledProcess.stdin.write(b, off, len);
+            } catch (final IOException e) {
+                healthy = false;
+                throw e;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            try {
+                pooledProcess.stdin.flush();
+            } catch (final IOException e) {
+                healthy = false;
+                throw e;
+            }
+        }
+
+        /**
+         * End a job that was cut short. The child is destroyed rather than told the job ended, since it could not
+         * tell the partial job from a complete one.
+         */
+        public void abort() {
+            healthy = false;
+            end();
+        }
+
+        /**
+         * End the job and give the child back to the pool.
+         */
+        @Override
+        public void close() throws IOException {
+            if (ended) {
+                return;
+            }
+            try {
+                if (healthy) {
+                    pooledProcess.stdin.writeInt(END_OF_JOB);
+                    pooledProcess.stdin.flush();
+                }
+            } catch (final IOException e) {
+                healthy = false;
+                throw e;
+            } finally {
+                end();
+            }
+        }
+
+        private void end() {
+            if (!ended) {
+                ended = true;
+                release(pooledProcess, healthy);
+            }
+        }
+    }
+}
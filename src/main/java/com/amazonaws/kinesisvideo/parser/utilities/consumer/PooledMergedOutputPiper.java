@@ -0,0 +1,82 @@
+/*
+Copyright 2017-2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License").
+You may not use this file except in compliance with the License.
+A copy of the License is located at
+
+   http://aws.amazon.com/apache2.0/
+
+or in the "license" file accompanying this file.
+This file is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and limitations under the License.
+*/
+package com.amazonaws.kinesisvideo.parser.utilities.consumer;
+
+import com.amazonaws.kinesisvideo.parser.mkv.MkvElementVisitException;
+import com.amazonaws.kinesisvideo.parser.utilities.OutputSegmentMerger;
+import lombok.RequiredArgsConstructor;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * This class merges consecutive mkv streams and pipes the merged streams to warm child processes from a
+ * {@link ChildProcessPool}, one job per merged stream.
+ * Unlike {@link MergedOutputPiper}, it does not stop at a non-matching mkv stream. It ends the job there and goes on
+ * with the next merged stream as a new job, on whichever child is free, without restarting a child or re-reading the
+ * stream. The configuration can also end jobs after a size or duration, see {@link OutputSegmentMerger.Configuration}.
+ */
+@RequiredArgsConstructor
+public class PooledMergedOutputPiper extends GetMediaResponseStreamConsumer {
+    private final ChildProcessPool childProcessPool;
+    private final OutputSegmentMerger.Configuration configuration;
+
+    private OutputSegmentMerger merger;
+    private ChildProcessPool.JobOutputStream currentJob;
+
+    @Override
+    public void process(final InputStream inputStream, FragmentMetadataCallback endOfFragmentCallback)
+            throws MkvElementVisitException, IOException {
+        merger = OutputSegmentMerger.createRolling(outputIndex -> {
+            currentJob = childProcessPool.startJob();
+            return currentJob;
+        }, configuration);
+        try {
+            processWithFragmentEndCallbacks(inputStream, endOfFragmentCallback, merger);
+        } catch (final MkvElementVisitException | RuntimeException e) {
+            abortCurrentJob();
+            throw e;
+        } finally {
+            merger.close();
+        }
+    }
+
+    /**
+     * @return The number of segments that were read by the piper, all of which went to one job or another.
+     */
+    public int getMergedSegments() {
+        return merger.getSegmentsCount();
+    }
+
+    /**
+     * @return The number of jobs the merged segments were piped to.
+     */
+    public int getJobsCount() {
+        return merger.getOutputsCount();
+    }
+
+    /**
+     * A job that is still running when the piper is closed did not get all of its stream, so its child is destroyed.
+     */
+    @Override
+    public void close() {
+        abortCurrentJob();
+    }
+
+    private void abortCurrentJob() {
+        if (currentJob != null) {
+            currentJob.abort();
+        }
+    }
+}
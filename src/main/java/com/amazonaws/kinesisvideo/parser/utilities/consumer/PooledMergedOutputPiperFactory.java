@@ -0,0 +1,47 @@
+/*
+Copyright 2017-2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License").
+You may not use this file except in compliance with the License.
+A copy of the License is located at
+
+   http://aws.amazon.com/apache2.0/
+
+or in the "license" file accompanying this file.
+This file is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and limitations under the License.
+*/
+package com.amazonaws.kinesisvideo.parser.utilities.consumer;
+
+import com.amazonaws.kinesisvideo.parser.utilities.OutputSegmentMerger;
+
+import java.io.Closeable;
+
+/**
+ * This factory class creates PooledMergedOutputPiper consumers that share the child processes of a
+ * {@link ChildProcessPool}. Closing the factory closes the pool.
+ */
+public class PooledMergedOutputPiperFactory extends GetMediaResponseStreamConsumerFactory implements Closeable {
+    private final ChildProcessPool childProcessPool;
+    private final OutputSegmentMerger.Configuration configuration;
+
+    public PooledMergedOutputPiperFactory(ChildProcessPool childProcessPool) {
+        this(childProcessPool, OutputSegmentMerger.Configuration.builder().build());
+    }
+
+    public PooledMergedOutputPiperFactory(ChildProcessPool childProcessPool,
+            OutputSegmentMerger.Configuration configuration) {
+        this.childProcessPool = childProcessPool;
+        this.configuration = configuration;
+    }
+
+    @Override
+    public GetMediaResponseStreamConsumer createConsumer() {
+        return new PooledMergedOutputPiper(childProcessPool, configuration);
+    }
+
+    @Override
+    public void close() {
+        childProcessPool.close();
+    }
+}
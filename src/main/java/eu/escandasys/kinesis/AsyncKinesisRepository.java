@@ -0,0 +1,108 @@
+package eu.escandasys.kinesis;
+
+import java.time.Instant;
+import java.util.Collection;
+import java.util.Optional;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+import org.jboss.logging.Logger;
+
+import com.amazonaws.kinesisvideo.parser.ebml.PublisherParserByteSource;
+import com.amazonaws.kinesisvideo.parser.mkv.MkvElement;
+import com.amazonaws.kinesisvideo.parser.mkv.ReadBufferPool;
+import com.amazonaws.kinesisvideo.parser.mkv.StreamingMkvReader;
+import software.amazon.awssdk.core.async.AsyncResponseTransformer;
+import software.amazon.awssdk.core.async.ResponsePublisher;
+import software.amazon.awssdk.http.SdkHttpClient;
+import software.amazon.awssdk.http.async.SdkAsyncHttpClient;
+import software.amazon.awssdk.services.kinesisvideo.KinesisVideoClient;
+import software.amazon.awssdk.services.kinesisvideo.model.StreamInfo;
+import software.amazon.awssdk.services.kinesisvideomedia.KinesisVideoMediaAsyncClient;
+import software.amazon.awssdk.services.kinesisvideomedia.endpoints.KinesisVideoMediaEndpointProvider;
+import software.amazon.awssdk.services.kinesisvideomedia.model.GetMediaRequest;
+import software.amazon.awssdk.services.kinesisvideomedia.model.GetMediaResponse;
+import software.amazon.awssdk.services.kinesisvideomedia.model.StartSelector;
+
+/**
+ * Repository that reads GetMedia responses with the asynchronous media client. The response body is pushed by the
+ * event loop of the async HTTP client into a {@link PublisherParserByteSource}, which only asks for more chunks as the
+ * parser drains them, so many streams share the event loop threads instead of blocking one thread each on a socket.
+ * Control plane calls go through the blocking client, and the media clients use its region and credentials.
+ */
+public class AsyncKinesisRepository implements KinesisRepository {
+    private static final Logger log = Logger.getLogger(AsyncKinesisRepository.class);
+
+    private final KinesisVideoDirectory directory;
+    private final MediaClientPool<KinesisVideoMediaAsyncClient> mediaClients;
+    private final ReadBufferPool readBufferPool = ReadBufferPool.builder().build();
+
+    public AsyncKinesisRepository(SdkHttpClient httpClient, SdkAsyncHttpClient asyncHttpClient,
+            Supplier<Instant> timestampSupplier) {
+        this(KinesisVideoClient.builder()
+                .httpClient(httpClient)
+                .build(), asyncHttpClient, timestampSupplier);
+    }
+
+    public AsyncKinesisRepository(KinesisVideoClient videoClient, SdkAsyncHttpClient asyncHttpClient,
+            Supplier<Instant> timestampSupplier) {
+        this.directory = new KinesisVideoDirectory(videoClient, timestampSupplier);
+        final var videoClientConfiguration = videoClient.serviceClientConfiguration();
+        this.mediaClients = new MediaClientPool<>(dataEndpoint -> KinesisVideoMediaAsyncClient.builder()
+            .endpointOverride(dataEndpoint)
+            .endpointProvider(KinesisVideoMediaEndpointProvider.defaultProvider())
+            .region(videoClientConfiguration.region())
+            .credentialsProvider(videoClientConfiguration.credentialsProvider())
+            .httpClient(asyncHttpClient)
+            .build());
+    }
+
+    @Override
+    public ClosingIterator<MkvElement> getMedia(StartSelector startSelector, String streamName, String streamARN, boolean keyFramesOnly) {
+        final KinesisVideoMediaAsyncClient kinesisVideoMediaClient = mediaClients.clientFor(directory.dataEndpoint(streamARN));
+        final var byteSource = PublisherParserByteSource.create();
+        final CompletableFuture<ResponsePublisher<GetMediaResponse>> media = kinesisVideoMediaClient.getMedia(
+                GetMediaRequest.builder()
+                    .streamARN(streamARN)
+                    .startSelector(startSelector)
+                    .build(),
+                AsyncResponseTransformer.toPublisher());
+        media.whenComplete((publisher, e) -> {
+            if (e instanceof CancellationException) {
+                byteSource.close();
+            } else if (e != null) {
+                log.error("GetMedia failed for stream %s".formatted(streamName), e);
+                directory.invalidate(streamARN);
+                byteSource.onError(e);
+            } else {
+                publisher.subscribe(byteSource);
+            }
+        });
+        final var mkvReader = StreamingMkvReader.create(byteSource, StreamingMkvReader.Configuration.builder()
+            .useReadAheadWindow(true)
+            .readBufferPool(Optional.of(readBufferPool))
+            .keyFramesOnly(keyFramesOnly)
+            .build());
+        return ClosingIterator.of(mkvReader::mightHaveNext, mkvReader::nextIfAvailable, () -> {
+            // Cancels the request if the response has not started yet, closing the byte source cancels the body.
+            media.cancel(true);
+            byteSource.close();
+            mkvReader.close();
+        }, byteSource::getWaitNanos);
+    }
+
+    @Override
+    public Collection<StreamInfo> streamInfos() {
+        return directory.streamInfos();
+    }
+
+    @Override
+    public void close() {
+        try {
+            mediaClients.close();
+        } finally {
+            directory.close();
+        }
+    }
+}
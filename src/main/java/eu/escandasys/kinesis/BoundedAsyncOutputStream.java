@@ -0,0 +1,196 @@
+package eu.escandasys.kinesis;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Output stream that hands writes over to a virtual writer thread through a queue holding at most
+ * maxBufferedBytes. Writers block once the queue is full, so a slow destination only slows down its own stream.
+ *
+ * It is also a gathering channel, so that {@link StreamingEngine#channelOf} hands it to the {@link FrameRecordWriter}
+ * as is: the header and the pixels of a record are copied once, into a single buffer taken from a small pool of
+ * buffers the writer thread gives back once they are written. File destinations are written through their channel
+ * from direct buffers, other destinations from the array of heap buffers.
+ */
+public class BoundedAsyncOutputStream extends OutputStream implements GatheringByteChannel {
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+    private static final int MIN_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_FREE_BUFFERS = 4;
+
+    private final OutputStream delegate;
+    private final FileChannel delegateChannel;
+    private final int maxBufferedBytes;
+    private final Semaphore bufferedBytePermits;
+    private final BlockingQueue<ByteBuffer> chunks = new LinkedBlockingQueue<>();
+    private final BlockingQueue<ByteBuffer> freeBuffers = new ArrayBlockingQueue<>(MAX_FREE_BUFFERS);
+    private final Thread writer;
+    private volatile IOException failure;
+    private volatile boolean closed;
+
+    public BoundedAsyncOutputStream(OutputStream delegate, int maxBufferedBytes, String name) {
+        if (maxBufferedBytes <= 0) {
+            throw new IllegalArgumentException("maxBufferedBytes should be positive");
+        }
+        this.delegate = delegate;
+        this.delegateChannel = delegate instanceof FileOutputStream fileOutputStream ? fileOutputStream.getChannel() : null;
+        this.maxBufferedBytes = maxBufferedBytes;
+        this.bufferedBytePermits = new Semaphore(maxBufferedBytes);
+        this.writer = Thread.ofVirtual().name("writer-" + name).start(this::drain);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        write(ByteBuffer.wrap(b, off, len));
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        return (int) write(new ByteBuffer[] {src}, 0, 1);
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs) throws IOException {
+        return write(srcs, 0, srcs.length);
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        ensureOpen();
+        long total = 0;
+        for (int i = offset; i < offset + length; i++) {
+            total += srcs[i].remaining();
+        }
+        if (total == 0) {
+            return 0;
+        }
+        if (total > Integer.MAX_VALUE) {
+            throw new IOException("Cannot queue a write of %d bytes".formatted(total));
+        }
+        try {
+            bufferedBytePermits.acquire(permitsFor((int) total));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the output queue");
+        }
+        var chunk = takeBuffer((int) total);
+        for (int i = offset; i < offset + length; i++) {
+            chunk.put(srcs[i]);
+        }
+        chunks.add(chunk.flip());
+        return total;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !closed;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        chunks.add(END);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the output queue to drain");
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new ClosedChannelException();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private int permitsFor(int len) {
+        return Math.min(len, maxBufferedBytes);
+    }
+
+    /**
+     * @return A cleared buffer of at least the given capacity, from the pool if the next free one is large enough.
+     */
+    private ByteBuffer takeBuffer(int capacity) {
+        var buffer = freeBuffers.poll();
+        if (buffer != null && buffer.capacity() >= capacity) {
+            return buffer.clear();
+        }
+        int size = Math.max(capacity, MIN_BUFFER_SIZE);
+        return delegateChannel != null ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+    }
+
+    private void drain() {
+        try {
+            while (true) {
+                var chunk = chunks.take();
+                if (chunk == END) {
+                    break;
+                }
+                int length = chunk.remaining();
+                try {
+                    // Keep draining after a failure so that blocked writers wake up and see it.
+                    if (failure == null) {
+                        writeToDelegate(chunk);
+                    }
+                } catch (IOException e) {
+                    failure = e;
+                } catch (RuntimeException e) {
+                    failure = new IOException("Cannot write to output", e);
+                } finally {
+                    // Buffers larger than the queue can hold are one-offs not worth keeping.
+                    if (chunk.capacity() <= Math.max(maxBufferedBytes, MIN_BUFFER_SIZE)) {
+                        freeBuffers.offer(chunk);
+                    }
+                    bufferedBytePermits.release(permitsFor(length));
+                }
+            }
+        } catch (InterruptedException e) {
+            failure = new InterruptedIOException("Writer interrupted");
+        } finally {
+            try {
+                delegate.close();
+            } catch (IOException | RuntimeException e) {
+                if (failure == null) {
+                    failure = e instanceof IOException io ? io : new IOException("Cannot close output", e);
+                }
+            }
+        }
+    }
+
+    private void writeToDelegate(ByteBuffer chunk) throws IOException {
+        if (delegateChannel != null) {
+            while (chunk.hasRemaining()) {
+                delegateChannel.write(chunk);
+            }
+        } else {
+            delegate.write(chunk.array(), chunk.arrayOffset() + chunk.position(), chunk.remaining());
+            if (chunks.isEmpty()) {
+                delegate.flush();
+            }
+        }
+    }
+}
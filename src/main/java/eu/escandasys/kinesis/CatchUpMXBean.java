@@ -0,0 +1,20 @@
+package eu.escandasys.kinesis;
+
+/**
+ * Catch up state of one stream, registered as eu.escandasys.kinesis:type=CatchUp,stream=&lt;stream name&gt;.
+ */
+public interface CatchUpMXBean {
+    /**
+     * @return The current {@link DecodeMode}.
+     */
+    String getDecodeMode();
+
+    /**
+     * @return The last lag reported by GetMedia, -1 until one is reported.
+     */
+    long getMillisBehindNow();
+
+    long getFramesSkipped();
+
+    long getModeSwitches();
+}
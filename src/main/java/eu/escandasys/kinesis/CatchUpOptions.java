@@ -0,0 +1,21 @@
+package eu.escandasys.kinesis;
+
+import java.time.Duration;
+
+/**
+ * When the {@link StreamingEngine} decodes fewer frames to catch up with a stream it has fallen behind on.
+ *
+ * @param enterLag Lag behind the newest fragment of the stream above which the engine starts catching up.
+ * @param exitLag Lag at or below which the engine is caught up and decodes every frame again.
+ * @param mode Which frames are decoded while catching up.
+ */
+public record CatchUpOptions(Duration enterLag, Duration exitLag, DecodeMode mode) {
+    public CatchUpOptions {
+        if (exitLag.compareTo(enterLag) > 0) {
+            throw new IllegalArgumentException("Caught up lag should not be above the catch up lag");
+        }
+        if (mode == DecodeMode.FULL) {
+            throw new IllegalArgumentException("Catching up should decode fewer frames than FULL");
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package eu.escandasys.kinesis;
+
+import java.lang.management.ManagementFactory;
+import java.math.BigInteger;
+import java.util.HashSet;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.Set;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.jboss.logging.Logger;
+
+import com.amazonaws.kinesisvideo.parser.mkv.Frame;
+import com.amazonaws.kinesisvideo.parser.mkv.FrameProcessException;
+import com.amazonaws.kinesisvideo.parser.utilities.FragmentMetadata;
+import com.amazonaws.kinesisvideo.parser.utilities.FragmentMetadataVisitor;
+import com.amazonaws.kinesisvideo.parser.utilities.FrameVisitor;
+import com.amazonaws.kinesisvideo.parser.utilities.MkvTrackMetadata;
+
+/**
+ * Frame processor that decodes fewer frames while the stream is lagging behind, as reported by the
+ * AWS_KINESISVIDEO_MILLIS_BEHIND_NOW tag of GetMedia.
+ *
+ * Above the catch up lag it switches to the mode of the {@link CatchUpOptions}. Once the lag is back at or below the
+ * caught up lag it decodes every frame again, starting at the next key frame of an H.264 track, and every other H.264
+ * track starts at its own next key frame, so that the decoder never gets a frame whose references were skipped. Frames
+ * of other tracks, such as audio blocks which are all flagged as key frames, do not count as key frames for this.
+ */
+public class CatchUpThrottle implements FrameVisitor.FrameProcessor, CatchUpMXBean {
+    private static final Logger log = Logger.getLogger(CatchUpThrottle.class);
+    private static final String H264_CODEC_ID = "V_MPEG4/ISO/AVC";
+
+    private final FrameVisitor.FrameProcessor frameProcessor;
+    private final CatchUpOptions options;
+    private final String streamName;
+    private volatile DecodeMode mode = DecodeMode.FULL;
+    private boolean caughtUp;
+    private boolean resumed;
+    // The H.264 tracks that had a key frame since decoding resumed.
+    private final Set<Long> resumedTracks = new HashSet<>();
+    private volatile long millisBehindNow = -1;
+    private volatile long framesSkipped;
+    private volatile long modeSwitches;
+    private ObjectName objectName;
+
+    public CatchUpThrottle(FrameVisitor.FrameProcessor frameProcessor, CatchUpOptions options, String streamName) {
+        this.frameProcessor = frameProcessor;
+        this.options = options;
+        this.streamName = streamName;
+    }
+
+    /**
+     * Create a throttle and register it as an MXBean until it is closed.
+     */
+    public static CatchUpThrottle register(FrameVisitor.FrameProcessor frameProcessor, CatchUpOptions options,
+            String streamName) {
+        var throttle = new CatchUpThrottle(frameProcessor, options, streamName);
+        try {
+            var name = new ObjectName("eu.escandasys.kinesis:type=CatchUp,stream=" + ObjectName.quote(streamName));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(throttle, name);
+            throttle.objectName = name;
+        } catch (JMException e) {
+            log.warn("Cannot register catch up metrics of stream %s".formatted(streamName), e);
+        }
+        return throttle;
+    }
+
+    /**
+     * Take the latest lag of the stream into account, to be called as the stream is read.
+     */
+    public void onLag(OptionalLong lag) {
+        if (lag.isEmpty() || lag.getAsLong() == millisBehindNow) {
+            return;
+        }
+        millisBehindNow = lag.getAsLong();
+        if (mode == DecodeMode.FULL) {
+            if (millisBehindNow > options.enterLag().toMillis()) {
+                switchTo(options.mode());
+            }
+        } else {
+            caughtUp = millisBehindNow <= options.exitLag().toMillis();
+        }
+    }
+
+    @Override
+    public void process(Frame frame, MkvTrackMetadata trackMetadata, Optional<FragmentMetadata> fragmentMetadata,
+            Optional<FragmentMetadataVisitor.MkvTagProcessor> tagProcessor, Optional<BigInteger> timescale,
+            Optional<BigInteger> fragmentTimecode) throws FrameProcessException {
+        boolean h264 = H264_CODEC_ID.equals(trackMetadata.getCodecId());
+        if (mode != DecodeMode.FULL && caughtUp && h264 && frame.isKeyFrame()) {
+            caughtUp = false;
+            resumed = true;
+            resumedTracks.clear();
+            switchTo(DecodeMode.FULL);
+        }
+        if (mode == DecodeMode.FULL && resumed && h264 && !resumedTracks.contains(frame.getTrackNumber())) {
+            if (!frame.isKeyFrame()) {
+                framesSkipped++;
+                return;
+            }
+            resumedTracks.add(frame.getTrackNumber());
+        }
+        if (mode == DecodeMode.SKIP || (mode == DecodeMode.KEY_FRAMES && !frame.isKeyFrame())) {
+            framesSkipped++;
+            return;
+        }
+        frameProcessor.process(frame, trackMetadata, fragmentMetadata, tagProcessor, timescale, fragmentTimecode);
+    }
+
+    @Override
+    public void close() {
+        try {
+            if (objectName != null) {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            }
+        } catch (JMException e) {
+            log.warn("Cannot unregister catch up metrics of stream %s".formatted(streamName), e);
+        } finally {
+            frameProcessor.close();
+        }
+    }
+
+    @Override
+    public String getDecodeMode() {
+        return mode.name();
+    }
+
+    @Override
+    public long getMillisBehindNow() {
+        return millisBehindNow;
+    }
+
+    @Override
+    public long getFramesSkipped() {
+        return framesSkipped;
+    }
+
+    @Override
+    public long getModeSwitches() {
+        return modeSwitches;
+    }
+
+    private void switchTo(DecodeMode newMode) {
+        log.info("Stream %s is %d ms behind, decoding %s instead of %s".formatted(streamName, millisBehindNow, newMode, mode));
+        mode = newMode;
+        modeSwitches++;
+    }
+}
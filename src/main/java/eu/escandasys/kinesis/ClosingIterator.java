@@ -4,22 +4,48 @@ import java.io.Closeable;
 import java.io.IOException;
 import java.util.Iterator;
 import java.util.Optional;
+import java.util.function.LongSupplier;
 import java.util.function.Supplier;
 import java.util.stream.Stream;
 
 public class ClosingIterator<U> implements Iterator<Optional<U>>, Closeable {
+    private static final LongSupplier NO_WAIT = () -> 0L;
+
     public static <U> ClosingIterator<U> of(Supplier<Boolean> fetchCond, Supplier<Optional<U>> supplier, Runnable closer) {
-        return new ClosingIterator<>(fetchCond, supplier, closer);
+        return new ClosingIterator<>(fetchCond, supplier, closer, NO_WAIT);
+    }
+
+    /**
+     * @param waitNanos Total time spent waiting for the network so far, see {@link #waitNanos()}.
+     */
+    public static <U> ClosingIterator<U> of(Supplier<Boolean> fetchCond, Supplier<Optional<U>> supplier, Runnable closer,
+            LongSupplier waitNanos) {
+        return new ClosingIterator<>(fetchCond, supplier, closer, waitNanos);
     }
 
     private final Supplier<Boolean> fetchCond;
     private final Supplier<Optional<U>> supplier;
     private final Runnable closer;
+    private final LongSupplier waitNanos;
     
     public ClosingIterator(Supplier<Boolean> fetchCond, Supplier<Optional<U>> supplier, Runnable closer) {
+        this(fetchCond, supplier, closer, NO_WAIT);
+    }
+
+    private ClosingIterator(Supplier<Boolean> fetchCond, Supplier<Optional<U>> supplier, Runnable closer,
+            LongSupplier waitNanos) {
         this.fetchCond = fetchCond;
         this.supplier = supplier;
         this.closer = closer;
+        this.waitNanos = waitNanos;
+    }
+
+    /**
+     * @return The total time hasNext and next have spent waiting for bytes from the network rather than parsing, zero
+     * for sources that never wait.
+     */
+    public long waitNanos() {
+        return waitNanos.getAsLong();
     }
 
     @Override
@@ -0,0 +1,13 @@
+package eu.escandasys.kinesis;
+
+/**
+ * Which frames of a stream are decoded, see {@link CatchUpThrottle}.
+ */
+public enum DecodeMode {
+    /** Every frame is decoded. */
+    FULL,
+    /** Only key frames are decoded. */
+    KEY_FRAMES,
+    /** No frame is decoded, the stream is only read. */
+    SKIP
+}
@@ -1,20 +1,18 @@
 package eu.escandasys.kinesis;
 
-import java.net.URI;
 import java.time.Instant;
 import java.util.Collection;
-import java.util.Collections;
+import java.util.Optional;
 import java.util.function.Supplier;
 
-import com.amazonaws.kinesisvideo.parser.ebml.InputStreamParserByteSource;
+import com.amazonaws.kinesisvideo.parser.ebml.RingBufferParserByteSource;
 import com.amazonaws.kinesisvideo.parser.mkv.MkvElement;
+import com.amazonaws.kinesisvideo.parser.mkv.ReadBufferPool;
 import com.amazonaws.kinesisvideo.parser.mkv.StreamingMkvReader;
 import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.core.exception.SdkException;
 import software.amazon.awssdk.http.SdkHttpClient;
 import software.amazon.awssdk.services.kinesisvideo.KinesisVideoClient;
-import software.amazon.awssdk.services.kinesisvideo.model.APIName;
-import software.amazon.awssdk.services.kinesisvideo.model.GetDataEndpointRequest;
-import software.amazon.awssdk.services.kinesisvideo.model.GetDataEndpointResponse;
 import software.amazon.awssdk.services.kinesisvideo.model.StreamInfo;
 import software.amazon.awssdk.services.kinesisvideomedia.KinesisVideoMediaClient;
 import software.amazon.awssdk.services.kinesisvideomedia.endpoints.KinesisVideoMediaEndpointProvider;
@@ -25,37 +23,59 @@ import software.amazon.awssdk.services.kinesisvideomedia.model.StartSelector;
 public class DefaultKinesisRepository implements KinesisRepository {
     private static final int MAX_BUFFER_SIZE = 2048;
     
-    private final SdkHttpClient sdkHttpClient;
-    private final KinesisVideoClient videoClient;
+    private final KinesisVideoDirectory directory;
+    private final MediaClientPool<KinesisVideoMediaClient> mediaClients;
+    private final ReadBufferPool readBufferPool = ReadBufferPool.builder().build();
     
     public DefaultKinesisRepository(SdkHttpClient httpClient, Supplier<Instant> timestampSupplier) {
-        this.sdkHttpClient = httpClient;
-        this.videoClient = KinesisVideoClient.builder()
+        this.directory = new KinesisVideoDirectory(KinesisVideoClient.builder()
             .httpClient(httpClient)
-            .build();
+            .build(), timestampSupplier);
+        this.mediaClients = new MediaClientPool<>(dataEndpoint -> KinesisVideoMediaClient.builder()
+            .endpointOverride(dataEndpoint)
+            .endpointProvider(KinesisVideoMediaEndpointProvider.defaultProvider())
+            .httpClient(httpClient)
+            .build());
     }
 
     @Override
-    public ClosingIterator<MkvElement> getMedia(StartSelector startSelector, String streamName, String streamARN) {
-        GetDataEndpointResponse response = videoClient.getDataEndpoint(GetDataEndpointRequest.builder()
+    public ClosingIterator<MkvElement> getMedia(StartSelector startSelector, String streamName, String streamARN, boolean keyFramesOnly) {
+        final KinesisVideoMediaClient kinesisVideoMediaClient = mediaClients.clientFor(directory.dataEndpoint(streamARN));
+        final ResponseInputStream<GetMediaResponse> is;
+        try {
+            is = kinesisVideoMediaClient.getMedia(GetMediaRequest.builder()
                 .streamARN(streamARN)
-                .apiName(APIName.GET_MEDIA)
+                .startSelector(startSelector)
                 .build());
-        final KinesisVideoMediaClient kinesisVideoMediaClient = KinesisVideoMediaClient.builder()
-            .endpointOverride(URI.create(response.dataEndpoint()))
-            .endpointProvider(KinesisVideoMediaEndpointProvider.defaultProvider())
-            .httpClient(sdkHttpClient)
-            .build();
-        final ResponseInputStream<GetMediaResponse> is = kinesisVideoMediaClient.getMedia(GetMediaRequest.builder()
-            .streamARN(streamARN)
-            .startSelector(startSelector)
+        } catch (SdkException e) {
+            directory.invalidate(streamARN);
+            throw e;
+        }
+        // A reader thread fills the ring from the network, so the parser does not stall on socket reads.
+        final var byteSource = RingBufferParserByteSource.create(is);
+        final var mkvReader = StreamingMkvReader.create(byteSource, StreamingMkvReader.Configuration.builder()
+            .useReadAheadWindow(true)
+            .readBufferPool(Optional.of(readBufferPool))
+            .keyFramesOnly(keyFramesOnly)
             .build());
-        final var isI = new InputStreamParserByteSource(is);
-        final var mkvReader = StreamingMkvReader.createDefault(isI);
-        return ClosingIterator.of(mkvReader::mightHaveNext, mkvReader::nextIfAvailable, is::abort);
+        return ClosingIterator.of(mkvReader::mightHaveNext, mkvReader::nextIfAvailable, () -> {
+            is.abort();
+            byteSource.close();
+            mkvReader.close();
+        }, byteSource::getWaitNanos);
     }
 
+    @Override
     public Collection<StreamInfo> streamInfos() {
-        return Collections.unmodifiableCollection(videoClient.listStreams().streamInfoList());
+        return directory.streamInfos();
+    }
+
+    @Override
+    public void close() {
+        try {
+            mediaClients.close();
+        } finally {
+            directory.close();
+        }
     }
 }
@@ -0,0 +1,89 @@
+package eu.escandasys.kinesis;
+
+import java.math.BigInteger;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+
+import com.amazonaws.kinesisvideo.parser.mkv.Frame;
+import com.amazonaws.kinesisvideo.parser.mkv.FrameProcessException;
+import com.amazonaws.kinesisvideo.parser.utilities.FragmentMetadata;
+import com.amazonaws.kinesisvideo.parser.utilities.FragmentMetadataVisitor;
+import com.amazonaws.kinesisvideo.parser.utilities.FrameVisitor;
+import com.amazonaws.kinesisvideo.parser.utilities.MkvTrackMetadata;
+
+/**
+ * Frame processor that drops the frames of a fragment that were already handed on before a reconnect.
+ *
+ * A GetMedia call resumed after a disconnect starts at a fragment boundary, so the fragment that was being read when
+ * the connection dropped is sent again from its first frame. The frames of a fragment always come in the same order,
+ * so counting them per fragment number is enough to tell the ones already handed on from the new ones.
+ */
+public class DuplicateFrameFilter implements FrameVisitor.FrameProcessor {
+    // Resuming from a fragment number may replay the fragment before the one that was cut short.
+    private static final int RECENT_FRAGMENTS = 16;
+
+    private final FrameVisitor.FrameProcessor frameProcessor;
+    private final Map<String, Integer> framesHandedOn = new LinkedHashMap<>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+            return size() > RECENT_FRAGMENTS;
+        }
+    };
+    private String currentFragmentNumber;
+    private int framesOfCurrentFragment;
+    private long handedOn;
+    private long dropped;
+
+    public DuplicateFrameFilter(FrameVisitor.FrameProcessor frameProcessor) {
+        this.frameProcessor = frameProcessor;
+    }
+
+    /**
+     * Start counting the frames of each fragment again, for the response of a new GetMedia call.
+     */
+    public void reconnected() {
+        currentFragmentNumber = null;
+        framesOfCurrentFragment = 0;
+    }
+
+    /**
+     * @return The frames handed on so far.
+     */
+    public long handedOn() {
+        return handedOn;
+    }
+
+    /**
+     * @return The frames dropped as duplicates so far.
+     */
+    public long dropped() {
+        return dropped;
+    }
+
+    @Override
+    public void process(Frame frame, MkvTrackMetadata trackMetadata, Optional<FragmentMetadata> fragmentMetadata,
+            Optional<FragmentMetadataVisitor.MkvTagProcessor> tagProcessor, Optional<BigInteger> timescale,
+            Optional<BigInteger> fragmentTimecode) throws FrameProcessException {
+        if (fragmentMetadata.isPresent()) {
+            var fragmentNumber = fragmentMetadata.get().getFragmentNumberString();
+            if (!fragmentNumber.equals(currentFragmentNumber)) {
+                currentFragmentNumber = fragmentNumber;
+                framesOfCurrentFragment = 0;
+            }
+            framesOfCurrentFragment++;
+            if (framesOfCurrentFragment <= framesHandedOn.getOrDefault(fragmentNumber, 0)) {
+                dropped++;
+                return;
+            }
+            framesHandedOn.put(fragmentNumber, framesOfCurrentFragment);
+        }
+        handedOn++;
+        frameProcessor.process(frame, trackMetadata, fragmentMetadata, tagProcessor, timescale, fragmentTimecode);
+    }
+
+    @Override
+    public void close() {
+        frameProcessor.close();
+    }
+}
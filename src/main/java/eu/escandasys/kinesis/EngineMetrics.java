@@ -0,0 +1,211 @@
+package eu.escandasys.kinesis;
+
+import java.io.Closeable;
+import java.lang.management.ManagementFactory;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.OptionalLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.jboss.logging.Logger;
+
+import com.amazonaws.kinesisvideo.parser.mkv.MkvDataElement;
+import com.amazonaws.kinesisvideo.parser.mkv.MkvElement;
+import com.amazonaws.kinesisvideo.parser.mkv.MkvStartMasterElement;
+import com.amazonaws.kinesisvideo.parser.utilities.H264FrameDecoder;
+
+/**
+ * Latency histograms of the stages a stream goes through, with counters and lag gauges, instead of a log line for
+ * every element and frame.
+ *
+ * Fetch is the time the parser waited for bytes from the network and parse the rest of the time taken to get the next
+ * element. Decode and convert are timed by the decoder, on whichever thread decodes, and write is the time taken to
+ * write a frame record. The metrics are readable over JMX while the stream is read and summed up by
+ * {@link #summary()} once it is done.
+ */
+public class EngineMetrics implements EngineMetricsMXBean, H264FrameDecoder.DecodeTimer, Closeable {
+    private static final Logger log = Logger.getLogger(EngineMetrics.class);
+    private static final double[] PERCENTILES = {50, 99, 99.9};
+    private static final String[] PERCENTILE_NAMES = {"p50", "p99", "p999"};
+    private static final double NANOS_PER_MILLI = 1e6;
+
+    public enum Stage {
+        FETCH, PARSE, DECODE, CONVERT, WRITE
+    }
+
+    private final String streamName;
+    private final Supplier<Instant> timestampSupplier;
+    private final Map<Stage, LatencyHistogram> stages = new EnumMap<>(Stage.class);
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder elements = new LongAdder();
+    private final LongAdder framesWritten = new LongAdder();
+    private final List<LongSupplier> droppedFrameCounters = new ArrayList<>();
+    private volatile long millisBehindNow = -1;
+    private volatile long frameLagMillis = -1;
+    private ObjectName objectName;
+
+    /**
+     * @param timestampSupplier The clock the lag of written frames is measured against.
+     */
+    public EngineMetrics(String streamName, Supplier<Instant> timestampSupplier) {
+        this.streamName = streamName;
+        this.timestampSupplier = timestampSupplier;
+        for (Stage stage : Stage.values()) {
+            stages.put(stage, new LatencyHistogram());
+        }
+    }
+
+    /**
+     * Create metrics and register them as an MXBean until they are closed.
+     */
+    public static EngineMetrics register(String streamName, Supplier<Instant> timestampSupplier) {
+        var metrics = new EngineMetrics(streamName, timestampSupplier);
+        try {
+            var name = new ObjectName("eu.escandasys.kinesis:type=Engine,stream=" + ObjectName.quote(streamName));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, name);
+            metrics.objectName = name;
+        } catch (JMException e) {
+            log.warn("Cannot register engine metrics of stream %s".formatted(streamName), e);
+        }
+        return metrics;
+    }
+
+    public LatencyHistogram stage(Stage stage) {
+        return stages.get(stage);
+    }
+
+    /**
+     * Count frames dropped somewhere along the way, such as by a {@link FramePipeline}, into the dropped frames.
+     */
+    public void addDroppedFrames(LongSupplier droppedFrames) {
+        synchronized (droppedFrameCounters) {
+            droppedFrameCounters.add(droppedFrames);
+        }
+    }
+
+    /**
+     * Count an element read from the stream, which took fetchNanos waiting for the network and parseNanos otherwise.
+     */
+    public void onElement(MkvElement element, long fetchNanos, long parseNanos) {
+        stages.get(Stage.FETCH).record(fetchNanos);
+        stages.get(Stage.PARSE).record(parseNanos);
+        elements.increment();
+        // Master elements only count their header here, their children are counted as they are read.
+        if (element instanceof MkvDataElement dataElement) {
+            bytes.add(dataElement.getIdAndSizeRawBytesLength() + dataElement.getDataSize());
+        } else if (element instanceof MkvStartMasterElement startMasterElement) {
+            bytes.add(startMasterElement.getIdAndSizeRawBytes().limit());
+        }
+    }
+
+    public void onLag(OptionalLong lag) {
+        lag.ifPresent(l -> millisBehindNow = l);
+    }
+
+    @Override
+    public void decoded(long decodeNanos, long convertNanos) {
+        stages.get(Stage.DECODE).record(decodeNanos);
+        stages.get(Stage.CONVERT).record(convertNanos);
+    }
+
+    /**
+     * @return A writer that times the given one and counts the frames it writes.
+     */
+    public FramePipeline.FrameWriter timed(FramePipeline.FrameWriter writer) {
+        return (frameRecord, pixels, length) -> {
+            long start = System.nanoTime();
+            writer.write(frameRecord, pixels, length);
+            stages.get(Stage.WRITE).record(System.nanoTime() - start);
+            framesWritten.increment();
+            if (frameRecord.producerTimestampMillis() >= 0) {
+                frameLagMillis = timestampSupplier.get().toEpochMilli() - frameRecord.producerTimestampMillis();
+            }
+        };
+    }
+
+    @Override
+    public long getBytes() {
+        return bytes.sum();
+    }
+
+    @Override
+    public long getElements() {
+        return elements.sum();
+    }
+
+    @Override
+    public long getFramesWritten() {
+        return framesWritten.sum();
+    }
+
+    @Override
+    public long getFramesDropped() {
+        synchronized (droppedFrameCounters) {
+            return droppedFrameCounters.stream().mapToLong(LongSupplier::getAsLong).sum();
+        }
+    }
+
+    @Override
+    public long getMillisBehindNow() {
+        return millisBehindNow;
+    }
+
+    @Override
+    public long getFrameLagMillis() {
+        return frameLagMillis;
+    }
+
+    @Override
+    public Map<String, Long> getStageLatencyNanos() {
+        Map<String, Long> latencies = new LinkedHashMap<>();
+        stages.forEach((stage, histogram) -> {
+            var prefix = stage.name().toLowerCase(Locale.ROOT);
+            latencies.put(prefix + ".count", histogram.count());
+            for (int i = 0; i < PERCENTILES.length; i++) {
+                latencies.put(prefix + "." + PERCENTILE_NAMES[i], histogram.percentile(PERCENTILES[i]));
+            }
+            latencies.put(prefix + ".max", histogram.max());
+        });
+        return latencies;
+    }
+
+    /**
+     * @return The counters and, for every stage that saw anything, its percentiles in milliseconds, on one line.
+     */
+    public String summary() {
+        var summary = new StringBuilder("Stream %s: %d elements, %d bytes, %d frames written, %d dropped".formatted(
+                streamName, getElements(), getBytes(), getFramesWritten(), getFramesDropped()));
+        stages.forEach((stage, histogram) -> {
+            if (histogram.count() == 0) {
+                return;
+            }
+            summary.append("; %s".formatted(stage.name().toLowerCase(Locale.ROOT)));
+            for (int i = 0; i < PERCENTILES.length; i++) {
+                summary.append(" %s %.3f".formatted(PERCENTILE_NAMES[i], histogram.percentile(PERCENTILES[i]) / NANOS_PER_MILLI));
+            }
+            summary.append(" max %.3f ms".formatted(histogram.max() / NANOS_PER_MILLI));
+        });
+        return summary.toString();
+    }
+
+    @Override
+    public void close() {
+        try {
+            if (objectName != null) {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            }
+        } catch (JMException e) {
+            log.warn("Cannot unregister engine metrics of stream %s".formatted(streamName), e);
+        }
+    }
+}
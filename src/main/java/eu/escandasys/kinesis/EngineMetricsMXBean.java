@@ -0,0 +1,40 @@
+package eu.escandasys.kinesis;
+
+import java.util.Map;
+
+/**
+ * Throughput and per stage latencies of one stream, registered as
+ * eu.escandasys.kinesis:type=Engine,stream=&lt;stream name&gt;.
+ */
+public interface EngineMetricsMXBean {
+    /**
+     * @return The bytes of the MKV elements read so far.
+     */
+    long getBytes();
+
+    long getElements();
+
+    long getFramesWritten();
+
+    /**
+     * @return Frames dropped by the pipeline or skipped while catching up.
+     */
+    long getFramesDropped();
+
+    /**
+     * @return The last lag reported by GetMedia, -1 until one is reported.
+     */
+    long getMillisBehindNow();
+
+    /**
+     * @return How long after its producer timestamp the last frame was written, -1 until a frame with a producer
+     * timestamp is written.
+     */
+    long getFrameLagMillis();
+
+    /**
+     * @return For every stage, such as decode, its decode.count, decode.p50, decode.p99, decode.p999 and decode.max,
+     * in nanoseconds.
+     */
+    Map<String, Long> getStageLatencyNanos();
+}
@@ -0,0 +1,20 @@
+package eu.escandasys.kinesis;
+
+import java.time.Duration;
+import java.util.Optional;
+
+/**
+ * Options that change how the {@link StreamingEngine} turns a stream into frames.
+ *
+ * @param frameInterval When present, only one frame per interval of stream time is decoded and written.
+ * @param keyFramesOnly When true, only key frames are decoded; other frames are dropped while parsing.
+ * @param pipeline When present, parsing, decoding and writing run on separate threads, see {@link FramePipeline}.
+ * @param reconnect How GetMedia is called again when its response ends or fails early.
+ * @param catchUp When present, fewer frames are decoded while the stream lags behind, see {@link CatchUpThrottle}.
+ */
+public record EngineOptions(Optional<Duration> frameInterval, boolean keyFramesOnly, Optional<PipelineOptions> pipeline,
+        ReconnectOptions reconnect, Optional<CatchUpOptions> catchUp) {
+    public static EngineOptions defaults() {
+        return new EngineOptions(Optional.empty(), false, Optional.empty(), ReconnectOptions.none(), Optional.empty());
+    }
+}
@@ -0,0 +1,125 @@
+package eu.escandasys.kinesis;
+
+import static eu.escandasys.kinesis.FragmentIndexWriter.ENTRY_LENGTH;
+import static eu.escandasys.kinesis.FragmentIndexWriter.FRAGMENT_NUMBER_LENGTH;
+import static eu.escandasys.kinesis.FragmentIndexWriter.HEADER_LENGTH;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Optional;
+
+/**
+ * Memory mapped view of an index written by {@link FragmentIndexWriter}. Fragment numbers and timestamps only grow
+ * along a stream, so both lookups are binary searches over the fixed length entries.
+ */
+public class FragmentIndex {
+    /**
+     * The records of one fragment in the indexed output, see {@link FragmentIndexWriter} for the fields.
+     */
+    public record Entry(BigInteger fragmentNumber,
+                        long offset,
+                        long firstKeyFrameOffset,
+                        long timecodeNanos,
+                        long producerTimestampMillis,
+                        long serverTimestampMillis,
+                        int records,
+                        int keyFrames) {
+    }
+
+    private static final int PRODUCER_TIMESTAMP_OFFSET = 48;
+
+    private final MappedByteBuffer entries;
+    private final int size;
+
+    private FragmentIndex(MappedByteBuffer entries) {
+        this.entries = entries;
+        this.size = entries.capacity() / ENTRY_LENGTH;
+    }
+
+    public static FragmentIndex open(Path path) throws IOException {
+        try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            var header = ByteBuffer.allocate(HEADER_LENGTH);
+            while (header.hasRemaining() && channel.read(header) >= 0) {
+                // Read the whole header.
+            }
+            header.flip();
+            if (header.remaining() < HEADER_LENGTH || header.getInt() != FragmentIndexWriter.MAGIC) {
+                throw new IOException("%s is not a fragment index".formatted(path));
+            }
+            var version = header.getShort();
+            var entryLength = header.getShort();
+            if (version != FragmentIndexWriter.VERSION || entryLength != ENTRY_LENGTH) {
+                throw new IOException("Unsupported fragment index version %d in %s".formatted(version, path));
+            }
+            long entriesLength = (channel.size() - HEADER_LENGTH) / ENTRY_LENGTH * ENTRY_LENGTH;
+            // The mapping stays valid once the channel is closed.
+            return new FragmentIndex(channel.map(FileChannel.MapMode.READ_ONLY, HEADER_LENGTH, entriesLength));
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public Entry entry(int index) {
+        int position = index * ENTRY_LENGTH;
+        byte[] fragmentNumber = new byte[FRAGMENT_NUMBER_LENGTH];
+        entries.get(position, fragmentNumber);
+        position += FRAGMENT_NUMBER_LENGTH;
+        return new Entry(new BigInteger(1, fragmentNumber),
+                entries.getLong(position),
+                entries.getLong(position + 8),
+                entries.getLong(position + 16),
+                entries.getLong(position + 24),
+                entries.getLong(position + 32),
+                entries.getInt(position + 40),
+                entries.getInt(position + 44));
+    }
+
+    public Optional<Entry> findByFragmentNumber(BigInteger fragmentNumber) {
+        var key = ByteBuffer.allocate(FRAGMENT_NUMBER_LENGTH);
+        FragmentIndexWriter.putFragmentNumber(key, fragmentNumber);
+        byte[] keyBytes = key.array();
+        byte[] candidate = new byte[FRAGMENT_NUMBER_LENGTH];
+        int low = 0;
+        int high = size - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            entries.get(middle * ENTRY_LENGTH, candidate);
+            int comparison = Arrays.compareUnsigned(candidate, keyBytes);
+            if (comparison < 0) {
+                low = middle + 1;
+            } else if (comparison > 0) {
+                high = middle - 1;
+            } else {
+                return Optional.of(entry(middle));
+            }
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * @return The last fragment produced at or before the given time, where to start reading to get that time.
+     */
+    public Optional<Entry> findByProducerTimestamp(long producerTimestampMillis) {
+        int low = 0;
+        int high = size - 1;
+        int found = -1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (entries.getLong(middle * ENTRY_LENGTH + PRODUCER_TIMESTAMP_OFFSET) <= producerTimestampMillis) {
+                found = middle;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return found < 0 ? Optional.empty() : Optional.of(entry(found));
+    }
+}
@@ -0,0 +1,148 @@
+package eu.escandasys.kinesis;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Appends one entry per fragment to an index of the records written by a {@link FrameRecordWriter}, so that a
+ * {@link FragmentIndex} can later find the records of a fragment or a point in time without reading the output.
+ * All numbers are big endian.
+ *
+ * <pre>
+ * header
+ * offset size field
+ *      0    4 magic "KVFI"
+ *      4    2 version, currently 1
+ *      6    2 entry length
+ *      8    8 reserved
+ *
+ * entry
+ * offset size field
+ *      0   24 fragment number, unsigned
+ *     24    8 offset of the first record of the fragment in the output
+ *     32    8 offset of the first key frame record of the fragment, -1 when there is none
+ *     40    8 timecode in nanoseconds of the first record
+ *     48    8 producer side timestamp of the fragment in milliseconds, -1 when unknown
+ *     56    8 server side timestamp of the fragment in milliseconds, -1 when unknown
+ *     64    4 records of the fragment
+ *     68    4 key frame records of the fragment
+ * </pre>
+ *
+ * An entry is appended once the records of the next fragment start, or when the writer is closed. Records without a
+ * fragment number are not indexed. A trailing partial entry, as left by a crash, is ignored by readers.
+ *
+ * Only the first key frame of a fragment is indexed, not every key frame and cluster timecode, so that entries stay
+ * fixed length for binary search. A Kinesis Video fragment is a single cluster that producers start at a key frame, so
+ * for almost every fragment the first key frame is its only one and the timecode of the first record is that of its
+ * cluster. To seek within a longer fragment, start at its first key frame and step through the following records by
+ * their headers, which carry the timecode, the key frame flag and the payload length, without reading any pixels.
+ */
+public class FragmentIndexWriter implements FrameRecordWriter.RecordListener {
+    public static final int MAGIC = 0x4B564649;
+    public static final short VERSION = 1;
+    static final int HEADER_LENGTH = 16;
+    static final int ENTRY_LENGTH = 72;
+    static final int FRAGMENT_NUMBER_LENGTH = 24;
+
+    private final FileChannel channel;
+    private final ByteBuffer entry = ByteBuffer.allocate(ENTRY_LENGTH);
+    private String fragmentNumber;
+    private long firstOffset;
+    private long firstKeyFrameOffset;
+    private long timecodeNanos;
+    private long producerTimestampMillis;
+    private long serverTimestampMillis;
+    private int records;
+    private int keyFrames;
+
+    private FragmentIndexWriter(FileChannel channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * Create the index file, replacing any existing one, as the output it indexes is written from the start.
+     */
+    public static FragmentIndexWriter create(Path path) throws IOException {
+        var channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        var header = ByteBuffer.allocate(HEADER_LENGTH)
+                .putInt(MAGIC)
+                .putShort(VERSION)
+                .putShort((short) ENTRY_LENGTH)
+                .putLong(0)
+                .flip();
+        while (header.hasRemaining()) {
+            channel.write(header);
+        }
+        return new FragmentIndexWriter(channel);
+    }
+
+    @Override
+    public void onRecord(FrameRecord frameRecord, long offset) throws IOException {
+        if (frameRecord.fragmentNumber().isEmpty()) {
+            return;
+        }
+        if (!frameRecord.fragmentNumber().equals(fragmentNumber)) {
+            appendEntry();
+            fragmentNumber = frameRecord.fragmentNumber();
+            firstOffset = offset;
+            firstKeyFrameOffset = -1;
+            timecodeNanos = frameRecord.timecodeNanos();
+            producerTimestampMillis = frameRecord.producerTimestampMillis();
+            serverTimestampMillis = frameRecord.serverTimestampMillis();
+            records = 0;
+            keyFrames = 0;
+        }
+        records++;
+        if (frameRecord.keyFrame()) {
+            if (keyFrames == 0) {
+                firstKeyFrameOffset = offset;
+            }
+            keyFrames++;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            appendEntry();
+        } finally {
+            channel.close();
+        }
+    }
+
+    private void appendEntry() throws IOException {
+        if (fragmentNumber == null) {
+            return;
+        }
+        entry.clear();
+        putFragmentNumber(entry, new BigInteger(fragmentNumber));
+        entry.putLong(firstOffset)
+                .putLong(firstKeyFrameOffset)
+                .putLong(timecodeNanos)
+                .putLong(producerTimestampMillis)
+                .putLong(serverTimestampMillis)
+                .putInt(records)
+                .putInt(keyFrames)
+                .flip();
+        while (entry.hasRemaining()) {
+            channel.write(entry);
+        }
+        fragmentNumber = null;
+    }
+
+    static void putFragmentNumber(ByteBuffer buffer, BigInteger fragmentNumber) {
+        if (fragmentNumber.signum() < 0 || fragmentNumber.bitLength() > FRAGMENT_NUMBER_LENGTH * Byte.SIZE) {
+            throw new IllegalArgumentException("Fragment number %s does not fit the index".formatted(fragmentNumber));
+        }
+        byte[] bytes = fragmentNumber.toByteArray();
+        // toByteArray adds a leading zero byte when the top bit is set.
+        int start = bytes.length > FRAGMENT_NUMBER_LENGTH ? bytes.length - FRAGMENT_NUMBER_LENGTH : 0;
+        int length = bytes.length - start;
+        buffer.put(new byte[FRAGMENT_NUMBER_LENGTH - length]).put(bytes, start, length);
+    }
+}
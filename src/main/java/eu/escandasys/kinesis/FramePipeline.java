@@ -0,0 +1,371 @@
+package eu.escandasys.kinesis;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigInteger;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import org.jboss.logging.Logger;
+
+import com.amazonaws.kinesisvideo.parser.mkv.Frame;
+import com.amazonaws.kinesisvideo.parser.mkv.FrameProcessException;
+import com.amazonaws.kinesisvideo.parser.utilities.FragmentMetadata;
+import com.amazonaws.kinesisvideo.parser.utilities.FragmentMetadataVisitor;
+import com.amazonaws.kinesisvideo.parser.utilities.FrameVisitor;
+import com.amazonaws.kinesisvideo.parser.utilities.H264FrameRenderer;
+import com.amazonaws.kinesisvideo.parser.utilities.H264FrameSampler;
+import com.amazonaws.kinesisvideo.parser.utilities.MkvTrackMetadata;
+import com.amazonaws.kinesisvideo.parser.utilities.ReferenceFrameDecoder;
+
+/**
+ * Frame processor that splits the work on a stream into stages running on their own threads.
+ *
+ * The parser stage is the thread calling process: it copies each frame and queues it for the decoder of its track.
+ * With a frame interval the parser stage also samples each track with an {@link H264FrameSampler}, so that only the
+ * frames the decoder will use are copied and queued: sampled frames, and reference frames a sampled frame depends on,
+ * which the decoder feeds to the decoder without producing an image. Every H.264 track gets a decoder stage on its
+ * own platform thread, which runs the decoder created for it and copies the decoded pixels into a pooled buffer for
+ * the writer stage. The writer stage runs on a virtual thread
+ * and hands the pixels and their {@link FrameRecord} header to a {@link FrameWriter}.
+ *
+ * When a decoder queue is full and the policy is {@link QueuePolicy#DROP}, frames of that track are dropped up to
+ * the next key frame, since the frames in between cannot be decoded without the dropped one.
+ */
+public class FramePipeline implements FrameVisitor.FrameProcessor {
+    private static final Logger log = Logger.getLogger(FramePipeline.class);
+    private static final String H264_CODEC_ID = "V_MPEG4/ISO/AVC";
+
+    @FunctionalInterface
+    public interface FrameWriter {
+        void write(FrameRecord frameRecord, byte[] pixels, int length) throws IOException;
+    }
+
+    private record DecodeJob(Frame frame,
+                             MkvTrackMetadata trackMetadata,
+                             Optional<FragmentMetadata> fragmentMetadata,
+                             Optional<FragmentMetadataVisitor.MkvTagProcessor> tagProcessor,
+                             Optional<BigInteger> timescale,
+                             Optional<BigInteger> fragmentTimecode,
+                             boolean reference) {
+    }
+
+    private record WriteJob(FrameRecord frameRecord, byte[] pixels, int length) {
+    }
+
+    private static final DecodeJob END_OF_DECODE = new DecodeJob(null, null, null, null, null, null, false);
+    private static final WriteJob END_OF_WRITE = new WriteJob(null, null, 0);
+
+    private final PipelineOptions options;
+    private final Optional<Duration> frameInterval;
+    private final Function<H264FrameRenderer.DecodedFrameConsumer, ReferenceFrameDecoder> decoderFactory;
+    private final Map<Long, DecoderStage> decoders = new HashMap<>();
+    // Tracks without a decoder, such as audio tracks, so that they are only looked at and logged once.
+    private final Set<Long> ignoredTracks = new HashSet<>();
+    private final WriterStage writer;
+    private final AtomicLong droppedFrames = new AtomicLong();
+    private boolean closed;
+
+    /**
+     * @param frameInterval Sample every track at this interval in the parser stage, see {@link H264FrameSampler}.
+     * @param decoderFactory Creates the decoder of a decoder stage from the consumer of its decoded images.
+     */
+    public FramePipeline(PipelineOptions options,
+                         Optional<Duration> frameInterval,
+                         Function<H264FrameRenderer.DecodedFrameConsumer, ReferenceFrameDecoder> decoderFactory,
+                         FrameWriter frameWriter) {
+        this.options = options;
+        this.frameInterval = frameInterval;
+        this.decoderFactory = decoderFactory;
+        this.writer = new WriterStage(frameWriter);
+    }
+
+    @Override
+    public void process(Frame frame, MkvTrackMetadata trackMetadata, Optional<FragmentMetadata> fragmentMetadata,
+                        Optional<FragmentMetadataVisitor.MkvTagProcessor> tagProcessor,
+                        Optional<BigInteger> timescale, Optional<BigInteger> fragmentTimecode)
+            throws FrameProcessException {
+        var decoder = decoders.get(frame.getTrackNumber());
+        if (decoder == null) {
+            if (ignoredTracks.contains(frame.getTrackNumber())) {
+                return;
+            }
+            decoder = createDecoder(frame.getTrackNumber(), trackMetadata);
+            if (decoder == null) {
+                ignoredTracks.add(frame.getTrackNumber());
+                return;
+            }
+            decoders.put(frame.getTrackNumber(), decoder);
+        }
+        decoder.parserSide.process(frame, trackMetadata, fragmentMetadata, tagProcessor, timescale, fragmentTimecode);
+    }
+
+    public long getDroppedFrames() {
+        return droppedFrames.get();
+    }
+
+    Set<Long> ignoredTracks() {
+        return ignoredTracks;
+    }
+
+    /**
+     * Wait for the queued frames to be decoded and written and stop the stages.
+     *
+     * @throws UncheckedIOException if a stage failed.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        List<Throwable> failures = new ArrayList<>();
+        for (DecoderStage decoder : decoders.values()) {
+            decoder.finish();
+            decoder.failure().ifPresent(failures::add);
+        }
+        writer.finish();
+        writer.failure().ifPresent(failures::add);
+        if (droppedFrames.get() > 0) {
+            log.warn("Dropped %d frames in the pipeline".formatted(droppedFrames.get()));
+        }
+        if (!failures.isEmpty()) {
+            var failure = failures.get(0);
+            throw failure instanceof UncheckedIOException e ? e : new UncheckedIOException(new IOException(failure));
+        }
+    }
+
+    private DecoderStage createDecoder(long trackNumber, MkvTrackMetadata trackMetadata) {
+        if (!H264_CODEC_ID.equals(trackMetadata.getCodecId())) {
+            log.info("Ignoring track %d with codec %s".formatted(trackNumber, trackMetadata.getCodecId()));
+            return null;
+        }
+        return new DecoderStage(trackNumber);
+    }
+
+    private static Optional<FragmentMetadataVisitor.MkvTagProcessor> snapshot(
+            Optional<FragmentMetadataVisitor.MkvTagProcessor> tagProcessor) {
+        if (tagProcessor.isPresent() && tagProcessor.get() instanceof FragmentMetadataVisitor.BasicMkvTagProcessor basic) {
+            var copy = new FragmentMetadataVisitor.BasicMkvTagProcessor();
+            copy.getTags().addAll(basic.getTags());
+            return Optional.of(copy);
+        }
+        return tagProcessor;
+    }
+
+    private class DecoderStage {
+        private final BlockingQueue<DecodeJob> queue = new ArrayBlockingQueue<>(options.decodeQueueDepth());
+        private final ReferenceFrameDecoder decoder = decoderFactory.apply(this::onImage);
+        // Queues the frames handed to it, either straight from process or from the sampler of the track.
+        private final ReferenceFrameDecoder queueing = new ReferenceFrameDecoder() {
+            @Override
+            public void process(Frame frame, MkvTrackMetadata trackMetadata, Optional<FragmentMetadata> fragmentMetadata,
+                                Optional<FragmentMetadataVisitor.MkvTagProcessor> tagProcessor,
+                                Optional<BigInteger> timescale, Optional<BigInteger> fragmentTimecode) {
+                // The frame is a view on the parser's read buffer and the tags are cleared at the end of the
+                // cluster, so the decoder stage gets copies of both.
+                offer(new DecodeJob(frame.copy(), trackMetadata, fragmentMetadata, snapshot(tagProcessor),
+                        timescale, fragmentTimecode, false));
+            }
+
+            @Override
+            public void decodeReferenceFrame(Frame frame, MkvTrackMetadata trackMetadata) {
+                // The sampler already holds a copy of the reference frames it hands over.
+                offer(new DecodeJob(frame, trackMetadata, Optional.empty(), Optional.empty(), Optional.empty(),
+                        Optional.empty(), true));
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        private final FrameVisitor.FrameProcessor parserSide = frameInterval
+                .<FrameVisitor.FrameProcessor>map(interval -> H264FrameSampler.create(queueing, interval))
+                .orElse(queueing);
+        private final Thread thread;
+        private volatile Throwable failure;
+        private boolean waitingForKeyFrame;
+
+        DecoderStage(long trackNumber) {
+            this.thread = Thread.ofPlatform().name("decoder-" + trackNumber).daemon().start(this::run);
+        }
+
+        void offer(DecodeJob job) {
+            if (failure != null) {
+                throw new UncheckedIOException(new IOException("Decoder stage failed", failure));
+            }
+            if (waitingForKeyFrame && !job.frame().isKeyFrame()) {
+                droppedFrames.incrementAndGet();
+                return;
+            }
+            waitingForKeyFrame = false;
+            if (options.decodePolicy() == QueuePolicy.BLOCK) {
+                putUninterruptibly(queue, job);
+            } else if (!queue.offer(job)) {
+                droppedFrames.incrementAndGet();
+                waitingForKeyFrame = true;
+            }
+        }
+
+        void finish() {
+            putUninterruptibly(queue, END_OF_DECODE);
+            joinUninterruptibly(thread);
+        }
+
+        Optional<Throwable> failure() {
+            return Optional.ofNullable(failure);
+        }
+
+        private void run() {
+            try {
+                while (true) {
+                    var job = queue.take();
+                    if (job == END_OF_DECODE) {
+                        break;
+                    }
+                    if (failure != null) {
+                        // Keep draining so that the parser stage never blocks on a dead decoder.
+                        continue;
+                    }
+                    try {
+                        if (job.reference()) {
+                            decoder.decodeReferenceFrame(job.frame(), job.trackMetadata());
+                        } else {
+                            decoder.process(job.frame(), job.trackMetadata(), job.fragmentMetadata(),
+                                    job.tagProcessor(), job.timescale(), job.fragmentTimecode());
+                        }
+                    } catch (Exception e) {
+                        log.error("Decoder stage %s failed".formatted(Thread.currentThread().getName()), e);
+                        failure = e;
+                    }
+                }
+            } catch (InterruptedException e) {
+                failure = e;
+            } finally {
+                decoder.close();
+            }
+        }
+
+        private void onImage(BufferedImage image, Frame frame, MkvTrackMetadata trackMetadata,
+                             Optional<FragmentMetadata> fragmentMetadata, Optional<BigInteger> timescale,
+                             Optional<BigInteger> fragmentTimecode) {
+            byte[] pixels = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+            writer.offer(FrameRecord.of(image, frame, fragmentMetadata, timescale, fragmentTimecode), pixels);
+        }
+    }
+
+    private class WriterStage {
+        private final BlockingQueue<WriteJob> queue = new ArrayBlockingQueue<>(options.writeQueueDepth());
+        // Pixel buffers go back to this pool once written; one per queue slot and one per decoder in flight.
+        private final BlockingQueue<byte[]> freeBuffers = new ArrayBlockingQueue<>(options.writeQueueDepth() + 4);
+        private final FrameWriter frameWriter;
+        private final Thread thread;
+        private volatile Throwable failure;
+
+        WriterStage(FrameWriter frameWriter) {
+            this.frameWriter = frameWriter;
+            this.thread = Thread.ofVirtual().name("writer").start(this::run);
+        }
+
+        /**
+         * Called from the decoder stages: copies the pixels of a decoded image and queues them for writing.
+         */
+        void offer(FrameRecord frameRecord, byte[] pixels) {
+            if (failure != null) {
+                throw new UncheckedIOException(new IOException("Writer stage failed", failure));
+            }
+            var buffer = freeBuffers.poll();
+            if (buffer == null || buffer.length < pixels.length) {
+                buffer = new byte[pixels.length];
+            }
+            System.arraycopy(pixels, 0, buffer, 0, pixels.length);
+            var job = new WriteJob(frameRecord, buffer, pixels.length);
+            if (options.writePolicy() == QueuePolicy.BLOCK) {
+                putUninterruptibly(queue, job);
+            } else if (!queue.offer(job)) {
+                droppedFrames.incrementAndGet();
+                freeBuffers.offer(buffer);
+            }
+        }
+
+        void finish() {
+            putUninterruptibly(queue, END_OF_WRITE);
+            joinUninterruptibly(thread);
+        }
+
+        Optional<Throwable> failure() {
+            return Optional.ofNullable(failure);
+        }
+
+        private void run() {
+            try {
+                while (true) {
+                    var job = queue.take();
+                    if (job == END_OF_WRITE) {
+                        break;
+                    }
+                    try {
+                        if (failure == null) {
+                            frameWriter.write(job.frameRecord(), job.pixels(), job.length());
+                        }
+                    } catch (IOException | UncheckedIOException e) {
+                        log.error("Writer stage failed", e);
+                        failure = e;
+                    } finally {
+                        freeBuffers.offer(job.pixels());
+                    }
+                }
+            } catch (InterruptedException e) {
+                failure = e;
+            }
+        }
+    }
+
+    private static <T> void putUninterruptibly(BlockingQueue<T> queue, T item) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    queue.put(item);
+                    return;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static void joinUninterruptibly(Thread thread) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    thread.join();
+                    return;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package eu.escandasys.kinesis;
+
+import java.awt.image.BufferedImage;
+import java.math.BigInteger;
+import java.util.Optional;
+
+import com.amazonaws.kinesisvideo.parser.mkv.Frame;
+import com.amazonaws.kinesisvideo.parser.utilities.FragmentMetadata;
+
+/**
+ * Header of a decoded frame as written by {@link FrameRecordWriter}.
+ *
+ * @param trackNumber Track the frame belongs to.
+ * @param keyFrame Whether the frame was a key frame.
+ * @param width Width of the image in pixels.
+ * @param height Height of the image in pixels.
+ * @param pixelFormat Layout of the pixels.
+ * @param timecodeNanos (cluster Timecode + SimpleBlock timecode) x TimecodeScale.
+ * @param producerTimestampMillis Producer side timestamp of the fragment, -1 when unknown.
+ * @param serverTimestampMillis Server side timestamp of the fragment, -1 when unknown.
+ * @param fragmentNumber Fragment number as a decimal string, empty when unknown.
+ */
+public record FrameRecord(long trackNumber,
+                          boolean keyFrame,
+                          int width,
+                          int height,
+                          PixelFormat pixelFormat,
+                          long timecodeNanos,
+                          long producerTimestampMillis,
+                          long serverTimestampMillis,
+                          String fragmentNumber) {
+    private static final long DEFAULT_TIMECODE_SCALE = 1_000_000L;
+    private static final long UNKNOWN_TIMESTAMP = -1L;
+
+    public enum PixelFormat {
+        BGR24(1, 3),
+        ABGR32(2, 4),
+        GRAY8(3, 1);
+
+        private final int code;
+        private final int bytesPerPixel;
+
+        PixelFormat(int code, int bytesPerPixel) {
+            this.code = code;
+            this.bytesPerPixel = bytesPerPixel;
+        }
+
+        public int code() {
+            return code;
+        }
+
+        public int bytesPerPixel() {
+            return bytesPerPixel;
+        }
+
+        public static PixelFormat of(BufferedImage image) {
+            return switch (image.getType()) {
+                case BufferedImage.TYPE_3BYTE_BGR -> BGR24;
+                case BufferedImage.TYPE_4BYTE_ABGR -> ABGR32;
+                case BufferedImage.TYPE_BYTE_GRAY -> GRAY8;
+                default -> throw new IllegalArgumentException("Unsupported image type %d".formatted(image.getType()));
+            };
+        }
+    }
+
+    public static FrameRecord of(BufferedImage image, Frame frame, Optional<FragmentMetadata> fragmentMetadata,
+                                 Optional<BigInteger> timescale, Optional<BigInteger> fragmentTimecode) {
+        long clusterTimecode = fragmentTimecode.map(BigInteger::longValue).orElse(0L);
+        long timecodeScale = timescale.map(BigInteger::longValue).orElse(DEFAULT_TIMECODE_SCALE);
+        return new FrameRecord(frame.getTrackNumber(),
+                frame.isKeyFrame(),
+                image.getWidth(),
+                image.getHeight(),
+                PixelFormat.of(image),
+                (clusterTimecode + frame.getTimeCode()) * timecodeScale,
+                fragmentMetadata.map(FragmentMetadata::getProducerSideTimestampMillis).orElse(UNKNOWN_TIMESTAMP),
+                fragmentMetadata.map(FragmentMetadata::getServerSideTimestampMillis).orElse(UNKNOWN_TIMESTAMP),
+                fragmentMetadata.map(FragmentMetadata::getFragmentNumberString).orElse(""));
+    }
+
+    public int stride() {
+        return width * pixelFormat.bytesPerPixel();
+    }
+}
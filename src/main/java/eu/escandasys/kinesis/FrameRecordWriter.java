@@ -0,0 +1,116 @@
+package eu.escandasys.kinesis;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes decoded frames as records of a header followed by the pixels. All numbers are big endian.
+ *
+ * <pre>
+ * offset size field
+ *      0    4 magic "KVFR"
+ *      4    2 version, currently 1
+ *      6    2 header length, the offset of the pixels in the record
+ *      8    1 pixel format, see {@link FrameRecord.PixelFormat#code()}
+ *      9    1 flags, bit 0 set for key frames
+ *     10    2 fragment number length
+ *     12    4 width
+ *     16    4 height
+ *     20    4 stride, bytes per row of pixels
+ *     24    8 track number
+ *     32    8 timecode in nanoseconds
+ *     40    8 producer side timestamp of the fragment in milliseconds, -1 when unknown
+ *     48    8 server side timestamp of the fragment in milliseconds, -1 when unknown
+ *     56    8 payload length
+ *     64    n fragment number as an ASCII decimal string
+ * </pre>
+ *
+ * Readers should skip to the header length rather than assume the header size, so that later versions can add fields.
+ *
+ * The header and the pixels are written with a single gathering write when the channel supports it, straight from
+ * the given array. A {@link RecordListener} learns the offset of every record written, see {@link FragmentIndexWriter}.
+ */
+public class FrameRecordWriter {
+    public static final int MAGIC = 0x4B564652;
+    public static final short VERSION = 1;
+    static final int FIXED_HEADER_LENGTH = 64;
+    private static final int KEY_FRAME_FLAG = 0x1;
+
+    /**
+     * Told about every record once it is written.
+     */
+    public interface RecordListener extends Closeable {
+        RecordListener NONE = (frameRecord, offset) -> { };
+
+        /**
+         * @param offset Bytes written before the record.
+         */
+        void onRecord(FrameRecord frameRecord, long offset) throws IOException;
+
+        @Override
+        default void close() throws IOException {
+        }
+    }
+
+    private final WritableByteChannel channel;
+    private final RecordListener recordListener;
+    private final ByteBuffer[] record = new ByteBuffer[2];
+    private ByteBuffer header = ByteBuffer.allocate(FIXED_HEADER_LENGTH + 64);
+    private long position;
+
+    public FrameRecordWriter(WritableByteChannel channel) {
+        this(channel, RecordListener.NONE);
+    }
+
+    public FrameRecordWriter(WritableByteChannel channel, RecordListener recordListener) {
+        this.channel = channel;
+        this.recordListener = recordListener;
+    }
+
+    public void write(FrameRecord frameRecord, byte[] pixels, int length) throws IOException {
+        byte[] fragmentNumber = frameRecord.fragmentNumber().getBytes(StandardCharsets.US_ASCII);
+        int headerLength = FIXED_HEADER_LENGTH + fragmentNumber.length;
+        if (header.capacity() < headerLength) {
+            header = ByteBuffer.allocate(headerLength);
+        }
+        header.clear();
+        header.putInt(MAGIC)
+                .putShort(VERSION)
+                .putShort((short) headerLength)
+                .put((byte) frameRecord.pixelFormat().code())
+                .put((byte) (frameRecord.keyFrame() ? KEY_FRAME_FLAG : 0))
+                .putShort((short) fragmentNumber.length)
+                .putInt(frameRecord.width())
+                .putInt(frameRecord.height())
+                .putInt(frameRecord.stride())
+                .putLong(frameRecord.trackNumber())
+                .putLong(frameRecord.timecodeNanos())
+                .putLong(frameRecord.producerTimestampMillis())
+                .putLong(frameRecord.serverTimestampMillis())
+                .putLong(length)
+                .put(fragmentNumber)
+                .flip();
+        var payload = ByteBuffer.wrap(pixels, 0, length);
+        record[0] = header;
+        record[1] = payload;
+        if (channel instanceof GatheringByteChannel gatheringChannel) {
+            while (header.hasRemaining() || payload.hasRemaining()) {
+                gatheringChannel.write(record);
+            }
+        } else {
+            for (ByteBuffer buffer : record) {
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+        }
+        record[1] = null;
+        long offset = position;
+        position += headerLength + length;
+        recordListener.onRecord(frameRecord, offset);
+    }
+}
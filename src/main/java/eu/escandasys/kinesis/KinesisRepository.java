@@ -7,7 +7,21 @@ import com.amazonaws.kinesisvideo.parser.mkv.MkvElement;
 import software.amazon.awssdk.services.kinesisvideo.model.StreamInfo;
 import software.amazon.awssdk.services.kinesisvideomedia.model.StartSelector;
 
-public interface KinesisRepository {
+public interface KinesisRepository extends AutoCloseable {
     Collection<StreamInfo> streamInfos();
-    ClosingIterator<MkvElement> getMedia(StartSelector startSelector, String streamName, String streamARN);
+    default ClosingIterator<MkvElement> getMedia(StartSelector startSelector, String streamName, String streamARN) {
+        return getMedia(startSelector, streamName, streamARN, false);
+    }
+
+    /**
+     * @param keyFramesOnly When true, frames that are not key frames are dropped while parsing.
+     */
+    ClosingIterator<MkvElement> getMedia(StartSelector startSelector, String streamName, String streamARN, boolean keyFramesOnly);
+
+    /**
+     * Release the clients kept across calls to getMedia.
+     */
+    @Override
+    default void close() {
+    }
 }
@@ -0,0 +1,103 @@
+package eu.escandasys.kinesis;
+
+import java.io.Closeable;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+import org.jboss.logging.Logger;
+
+import software.amazon.awssdk.services.kinesisvideo.KinesisVideoClient;
+import software.amazon.awssdk.services.kinesisvideo.model.APIName;
+import software.amazon.awssdk.services.kinesisvideo.model.GetDataEndpointRequest;
+import software.amazon.awssdk.services.kinesisvideo.model.ListStreamsRequest;
+import software.amazon.awssdk.services.kinesisvideo.model.StreamInfo;
+
+/**
+ * Control plane lookups that are kept for a while: the GetMedia data endpoint of each stream and the list of streams.
+ * Reconnecting to a stream within the time to live reuses its endpoint instead of calling GetDataEndpoint again.
+ * Callers invalidate the endpoint of a stream when a call to it fails, so the next attempt looks it up afresh.
+ * Closing the directory closes its client.
+ */
+public class KinesisVideoDirectory implements Closeable {
+    private static final Logger log = Logger.getLogger(KinesisVideoDirectory.class);
+    public static final Duration DEFAULT_TIME_TO_LIVE = Duration.ofMinutes(5);
+
+    private record Cached<T>(T value, Instant expiresAt) {
+        boolean isValidAt(Instant now) {
+            return now.isBefore(expiresAt);
+        }
+    }
+
+    private final KinesisVideoClient videoClient;
+    private final Duration timeToLive;
+    private final Supplier<Instant> timestampSupplier;
+    private final Map<String, Cached<String>> dataEndpoints = new ConcurrentHashMap<>();
+    private volatile Cached<List<StreamInfo>> streamInfos;
+
+    public KinesisVideoDirectory(KinesisVideoClient videoClient, Supplier<Instant> timestampSupplier) {
+        this(videoClient, DEFAULT_TIME_TO_LIVE, timestampSupplier);
+    }
+
+    public KinesisVideoDirectory(KinesisVideoClient videoClient, Duration timeToLive, Supplier<Instant> timestampSupplier) {
+        this.videoClient = videoClient;
+        this.timeToLive = timeToLive;
+        this.timestampSupplier = timestampSupplier;
+    }
+
+    /**
+     * @return The endpoint to call GetMedia on for the given stream.
+     */
+    public String dataEndpoint(String streamARN) {
+        var now = timestampSupplier.get();
+        var cached = dataEndpoints.get(streamARN);
+        if (cached != null && cached.isValidAt(now)) {
+            return cached.value();
+        }
+        var dataEndpoint = videoClient.getDataEndpoint(GetDataEndpointRequest.builder()
+                .streamARN(streamARN)
+                .apiName(APIName.GET_MEDIA)
+                .build())
+            .dataEndpoint();
+        dataEndpoints.put(streamARN, new Cached<>(dataEndpoint, now.plus(timeToLive)));
+        return dataEndpoint;
+    }
+
+    /**
+     * Forget the endpoint of the given stream, as after a failed call to it.
+     */
+    public void invalidate(String streamARN) {
+        if (dataEndpoints.remove(streamARN) != null) {
+            log.debug("Invalidated data endpoint of stream %s".formatted(streamARN));
+        }
+    }
+
+    /**
+     * @return Every stream of the account, going through all the pages of ListStreams.
+     */
+    public Collection<StreamInfo> streamInfos() {
+        var now = timestampSupplier.get();
+        var cached = streamInfos;
+        if (cached != null && cached.isValidAt(now)) {
+            return cached.value();
+        }
+        List<StreamInfo> result = new ArrayList<>();
+        videoClient.listStreamsPaginator(ListStreamsRequest.builder().build())
+            .streamInfoList()
+            .forEach(result::add);
+        var value = Collections.unmodifiableList(result);
+        streamInfos = new Cached<>(value, now.plus(timeToLive));
+        return value;
+    }
+
+    @Override
+    public void close() {
+        videoClient.close();
+    }
+}
@@ -0,0 +1,34 @@
+package eu.escandasys.kinesis;
+
+import java.net.URI;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+import software.amazon.awssdk.core.SdkClient;
+
+/**
+ * Media clients keyed by data endpoint. Streams served by the same endpoint share one client, which lives until the
+ * pool is closed, instead of building a client for every GetMedia call.
+ */
+public class MediaClientPool<C extends SdkClient> implements AutoCloseable {
+    private final Function<URI, C> clientFactory;
+    private final Map<String, C> clients = new ConcurrentHashMap<>();
+
+    /**
+     * @param clientFactory Builds the client for a data endpoint.
+     */
+    public MediaClientPool(Function<URI, C> clientFactory) {
+        this.clientFactory = clientFactory;
+    }
+
+    public C clientFor(String dataEndpoint) {
+        return clients.computeIfAbsent(dataEndpoint, e -> clientFactory.apply(URI.create(e)));
+    }
+
+    @Override
+    public void close() {
+        clients.values().forEach(SdkClient::close);
+        clients.clear();
+    }
+}
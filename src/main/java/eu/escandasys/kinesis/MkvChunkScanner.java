@@ -0,0 +1,185 @@
+package eu.escandasys.kinesis;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import com.amazonaws.kinesisvideo.parser.ebml.EBMLElementMetaData;
+import com.amazonaws.kinesisvideo.parser.ebml.EBMLParser;
+import com.amazonaws.kinesisvideo.parser.ebml.EBMLParserCallbacks;
+import com.amazonaws.kinesisvideo.parser.ebml.MappedFileParserByteSource;
+import com.amazonaws.kinesisvideo.parser.ebml.MkvTypeInfos;
+import com.amazonaws.kinesisvideo.parser.ebml.ParserBulkByteSource;
+import com.amazonaws.kinesisvideo.parser.mkv.MkvTypeInfoProvider;
+
+/**
+ * Splits a recorded MKV file into chunks that decode independently of each other, for {@link ParallelFileEngine}.
+ *
+ * A chunk may start where a decoder can start from scratch: at a Segment whose first Cluster starts with a key frame
+ * on every track, or at such a Cluster further into a Segment. A chunk starting at a Cluster carries the header of its
+ * Segment, everything from the EBML header up to the first Cluster, so that the track metadata goes along with it.
+ * Only the element ids, sizes and the first bytes of SimpleBlocks are read, everything else is skipped.
+ */
+public class MkvChunkScanner implements EBMLParserCallbacks {
+    /**
+     * The bytes of a chunk are the header bytes, if any, followed by the length bytes at offset.
+     */
+    public record Chunk(long headerOffset, int headerLength, long offset, long length) {
+    }
+
+    private record Cut(long headerOffset, int headerLength, long offset) {
+    }
+
+    private static final int MAX_SIMPLE_BLOCK_HEADER_BYTES = 11;
+    private static final int KEY_FRAME_FLAG = 0x80;
+    private static final int SKIP_BUFFER_SIZE = 8192;
+
+    private final MappedFileParserByteSource byteSource;
+    private final List<Cut> cuts = new ArrayList<>();
+    private final ByteBuffer simpleBlockHeader = ByteBuffer.allocate(MAX_SIMPLE_BLOCK_HEADER_BYTES);
+    private final ByteBuffer skipBuffer = ByteBuffer.allocate(SKIP_BUFFER_SIZE);
+    private final Set<Long> tracksInCluster = new HashSet<>();
+    private long segmentOffset;
+    private long firstClusterOffset = -1;
+    private long clusterOffset = -1;
+    private boolean clusterStartsWithKeyFrames;
+    private boolean readingSimpleBlockHeader;
+
+    private MkvChunkScanner(MappedFileParserByteSource byteSource) {
+        this.byteSource = byteSource;
+    }
+
+    /**
+     * @param targetBytes Chunks are cut at the first place they can be once they are this long.
+     */
+    public static List<Chunk> scan(Path path, long targetBytes) throws IOException {
+        try (var byteSource = MappedFileParserByteSource.open(path)) {
+            var scanner = new MkvChunkScanner(byteSource);
+            // Without a read-ahead window the parser takes every byte it parses from the byte source as it goes, so
+            // the position of the byte source tells where an element starts.
+            var parser = new EBMLParser(new MkvTypeInfoProvider(), scanner, EBMLParser.DEFAULT_MAX_CONTENT_BYTES_IN_ONE_PASS,
+                    false, MkvTypeInfos.SIMPLEBLOCK::equals);
+            while (!byteSource.eof() && !parser.isClosed()) {
+                parser.parse(byteSource);
+            }
+            parser.closeParser();
+            scanner.endCluster();
+            return scanner.chunks(byteSource.position(), targetBytes);
+        }
+    }
+
+    @Override
+    public void onStartElement(EBMLElementMetaData elementMetaData, long elementDataSize, ByteBuffer idAndSizeRawBytes,
+            ElementPathSupplier pathSupplier) {
+        var typeInfo = elementMetaData.getTypeInfo();
+        long offset = byteSource.position() - idAndSizeRawBytes.remaining();
+        if (MkvTypeInfos.EBML.equals(typeInfo)) {
+            endCluster();
+            segmentOffset = offset;
+            firstClusterOffset = -1;
+        } else if (MkvTypeInfos.CLUSTER.equals(typeInfo)) {
+            endCluster();
+            clusterOffset = offset;
+            clusterStartsWithKeyFrames = true;
+            tracksInCluster.clear();
+            if (firstClusterOffset < 0) {
+                firstClusterOffset = offset;
+            }
+        } else if (MkvTypeInfos.SIMPLEBLOCK.equals(typeInfo) && clusterOffset >= 0) {
+            simpleBlockHeader.clear();
+            readingSimpleBlockHeader = true;
+        }
+    }
+
+    @Override
+    public void onPartialContent(EBMLElementMetaData elementMetaData, ParserBulkByteSource bulkByteSource, int bytesToRead) {
+        if (elementMetaData.isMaster()) {
+            return;
+        }
+        if (readingSimpleBlockHeader) {
+            bulkByteSource.readBytes(simpleBlockHeader, Math.min(bytesToRead, simpleBlockHeader.remaining()));
+            checkKeyFrame();
+        } else {
+            skipBuffer.clear();
+            bulkByteSource.readBytes(skipBuffer, Math.min(bytesToRead, skipBuffer.capacity()));
+        }
+    }
+
+    /**
+     * The rest of a SimpleBlock is skipped once its header has been checked.
+     */
+    @Override
+    public boolean skipRemainingContent() {
+        return !readingSimpleBlockHeader;
+    }
+
+    @Override
+    public void onEndElement(EBMLElementMetaData elementMetaData, ElementPathSupplier pathSupplier) {
+        if (MkvTypeInfos.SIMPLEBLOCK.equals(elementMetaData.getTypeInfo())) {
+            readingSimpleBlockHeader = false;
+        }
+    }
+
+    /**
+     * The first block of every track in a cluster needs to be a key frame for the cluster to decode on its own.
+     */
+    private void checkKeyFrame() {
+        int trackNumberBytes = Integer.numberOfLeadingZeros(simpleBlockHeader.get(0) & 0xFF) - (Integer.SIZE - 8) + 1;
+        int headerBytes = trackNumberBytes + 3;
+        if (headerBytes > MAX_SIMPLE_BLOCK_HEADER_BYTES) {
+            clusterStartsWithKeyFrames = false;
+            readingSimpleBlockHeader = false;
+            return;
+        }
+        if (simpleBlockHeader.position() < headerBytes) {
+            return;
+        }
+        // The length marker bit is not part of the track number.
+        long trackNumber = simpleBlockHeader.get(0) & (0xFF >> trackNumberBytes);
+        for (int i = 1; i < trackNumberBytes; i++) {
+            trackNumber = (trackNumber << 8) | (simpleBlockHeader.get(i) & 0xFF);
+        }
+        boolean keyFrame = (simpleBlockHeader.get(headerBytes - 1) & KEY_FRAME_FLAG) != 0;
+        if (tracksInCluster.add(trackNumber) && !keyFrame) {
+            clusterStartsWithKeyFrames = false;
+        }
+        readingSimpleBlockHeader = false;
+    }
+
+    private void endCluster() {
+        if (clusterOffset < 0) {
+            return;
+        }
+        if (clusterStartsWithKeyFrames) {
+            if (clusterOffset == firstClusterOffset) {
+                cuts.add(new Cut(segmentOffset, 0, segmentOffset));
+            } else {
+                cuts.add(new Cut(segmentOffset, (int) (firstClusterOffset - segmentOffset), clusterOffset));
+            }
+        }
+        clusterOffset = -1;
+    }
+
+    private List<Chunk> chunks(long size, long targetBytes) {
+        // Whatever comes before the first place to cut still goes through a decoder, which skips up to a key frame.
+        if (cuts.isEmpty() || cuts.get(0).offset() > 0) {
+            cuts.add(0, new Cut(0, 0, 0));
+        }
+        List<Chunk> chunks = new ArrayList<>();
+        var start = cuts.get(0);
+        for (var cut : cuts) {
+            if (cut.offset() - start.offset() >= targetBytes) {
+                chunks.add(new Chunk(start.headerOffset(), start.headerLength(), start.offset(), cut.offset() - start.offset()));
+                start = cut;
+            }
+        }
+        if (size > start.offset()) {
+            chunks.add(new Chunk(start.headerOffset(), start.headerLength(), start.offset(), size - start.offset()));
+        }
+        return chunks;
+    }
+}
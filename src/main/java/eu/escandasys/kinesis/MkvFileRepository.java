@@ -0,0 +1,75 @@
+package eu.escandasys.kinesis;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+
+import org.jboss.logging.Logger;
+
+import com.amazonaws.kinesisvideo.parser.ebml.MappedFileParserByteSource;
+import com.amazonaws.kinesisvideo.parser.mkv.MkvElement;
+import com.amazonaws.kinesisvideo.parser.mkv.ReadBufferPool;
+import com.amazonaws.kinesisvideo.parser.mkv.StreamingMkvReader;
+
+import software.amazon.awssdk.services.kinesisvideo.model.StreamInfo;
+import software.amazon.awssdk.services.kinesisvideomedia.model.StartSelector;
+
+/**
+ * Repository that reads a recorded MKV file instead of calling GetMedia, so that archived footage goes through the
+ * same engine offline. The file is the only stream, named after the file, and it is always read from the start
+ * whatever the start selector.
+ */
+public class MkvFileRepository implements KinesisRepository {
+    private static final Logger log = Logger.getLogger(MkvFileRepository.class);
+
+    private final Path path;
+    private final StreamInfo streamInfo;
+    private final ReadBufferPool readBufferPool = ReadBufferPool.builder().build();
+
+    public MkvFileRepository(Path path) {
+        this.path = path;
+        this.streamInfo = StreamInfo.builder()
+            .streamName(path.getFileName().toString())
+            .streamARN(path.toUri().toString())
+            .build();
+    }
+
+    public Path path() {
+        return path;
+    }
+
+    public StreamInfo streamInfo() {
+        return streamInfo;
+    }
+
+    @Override
+    public Collection<StreamInfo> streamInfos() {
+        return List.of(streamInfo);
+    }
+
+    @Override
+    public ClosingIterator<MkvElement> getMedia(StartSelector startSelector, String streamName, String streamARN, boolean keyFramesOnly) {
+        final MappedFileParserByteSource byteSource;
+        try {
+            byteSource = MappedFileParserByteSource.open(path);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot map %s".formatted(path), e);
+        }
+        final var mkvReader = StreamingMkvReader.create(byteSource, StreamingMkvReader.Configuration.builder()
+            .useReadAheadWindow(true)
+            .readBufferPool(Optional.of(readBufferPool))
+            .keyFramesOnly(keyFramesOnly)
+            .build());
+        return ClosingIterator.of(mkvReader::mightHaveNext, mkvReader::nextIfAvailable, () -> {
+            mkvReader.close();
+            try {
+                byteSource.close();
+            } catch (IOException e) {
+                log.warn("Cannot close %s".formatted(path), e);
+            }
+        });
+    }
+}
@@ -0,0 +1,229 @@
+package eu.escandasys.kinesis;
+
+import java.awt.image.DataBufferByte;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import org.jboss.logging.Logger;
+
+import com.amazonaws.kinesisvideo.parser.ebml.ByteBufferParserByteSource;
+import com.amazonaws.kinesisvideo.parser.ebml.MappedFileParserByteSource;
+import com.amazonaws.kinesisvideo.parser.mkv.MkvElementVisitException;
+import com.amazonaws.kinesisvideo.parser.mkv.StreamingMkvReader;
+import com.amazonaws.kinesisvideo.parser.utilities.FragmentMetadataVisitor;
+import com.amazonaws.kinesisvideo.parser.utilities.FrameVisitor;
+
+/**
+ * Decodes a recorded MKV file on a fork-join pool and writes the frame records in file order, see
+ * {@link MkvChunkScanner} for how the file is split.
+ *
+ * Every task parses and decodes one chunk with its own parser and decoder, straight from views of the mapped file,
+ * and hands the decoded frames over to the merge on the calling thread through a queue of a few frames, which the
+ * merge drains in chunk order. A task waits once its queue is full, so at most twice as many chunks as the pool has
+ * threads are in flight at once, and each of them holds no more than its queued frames, the frame it is handing over
+ * and the image its decoder draws into, however many frames its encoded bytes hold. Sampling starts over with every
+ * chunk, so with a frame interval the frames picked around chunk boundaries can differ from the ones a sequential run
+ * picks.
+ */
+public class ParallelFileEngine {
+    public static final long DEFAULT_TARGET_CHUNK_BYTES = 4L << 20;
+    public static final int DEFAULT_QUEUED_FRAMES_PER_CHUNK = 2;
+    private static final Logger log = Logger.getLogger(ParallelFileEngine.class);
+
+    private record DecodedFrame(FrameRecord frameRecord, byte[] pixels) {
+    }
+
+    private record InFlight(ForkJoinTask<?> task, ChunkFrames frames) {
+    }
+
+    private final ForkJoinPool pool;
+    private final EngineOptions options;
+    private final long targetChunkBytes;
+    private final int queuedFramesPerChunk;
+
+    public ParallelFileEngine(ForkJoinPool pool, EngineOptions options) {
+        this(pool, options, DEFAULT_TARGET_CHUNK_BYTES, DEFAULT_QUEUED_FRAMES_PER_CHUNK);
+    }
+
+    /**
+     * @param targetChunkBytes Encoded bytes a chunk grows to before the next one starts.
+     * @param queuedFramesPerChunk Decoded frames a chunk holds until the merge writes them.
+     */
+    public ParallelFileEngine(ForkJoinPool pool, EngineOptions options, long targetChunkBytes, int queuedFramesPerChunk) {
+        if (queuedFramesPerChunk <= 0) {
+            throw new IllegalArgumentException("queuedFramesPerChunk should be positive");
+        }
+        this.pool = pool;
+        this.options = options;
+        this.targetChunkBytes = targetChunkBytes;
+        this.queuedFramesPerChunk = queuedFramesPerChunk;
+    }
+
+    public void pipe(Path path, OutputStream os, FrameRecordWriter.RecordListener recordListener) throws IOException {
+        var chunks = MkvChunkScanner.scan(path, targetChunkBytes);
+        log.info("Decoding %d chunks of %s on %d threads".formatted(chunks.size(), path, pool.getParallelism()));
+        var recordWriter = new FrameRecordWriter(StreamingEngine.channelOf(os), recordListener);
+        int maxInFlight = 2 * pool.getParallelism();
+        Deque<InFlight> inFlight = new ArrayDeque<>();
+        var nextChunk = chunks.iterator();
+        try {
+            while (nextChunk.hasNext() || !inFlight.isEmpty()) {
+                while (nextChunk.hasNext() && inFlight.size() < maxInFlight) {
+                    var chunk = nextChunk.next();
+                    var frames = new ChunkFrames(queuedFramesPerChunk);
+                    inFlight.add(new InFlight(pool.submit(() -> decode(path, chunk, frames)), frames));
+                }
+                var next = inFlight.removeFirst();
+                DecodedFrame decodedFrame;
+                while ((decodedFrame = next.frames().take()) != ChunkFrames.END) {
+                    recordWriter.write(decodedFrame.frameRecord(), decodedFrame.pixels(), decodedFrame.pixels().length);
+                }
+                // Rethrows the failure of the task, if any.
+                next.task().join();
+                if (next.frames().interrupted) {
+                    throw new InterruptedIOException("Decoding of a chunk of %s was interrupted".formatted(path));
+                }
+            }
+        } finally {
+            inFlight.forEach(next -> {
+                next.frames().abandon();
+                next.task().cancel(true);
+            });
+        }
+    }
+
+    private void decode(Path path, MkvChunkScanner.Chunk chunk, ChunkFrames decodedFrames) {
+        var reader = StreamingMkvReader.create(ByteBufferParserByteSource.create(views(path, chunk)),
+                StreamingMkvReader.Configuration.builder()
+                        .useReadAheadWindow(true)
+                        .keyFramesOnly(options.keyFramesOnly())
+                        .build());
+        var frameProcessor = StreamingEngine.createFrameProcessor(options,
+                (image, frame, trackMetadata, fragmentMetadata, timescale, fragmentTimecode) -> {
+                    // The decoder draws every frame into the same image, so the pixels are copied.
+                    byte[] pixels = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+                    decodedFrames.add(new DecodedFrame(FrameRecord.of(image, frame, fragmentMetadata, timescale, fragmentTimecode),
+                            pixels.clone()));
+                });
+        Optional<FragmentMetadataVisitor.MkvTagProcessor> tagProcessor = Optional.of(new FragmentMetadataVisitor.BasicMkvTagProcessor());
+        try (frameProcessor) {
+            var visitor = FrameVisitor.createWithoutCopy(frameProcessor, tagProcessor, Optional.empty(), options.keyFramesOnly());
+            while (!decodedFrames.abandoned && reader.mightHaveNext()) {
+                reader.nextIfAvailable().ifPresent(element -> {
+                    try {
+                        element.accept(visitor);
+                    } catch (MkvElementVisitException e) {
+                        log.error("Cannot visit element", e);
+                    }
+                });
+            }
+        } finally {
+            reader.close();
+            decodedFrames.end();
+        }
+    }
+
+    /**
+     * @return The header and the clusters of the chunk, as views of the file mapped by this task.
+     */
+    private static List<ByteBuffer> views(Path path, MkvChunkScanner.Chunk chunk) {
+        List<ByteBuffer> views = new ArrayList<>();
+        // The mapping stays valid once the file is closed.
+        try (var file = MappedFileParserByteSource.open(path)) {
+            file.skip(chunk.headerOffset());
+            views.add(file.readView(chunk.headerLength()));
+            file.skip(chunk.offset() - file.position());
+            long remaining = chunk.length();
+            while (remaining > 0 && !file.eof()) {
+                var view = file.readView((int) Math.min(remaining, MappedFileParserByteSource.DEFAULT_CHUNK_SIZE));
+                views.add(view);
+                remaining -= view.remaining();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot map %s".formatted(path), e);
+        }
+        return views;
+    }
+
+    /**
+     * The decoded frames of a chunk on their way from its task to the merge, followed by {@link #END}.
+     */
+    private static class ChunkFrames {
+        static final DecodedFrame END = new DecodedFrame(null, null);
+
+        private final BlockingQueue<DecodedFrame> queue;
+        volatile boolean abandoned;
+        volatile boolean interrupted;
+
+        ChunkFrames(int capacity) {
+            this.queue = new ArrayBlockingQueue<>(capacity);
+        }
+
+        /**
+         * Wait for room in the queue and add the frame, unless the merge abandoned the chunk.
+         */
+        void add(DecodedFrame frame) {
+            if (abandoned) {
+                return;
+            }
+            try {
+                // Lets the pool run another task, such as the chunk the merge waits for, while this one waits.
+                ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+                    @Override
+                    public boolean block() throws InterruptedException {
+                        queue.put(frame);
+                        return true;
+                    }
+
+                    @Override
+                    public boolean isReleasable() {
+                        return abandoned || queue.offer(frame);
+                    }
+                });
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                interrupted = true;
+                abandoned = true;
+            }
+        }
+
+        void end() {
+            add(END);
+            if (interrupted) {
+                // Frames are missing, the merge fails once it sees the end.
+                queue.clear();
+                queue.offer(END);
+            }
+        }
+
+        DecodedFrame take() throws InterruptedIOException {
+            try {
+                return queue.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for decoded frames");
+            }
+        }
+
+        /**
+         * Drop the queued frames and wake the task up, which stops decoding.
+         */
+        void abandon() {
+            abandoned = true;
+            queue.clear();
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package eu.escandasys.kinesis;
+
+/**
+ * Queue depths and policies of the stages of a {@link FramePipeline}.
+ *
+ * @param decodeQueueDepth Frames queued per track between the parser and the decoder of that track.
+ * @param decodePolicy What the parser does when a decoder queue is full.
+ * @param writeQueueDepth Images queued between the decoders and the writer.
+ * @param writePolicy What a decoder does when the writer queue is full.
+ */
+public record PipelineOptions(int decodeQueueDepth, QueuePolicy decodePolicy, int writeQueueDepth, QueuePolicy writePolicy) {
+    public PipelineOptions {
+        if (decodeQueueDepth <= 0 || writeQueueDepth <= 0) {
+            throw new IllegalArgumentException("Queue depths should be positive");
+        }
+    }
+}
@@ -0,0 +1,11 @@
+package eu.escandasys.kinesis;
+
+/**
+ * What a pipeline stage does when the queue of the next stage is full.
+ */
+public enum QueuePolicy {
+    /** Wait for room in the queue, slowing down the stages before it. */
+    BLOCK,
+    /** Drop the item. Frames are dropped up to the next key frame so that decoding stays consistent. */
+    DROP
+}
@@ -0,0 +1,28 @@
+package eu.escandasys.kinesis;
+
+import java.time.Duration;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * How the {@link StreamingEngine} calls GetMedia again when a response ends or fails before the duration is over.
+ *
+ * @param maxAttempts Reconnects in a row that bring no new frames before giving up, 0 to never reconnect.
+ * @param initialBackoff Upper bound of the wait before the first reconnect, doubled for every further attempt.
+ * @param maxBackoff Upper bound of the wait before any reconnect.
+ */
+public record ReconnectOptions(int maxAttempts, Duration initialBackoff, Duration maxBackoff) {
+    private static final int MAX_DOUBLINGS = 20;
+
+    public static ReconnectOptions none() {
+        return new ReconnectOptions(0, Duration.ZERO, Duration.ZERO);
+    }
+
+    /**
+     * A random wait between zero and the bound for the given attempt, so streams that dropped at the same time do not
+     * all reconnect at the same time.
+     */
+    public Duration backoff(int attempt) {
+        long bound = Math.min(maxBackoff.toMillis(), initialBackoff.toMillis() << Math.min(attempt, MAX_DOUBLINGS));
+        return Duration.ofMillis(ThreadLocalRandom.current().nextLong(bound + 1));
+    }
+}
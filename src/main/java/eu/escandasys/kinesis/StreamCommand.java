@@ -5,26 +5,98 @@ import jakarta.inject.Inject;
 import org.jboss.logging.Logger;
 import picocli.CommandLine.Command;
 import picocli.CommandLine.Option;
+import software.amazon.awssdk.http.SdkHttpClient;
 import software.amazon.awssdk.http.apache.ApacheHttpClient;
+import software.amazon.awssdk.http.async.SdkAsyncHttpClient;
+import software.amazon.awssdk.http.nio.netty.NettyNioAsyncHttpClient;
 import software.amazon.awssdk.services.kinesisvideomedia.model.StartSelector;
 import software.amazon.awssdk.services.kinesisvideomedia.model.StartSelectorType;
 
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
 import java.time.Duration;
 import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.ForkJoinPool;
 import java.util.function.Supplier;
 
 @Command
 @Dependent
 public class StreamCommand implements Runnable {
+    private static final int MAX_CONNECTIONS = 256;
+
     @Inject
     Logger log;
 
-    @Option(names = {"-n ", "--stream-name"}, description = "Stream name.")
-    String streamNameStr;
+    @Option(names = {"-n ", "--stream-name"}, description = "Stream name. Repeat to tee several streams.")
+    List<String> streamNames = new ArrayList<>();
+
+    @Option(names = {"-a ", "--stream-arn"}, description = "Stream ARN. Repeat to tee several streams.")
+    List<String> streamArns = new ArrayList<>();
+
+    @Option(names = {"-p", "--stream-prefix"}, description = "Tee every stream whose name starts with this prefix.")
+    String streamPrefixStr;
+
+    @Option(names = {"-o", "--output"}, description = "Output per stream: - for stdout, a file or named pipe path, or tcp://host:port. "
+            + StreamOutputs.STREAM_PLACEHOLDER + " is replaced with the stream name.", defaultValue = "-")
+    String outputStr;
+
+    @Option(names = {"-i", "--index"}, description = "Fragment index file per stream, for seeking in file outputs. "
+            + StreamOutputs.STREAM_PLACEHOLDER + " is replaced with the stream name.")
+    String indexStr;
+
+    @Option(names = {"--input-file"}, description = "Read a recorded MKV file instead of a stream, until its end unless --duration is given")
+    String inputFileStr;
+
+    @Option(names = {"--parallelism"}, description = "Threads decoding a recorded file, see --input-file, 1 to decode it in order", defaultValue = "1")
+    int parallelism;
+
+    @Option(names = {"-k", "--key-frames-only"}, description = "Decode key frames only, dropping other frames while parsing")
+    boolean keyFramesOnly;
+
+    @Option(names = {"--pipelined"}, description = "Parse, decode and write on separate threads")
+    boolean pipelined;
+
+    @Option(names = {"--decode-queue-depth"}, description = "Frames queued per track before the decoder", defaultValue = "64")
+    int decodeQueueDepth;
+
+    @Option(names = {"--write-queue-depth"}, description = "Decoded images queued before the writer", defaultValue = "4")
+    int writeQueueDepth;
+
+    @Option(names = {"--queue-policy"}, description = "What to do when a pipeline queue is full: ${COMPLETION-CANDIDATES}", defaultValue = "BLOCK")
+    QueuePolicy queuePolicy;
+
+    @Option(names = {"--async-media"}, description = "Read GetMedia responses with the asynchronous Netty client instead of one blocked thread per stream")
+    boolean asyncMedia;
+
+    @Option(names = {"--catch-up-lag"}, description = "Decode fewer frames while the stream is further behind than this, e.g. PT30S")
+    String catchUpLagStr;
 
-    @Option(names = {"-a ", "--stream-arn"}, description = "Stream ARN.")
-    String streamArnStr;
+    @Option(names = {"--caught-up-lag"}, description = "Decode every frame again once the stream is this close behind", defaultValue = "PT5S")
+    String caughtUpLagStr;
+
+    @Option(names = {"--catch-up-mode"}, description = "Frames decoded while catching up: ${COMPLETION-CANDIDATES}", defaultValue = "KEY_FRAMES")
+    DecodeMode catchUpMode;
+
+    @Option(names = {"--max-reconnects"}, description = "Reconnects in a row without new frames before giving up on a stream, 0 to never reconnect", defaultValue = "10")
+    int maxReconnects;
+
+    @Option(names = {"--reconnect-backoff"}, description = "Longest wait before the first reconnect, doubled for every further one", defaultValue = "PT0.5S")
+    String reconnectBackoffStr;
+
+    @Option(names = {"--max-reconnect-backoff"}, description = "Longest wait before any reconnect", defaultValue = "PT30S")
+    String maxReconnectBackoffStr;
+
+    @Option(names = {"--max-buffered-bytes"}, description = "Bytes queued per stream output before the stream is slowed down", defaultValue = "33554432")
+    int maxBufferedBytes;
 
     @Option(names = {"-t", "--start"}, description = "Whence to start from streaming data from archive", defaultValue = "now")
     String startWhenceStr;
@@ -32,16 +104,38 @@ public class StreamCommand implements Runnable {
     @Option(names = {"-d", "--duration"}, description = "Duration while streaming data into stdout", defaultValue = "PT0s")
     String durationStr;
 
-    @Option(names = {"-f", "--frames-per-second"}, description = "Frames per second", defaultValue = "2")
+    @Option(names = {"-f", "--frames-per-second"}, description = "Frames per second of stream time to decode, 0 for every frame", defaultValue = "2")
     String framesPerSecondStr;
 
     @Override
     public void run() {
         final Supplier<Instant> timestampSupplier = Instant::now;
         int framesPerSecond = Integer.parseInt(framesPerSecondStr);
-        int timeBetweenFrames = (int) (1000.0d / framesPerSecond);
+        final Optional<Duration> frameInterval;
+        if (framesPerSecond > 0) {
+            int timeBetweenFrames = (int) (1000.0d / framesPerSecond);
+            frameInterval = Optional.of(Duration.ofMillis(timeBetweenFrames));
+            log.info("Capturing frames every %sms.".formatted(timeBetweenFrames));
+        } else {
+            frameInterval = Optional.empty();
+            log.info("Capturing every frame.");
+        }
+        if (keyFramesOnly) {
+            log.info("Decoding key frames only.");
+        }
+        final Optional<PipelineOptions> pipeline = pipelined
+                ? Optional.of(new PipelineOptions(decodeQueueDepth, queuePolicy, writeQueueDepth, queuePolicy))
+                : Optional.empty();
+        var reconnect = new ReconnectOptions(maxReconnects, Duration.parse(reconnectBackoffStr), Duration.parse(maxReconnectBackoffStr));
+        final Optional<CatchUpOptions> catchUp = Optional.ofNullable(catchUpLagStr)
+                .map(lag -> new CatchUpOptions(Duration.parse(lag), Duration.parse(caughtUpLagStr), catchUpMode));
+        var options = new EngineOptions(frameInterval, keyFramesOnly, pipeline, reconnect, catchUp);
         Duration duration = Duration.parse(durationStr);
-        log.info("Capturing frames every %sms.".formatted(timeBetweenFrames));
+        if (inputFileStr != null) {
+            // A file never gets more frames, so reconnecting would only read it again.
+            pipeFile(duration, timestampSupplier, new EngineOptions(frameInterval, keyFramesOnly, pipeline, ReconnectOptions.none(), catchUp));
+            return;
+        }
         log.info("Capturing since %ss ago".formatted(duration.toSeconds()));
         final StartSelector startSelector;
         if (startWhenceStr.equalsIgnoreCase("now")) {
@@ -61,19 +155,135 @@ public class StreamCommand implements Runnable {
                     .startSelectorType(StartSelectorType.PRODUCER_TIMESTAMP)
                     .build();
         }
-        try (var httpClient = ApacheHttpClient.create()) {
-            var repository = new DefaultKinesisRepository(httpClient, timestampSupplier);
-            var engine = new StreamingEngine(repository, timestampSupplier);
+        if (isSingleStream()) {
+            pipeSingleStream(duration, startSelector, timestampSupplier, options);
+        } else {
+            teeStreams(duration, startSelector, timestampSupplier, options);
+        }
+    }
+
+    private boolean isSingleStream() {
+        return streamNames.size() <= 1 && streamArns.size() <= 1 && Objects.isNull(streamPrefixStr) && outputStr.equals("-");
+    }
+
+    private void pipeSingleStream(Duration duration, StartSelector startSelector, Supplier<Instant> timestampSupplier,
+            EngineOptions options) {
+        var streamNameStr = streamNames.isEmpty() ? null : streamNames.get(0);
+        var streamArnStr = streamArns.isEmpty() ? null : streamArns.get(0);
+        try (var httpClient = ApacheHttpClient.create();
+             var asyncHttpClient = createAsyncHttpClient();
+             var repository = createRepository(httpClient, asyncHttpClient, timestampSupplier)) {
+            var engine = new StreamingEngine(repository, timestampSupplier, options);
             var streamOpt = engine.findStreamInfo(streamNameStr, streamArnStr);
             if (streamOpt.isEmpty()) {
                 log.warn("No stream found for stream name %s".formatted(streamNameStr));
             } else {
                 var stream = streamOpt.get();
                 log.info("Found stream %s by ARN %s".formatted(stream.streamName(), stream.streamARN()));
-                engine.pipe(duration, stream.streamName(), stream.streamARN(), startSelector, System.out);
+                // Writing to the stdout descriptor directly lets the engine use its file channel.
+                System.out.flush();
+                try (var index = StreamOutputs.openIndex(indexStr, stream)) {
+                    engine.pipe(duration, stream.streamName(), stream.streamARN(), startSelector,
+                            new FileOutputStream(FileDescriptor.out), index);
+                }
             }
         } catch (IOException e) {
             log.error("Cannot pipe entirely stream", e);
         }
     }
+
+    private void pipeFile(Duration duration, Supplier<Instant> timestampSupplier, EngineOptions options) {
+        var repository = new MkvFileRepository(Path.of(inputFileStr));
+        var stream = repository.streamInfo();
+        log.info("Reading recorded file %s".formatted(inputFileStr));
+        System.out.flush();
+        try (var index = StreamOutputs.openIndex(indexStr, stream)) {
+            if (outputStr.equals("-")) {
+                pipeFileTo(repository, duration, timestampSupplier, options, new FileOutputStream(FileDescriptor.out), index);
+            } else {
+                try (var os = StreamOutputs.open(outputStr, stream)) {
+                    pipeFileTo(repository, duration, timestampSupplier, options, os, index);
+                }
+            }
+        } catch (IOException | UncheckedIOException e) {
+            log.error("Cannot pipe entirely file %s".formatted(inputFileStr), e);
+        }
+    }
+
+    private void pipeFileTo(MkvFileRepository repository, Duration duration, Supplier<Instant> timestampSupplier,
+            EngineOptions options, OutputStream os, FrameRecordWriter.RecordListener index) throws IOException {
+        if (parallelism > 1) {
+            if (!duration.isZero()) {
+                log.warn("Decoding the whole file, --duration does not apply to parallel decoding");
+            }
+            try (var pool = new ForkJoinPool(parallelism)) {
+                new ParallelFileEngine(pool, options).pipe(repository.path(), os, index);
+            }
+            return;
+        }
+        var stream = repository.streamInfo();
+        var fileDuration = duration.isZero() ? ChronoUnit.MILLENNIA.getDuration() : duration;
+        var startSelector = StartSelector.builder()
+                .startSelectorType(StartSelectorType.EARLIEST)
+                .build();
+        new StreamingEngine(repository, timestampSupplier, options)
+                .pipe(fileDuration, stream.streamName(), stream.streamARN(), startSelector, os, index);
+    }
+
+    private void teeStreams(Duration duration, StartSelector startSelector, Supplier<Instant> timestampSupplier,
+            EngineOptions options) {
+        if (outputStr.equals("-")) {
+            log.error("Teeing several streams requires an output per stream, see --output");
+            return;
+        }
+        // One connection stays open per stream for the whole GetMedia call, on top of the control plane calls.
+        try (var httpClient = ApacheHttpClient.builder().maxConnections(MAX_CONNECTIONS).build();
+             var asyncHttpClient = createAsyncHttpClient();
+             var repository = createRepository(httpClient, asyncHttpClient, timestampSupplier)) {
+            var engine = new StreamingEngine(repository, timestampSupplier, options);
+            var streams = engine.findStreamInfos(streamNames, streamArns, streamPrefixStr);
+            if (streams.isEmpty()) {
+                log.warn("No stream found for stream names %s, ARNs %s or prefix %s".formatted(streamNames, streamArns, streamPrefixStr));
+                return;
+            }
+            if (streams.size() >= MAX_CONNECTIONS) {
+                log.error("Cannot tee %d streams, at most %d are supported".formatted(streams.size(), MAX_CONNECTIONS - 1));
+                return;
+            }
+            StreamOutputs.validate(outputStr, streams.size());
+            if (indexStr != null) {
+                StreamOutputs.validate(indexStr, streams.size());
+            }
+            var teeEngine = new TeeEngine(engine, maxBufferedBytes);
+            int failed = teeEngine.tee(duration, streams, startSelector, s -> StreamOutputs.open(outputStr, s),
+                    s -> StreamOutputs.openIndex(indexStr, s));
+            log.info("Teed %d streams, %d failed".formatted(streams.size(), failed));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.error("Interrupted while teeing streams", e);
+        } catch (IllegalArgumentException e) {
+            log.error("Cannot tee streams", e);
+        }
+    }
+
+    /**
+     * @return The async HTTP client for GetMedia, or null when the blocking client reads the media as well.
+     */
+    private SdkAsyncHttpClient createAsyncHttpClient() {
+        if (!asyncMedia) {
+            return null;
+        }
+        return NettyNioAsyncHttpClient.builder()
+                .maxConcurrency(MAX_CONNECTIONS)
+                .build();
+    }
+
+    private KinesisRepository createRepository(SdkHttpClient httpClient, SdkAsyncHttpClient asyncHttpClient,
+            Supplier<Instant> timestampSupplier) {
+        if (asyncHttpClient != null) {
+            log.info("Reading media with the asynchronous client.");
+            return new AsyncKinesisRepository(httpClient, asyncHttpClient, timestampSupplier);
+        }
+        return new DefaultKinesisRepository(httpClient, timestampSupplier);
+    }
 }
@@ -0,0 +1,54 @@
+package eu.escandasys.kinesis;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import software.amazon.awssdk.services.kinesisvideo.model.StreamInfo;
+
+/**
+ * Opens the output of a stream from a destination template. The {@value #STREAM_PLACEHOLDER} placeholder is
+ * replaced with the stream name. A tcp://host:port destination connects a socket, anything else is opened as a
+ * file path, which also covers named pipes created with mkfifo.
+ */
+public final class StreamOutputs {
+    public static final String STREAM_PLACEHOLDER = "{stream}";
+    private static final String TCP_SCHEME = "tcp";
+
+    private StreamOutputs() {
+    }
+
+    public static void validate(String template, int streamCount) {
+        if (streamCount > 1 && !isSocket(template) && !template.contains(STREAM_PLACEHOLDER)) {
+            throw new IllegalArgumentException("Output %s should contain %s when teeing %d streams"
+                    .formatted(template, STREAM_PLACEHOLDER, streamCount));
+        }
+    }
+
+    public static OutputStream open(String template, StreamInfo streamInfo) throws IOException {
+        var destination = template.replace(STREAM_PLACEHOLDER, streamInfo.streamName());
+        if (isSocket(destination)) {
+            var uri = URI.create(destination);
+            // Closing the socket output stream also closes the socket.
+            return new Socket(uri.getHost(), uri.getPort()).getOutputStream();
+        }
+        return Files.newOutputStream(Path.of(destination));
+    }
+
+    /**
+     * Create the fragment index of a stream from a file path template, or nothing when there is no template.
+     */
+    public static FrameRecordWriter.RecordListener openIndex(String template, StreamInfo streamInfo) throws IOException {
+        if (template == null) {
+            return FrameRecordWriter.RecordListener.NONE;
+        }
+        return FragmentIndexWriter.create(Path.of(template.replace(STREAM_PLACEHOLDER, streamInfo.streamName())));
+    }
+
+    private static boolean isSocket(String destination) {
+        return destination.startsWith(TCP_SCHEME + "://");
+    }
+}
@@ -2,13 +2,17 @@ package eu.escandasys.kinesis;
 
 import java.awt.image.BufferedImage;
 import java.awt.image.DataBufferByte;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.nio.ByteBuffer;
+import java.io.UncheckedIOException;
 import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 import java.time.Duration;
 import java.time.Instant;
-import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.function.Supplier;
@@ -16,23 +20,33 @@ import java.util.function.Supplier;
 import org.apache.commons.lang3.exception.ExceptionUtils;
 import org.jboss.logging.Logger;
 
+import com.amazonaws.kinesisvideo.parser.mkv.MkvElement;
 import com.amazonaws.kinesisvideo.parser.mkv.MkvElementVisitException;
 import com.amazonaws.kinesisvideo.parser.utilities.FragmentMetadataVisitor;
 import com.amazonaws.kinesisvideo.parser.utilities.FrameVisitor;
+import com.amazonaws.kinesisvideo.parser.utilities.H264FrameDecoder;
 import com.amazonaws.kinesisvideo.parser.utilities.H264FrameRenderer;
+import com.amazonaws.kinesisvideo.parser.utilities.H264FrameSampler;
 
 import software.amazon.awssdk.services.kinesisvideo.model.StreamInfo;
 import software.amazon.awssdk.services.kinesisvideomedia.model.StartSelector;
+import software.amazon.awssdk.services.kinesisvideomedia.model.StartSelectorType;
 
 public class StreamingEngine {
     private static final Logger log = Logger.getLogger(StreamingEngine.class);
     
     private final KinesisRepository kinesisRepository;
     private final Supplier<Instant> timestampSupplier;
+    private final EngineOptions options;
             
     public StreamingEngine(KinesisRepository repository, Supplier<Instant> timestampSupplier) {
+        this(repository, timestampSupplier, EngineOptions.defaults());
+    }
+
+    public StreamingEngine(KinesisRepository repository, Supplier<Instant> timestampSupplier, EngineOptions options) {
         this.kinesisRepository = repository;
         this.timestampSupplier = timestampSupplier;
+        this.options = options;
     }
 
     public Optional<StreamInfo> findStreamInfo(String streamNameStr, String streamArnStr) {
@@ -51,71 +65,251 @@ public class StreamingEngine {
         return Optional.empty();
     }
 
+    /**
+     * Find the streams whose name or ARN is in the given collections or whose name starts with the given prefix.
+     */
+    public List<StreamInfo> findStreamInfos(Collection<String> streamNames, Collection<String> streamArns, String streamNamePrefix) {
+        var streamInfos = kinesisRepository.streamInfos();
+        log.info("Found %d stream names".formatted(streamInfos.size()));
+        List<StreamInfo> matching = new ArrayList<>();
+        for (StreamInfo streamInfo : streamInfos) {
+            boolean byName = streamNames.stream().anyMatch(n -> n.equalsIgnoreCase(streamInfo.streamName()));
+            boolean byArn = streamArns.stream().anyMatch(a -> a.equalsIgnoreCase(streamInfo.streamARN()));
+            boolean byPrefix = Objects.nonNull(streamNamePrefix) && streamInfo.streamName().startsWith(streamNamePrefix);
+            if (byName || byArn || byPrefix) {
+                log.info("Selected stream %s".formatted(streamInfo.streamName()));
+                matching.add(streamInfo);
+            }
+        }
+        return matching;
+    }
+
+    /**
+     * Decode the frames of a stream into records written to the given output until the duration is over. When the
+     * GetMedia response ends or fails early, GetMedia is called again as configured in {@link ReconnectOptions},
+     * resuming from the last continuation token of the stream.
+     */
     public void pipe(Duration duration, String streamName, String streamArn, StartSelector startSelector, OutputStream os) throws IOException {
-        try (var it = kinesisRepository.getMedia(startSelector, streamName, streamArn)) {
-            log.info("Reading input for stream with ARN %s".formatted(streamArn));
-            final var start = timestampSupplier.get();
-            var mkvTagProcessor = new FragmentMetadataVisitor.BasicMkvTagProcessor();
-            Optional<FragmentMetadataVisitor.MkvTagProcessor> tagProcessor = Optional.of(mkvTagProcessor);
-            final H264FrameRenderer frameProcessor = H264FrameRenderer.create(t -> onFrame(os, t));
-            var visitor = FrameVisitor.create(frameProcessor, tagProcessor);
-            while (it.hasNext()) {
-                var element = measure("Retrieving one MKV element took %d ms", it::next);
-                @SuppressWarnings("unused")
-                var _ignored = measure("Processing one frame took %d ms", () -> {
-                    element.ifPresent(e -> {
-                        try {
-                            e.accept(visitor);
-                        } catch (MkvElementVisitException ex) {
-                            log.error("Cannot visit element", ex);
-                        }
-                    });
-                    return null;
-                });
-                var now = timestampSupplier.get();
-                if (start.plus(duration).isBefore(now)) {
-                    log.warn("breaking loop");
-                    break;
+        pipe(duration, streamName, streamArn, startSelector, os, FrameRecordWriter.RecordListener.NONE);
+    }
+
+    /**
+     * @param recordListener Told about every record written to the output, such as a {@link FragmentIndexWriter}.
+     */
+    public void pipe(Duration duration, String streamName, String streamArn, StartSelector startSelector, OutputStream os,
+            FrameRecordWriter.RecordListener recordListener) throws IOException {
+        final var start = timestampSupplier.get();
+        var mkvTagProcessor = new FragmentMetadataVisitor.BasicMkvTagProcessor();
+        Optional<FragmentMetadataVisitor.MkvTagProcessor> tagProcessor = Optional.of(mkvTagProcessor);
+        final var recordWriter = new FrameRecordWriter(channelOf(os), recordListener);
+        try (var metrics = EngineMetrics.register(streamName, timestampSupplier)) {
+            final var frameWriter = metrics.timed(recordWriter::write);
+            final Optional<FramePipeline> pipeline = options.pipeline()
+                    .map(p -> new FramePipeline(p, options.frameInterval(), c -> createRenderer(metrics, c), frameWriter));
+            final FrameVisitor.FrameProcessor frameProcessor = pipeline.<FrameVisitor.FrameProcessor>map(p -> p)
+                    .orElseGet(() -> createFrameProcessor(options, metrics, (image, frame, trackMetadata, fragmentMetadata, timescale, fragmentTimecode) ->
+                            onFrame(frameWriter, image, FrameRecord.of(image, frame, fragmentMetadata, timescale, fragmentTimecode))));
+            pipeline.ifPresent(p -> metrics.addDroppedFrames(p::getDroppedFrames));
+            final Optional<CatchUpThrottle> catchUp = options.catchUp()
+                    .map(c -> CatchUpThrottle.register(frameProcessor, c, streamName));
+            catchUp.ifPresent(c -> metrics.addDroppedFrames(c::getFramesSkipped));
+            try (var frameFilter = new DuplicateFrameFilter(catchUp.<FrameVisitor.FrameProcessor>map(c -> c).orElse(frameProcessor))) {
+                // One visitor for all the GetMedia calls, so decoding and the fragment metadata carry on across reconnects.
+                var visitor = FrameVisitor.createWithoutCopy(frameFilter, tagProcessor, Optional.empty(), options.keyFramesOnly());
+                readMedia(streamName, streamArn, startSelector, visitor, frameFilter, catchUp, metrics, mkvTagProcessor, start, duration);
+                if (frameFilter.dropped() > 0) {
+                    log.info("Dropped %d frames of stream %s that were sent again after reconnecting".formatted(frameFilter.dropped(), streamName));
+                }
+            }
+            log.info(metrics.summary());
+        }
+    }
+
+    /**
+     * Visit GetMedia responses until the duration is over, calling GetMedia again when a response ends early.
+     */
+    private void readMedia(String streamName, String streamArn, StartSelector startSelector, FrameVisitor visitor,
+            DuplicateFrameFilter frameFilter, Optional<CatchUpThrottle> catchUp, EngineMetrics metrics,
+            FragmentMetadataVisitor.MkvTagProcessor mkvTagProcessor, Instant start, Duration duration) throws IOException {
+        var fragmentMetadataVisitor = visitor.getFragmentMetadataVisitor();
+        var reconnect = options.reconnect();
+        var selector = startSelector;
+        int attempts = 0;
+        while (true) {
+            long handedOn = frameFilter.handedOn();
+            var continuationToken = fragmentMetadataVisitor.getContinuationToken();
+            RuntimeException failure = null;
+            try (var it = openMedia(selector, streamName, streamArn)) {
+                log.info("Reading input for stream with ARN %s".formatted(streamArn));
+                if (visitAll(it, visitor, catchUp, metrics, start, duration)) {
+                    return;
                 }
+                log.info("GetMedia response for stream %s ended".formatted(streamName));
+            } catch (MediaReadException e) {
+                failure = e.getCause();
+                log.warn("GetMedia for stream %s failed".formatted(streamName), failure);
             }
+            if (frameFilter.handedOn() > handedOn
+                    || !fragmentMetadataVisitor.getContinuationToken().equals(continuationToken)) {
+                attempts = 0;
+            }
+            if (attempts >= reconnect.maxAttempts() || start.plus(duration).isBefore(timestampSupplier.get())) {
+                if (failure != null) {
+                    throw failure;
+                }
+                return;
+            }
+            var backoff = reconnect.backoff(attempts++);
+            selector = resumeSelector(startSelector, fragmentMetadataVisitor);
+            log.info("Reconnecting to stream %s in %d ms from %s, attempt %d".formatted(
+                    streamName, backoff.toMillis(), selector.startSelectorType(), attempts));
+            try {
+                Thread.sleep(backoff);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                log.warn("Interrupted while waiting to reconnect to stream %s".formatted(streamName));
+                return;
+            }
+            frameFilter.reconnected();
+            mkvTagProcessor.clear();
+        }
+    }
+
+    /**
+     * Where to start again after a GetMedia response ended: after the last fragment a continuation token was
+     * received for, else from the last fragment seen, else where the first call started.
+     */
+    private static StartSelector resumeSelector(StartSelector startSelector, FragmentMetadataVisitor fragmentMetadataVisitor) {
+        var continuationToken = fragmentMetadataVisitor.getContinuationToken();
+        if (continuationToken.isPresent()) {
+            return StartSelector.builder()
+                    .startSelectorType(StartSelectorType.CONTINUATION_TOKEN)
+                    .continuationToken(continuationToken.get())
+                    .build();
         }
+        return fragmentMetadataVisitor.getPreviousFragmentMetadata()
+                .or(fragmentMetadataVisitor::getCurrentFragmentMetadata)
+                .map(fragmentMetadata -> StartSelector.builder()
+                        .startSelectorType(StartSelectorType.FRAGMENT_NUMBER)
+                        .afterFragmentNumber(fragmentMetadata.getFragmentNumberString())
+                        .build())
+                .orElse(startSelector);
     }
 
-    private <U> U measure(String fmt, Supplier<U> supplier) {
-        var start = timestampSupplier.get();
-        U i;
+    private ClosingIterator<MkvElement> openMedia(StartSelector startSelector, String streamName, String streamArn) {
         try {
-            i = supplier.get();
-            var end = timestampSupplier.get();
-            var ms = start.until(end, ChronoUnit.MILLIS);
-            log.info(fmt.formatted(ms));
-        } catch (Throwable t) {
-            var end = timestampSupplier.get();
-            log.error(fmt.formatted(start.until(end, ChronoUnit.MILLIS)));
-            throw t;
+            return kinesisRepository.getMedia(startSelector, streamName, streamArn, options.keyFramesOnly());
+        } catch (RuntimeException e) {
+            throw new MediaReadException(e);
         }
-        return i;
-    }
-
-    public void onFrame(OutputStream os, BufferedImage bufferedImage) {
-        log.info("writing rasterized to output");
-        var raster = bufferedImage.getData();
-        var size = raster.getDataBuffer().getSize();
-        log.info("buffered image of size %d".formatted(size));
-        var channel = Channels.newChannel(os);
-        var longByteBuffer = ByteBuffer.allocate(8);
-        longByteBuffer.putLong(size);
-        log.info("wrote size to output");
+    }
+
+    static FrameVisitor.FrameProcessor createFrameProcessor(EngineOptions options, H264FrameRenderer.DecodedFrameConsumer frameConsumer) {
+        return createFrameProcessor(options, H264FrameDecoder.DecodeTimer.NONE, frameConsumer);
+    }
+
+    static FrameVisitor.FrameProcessor createFrameProcessor(EngineOptions options, H264FrameDecoder.DecodeTimer decodeTimer,
+            H264FrameRenderer.DecodedFrameConsumer frameConsumer) {
+        final H264FrameRenderer renderer = createRenderer(decodeTimer, frameConsumer);
+        return options.frameInterval()
+                .<FrameVisitor.FrameProcessor>map(interval -> H264FrameSampler.create(renderer, interval))
+                .orElse(renderer);
+    }
+
+    static H264FrameRenderer createRenderer(H264FrameDecoder.DecodeTimer decodeTimer,
+            H264FrameRenderer.DecodedFrameConsumer frameConsumer) {
+        final H264FrameRenderer renderer = H264FrameRenderer.createWithMetadata(frameConsumer);
+        renderer.setDecodeTimer(decodeTimer);
+        return renderer;
+    }
+
+    /**
+     * @return True if the duration is over, false if the response ended first.
+     * @throws MediaReadException If reading the response failed.
+     */
+    private boolean visitAll(ClosingIterator<MkvElement> it, FrameVisitor visitor, Optional<CatchUpThrottle> catchUp,
+            EngineMetrics metrics, Instant start, Duration duration) {
+        var fragmentMetadataVisitor = visitor.getFragmentMetadataVisitor();
+        while (true) {
+            long readStart = System.nanoTime();
+            long waitStart = it.waitNanos();
+            if (!hasNext(it)) {
+                return false;
+            }
+            var element = next(it);
+            long fetchNanos = it.waitNanos() - waitStart;
+            long parseNanos = System.nanoTime() - readStart - fetchNanos;
+            element.ifPresent(e -> {
+                metrics.onElement(e, fetchNanos, parseNanos);
+                try {
+                    e.accept(visitor);
+                } catch (MkvElementVisitException ex) {
+                    log.error("Cannot visit element", ex);
+                }
+            });
+            var lag = fragmentMetadataVisitor.getMillisBehindNow();
+            metrics.onLag(lag);
+            catchUp.ifPresent(c -> c.onLag(lag));
+            var now = timestampSupplier.get();
+            if (start.plus(duration).isBefore(now)) {
+                log.warn("breaking loop");
+                return true;
+            }
+        }
+    }
+
+    private static boolean hasNext(ClosingIterator<MkvElement> it) {
+        try {
+            return it.hasNext();
+        } catch (RuntimeException e) {
+            throw new MediaReadException(e);
+        }
+    }
+
+    private static Optional<MkvElement> next(ClosingIterator<MkvElement> it) {
         try {
-            channel.write(longByteBuffer);
-            DataBufferByte bufferBytes = (DataBufferByte) raster.getDataBuffer();
-            byte[] bytes = bufferBytes.getData();
-            var buffer = ByteBuffer.wrap(bytes);
-            log.info("writing buffer to output of size %d".formatted(bytes.length));
-            channel.write(buffer);
-            log.info("wrote output");
+            return it.next();
+        } catch (RuntimeException e) {
+            throw new MediaReadException(e);
+        }
+    }
+
+    public void onFrame(FramePipeline.FrameWriter frameWriter, BufferedImage bufferedImage, FrameRecord frameRecord) {
+        // getRaster, unlike getData, does not copy the pixels.
+        byte[] bytes = ((DataBufferByte) bufferedImage.getRaster().getDataBuffer()).getData();
+        try {
+            frameWriter.write(frameRecord, bytes, bytes.length);
         } catch (IOException e) {
             log.error("Cannot write to output channel", e);
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * File streams, stdout included, have a channel that supports gathering writes, and streams that are channels
+     * themselves, such as {@link BoundedAsyncOutputStream}, are used as they are.
+     */
+    static WritableByteChannel channelOf(OutputStream os) {
+        if (os instanceof WritableByteChannel channel) {
+            return channel;
+        }
+        if (os instanceof FileOutputStream fileOutputStream) {
+            return fileOutputStream.getChannel();
+        }
+        return Channels.newChannel(os);
+    }
+
+    /**
+     * Failure reading the GetMedia response, as opposed to a failure decoding or writing frames.
+     */
+    private static class MediaReadException extends RuntimeException {
+        MediaReadException(RuntimeException cause) {
+            super(cause);
+        }
+
+        @Override
+        public synchronized RuntimeException getCause() {
+            return (RuntimeException) super.getCause();
         }
     }
 }
@@ -0,0 +1,91 @@
+package eu.escandasys.kinesis;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.jboss.logging.Logger;
+
+import software.amazon.awssdk.services.kinesisvideo.model.StreamInfo;
+import software.amazon.awssdk.services.kinesisvideomedia.model.StartSelector;
+
+/**
+ * Runs the pipeline of several streams in one process. Each stream is piped on its own virtual thread into its own
+ * output, with at most maxBufferedBytes queued towards that output.
+ */
+public class TeeEngine {
+    private static final Logger log = Logger.getLogger(TeeEngine.class);
+
+    @FunctionalInterface
+    public interface OutputOpener {
+        OutputStream open(StreamInfo streamInfo) throws IOException;
+    }
+
+    @FunctionalInterface
+    public interface IndexOpener {
+        FrameRecordWriter.RecordListener open(StreamInfo streamInfo) throws IOException;
+    }
+
+    private final StreamingEngine streamingEngine;
+    private final int maxBufferedBytes;
+
+    public TeeEngine(StreamingEngine streamingEngine, int maxBufferedBytes) {
+        this.streamingEngine = streamingEngine;
+        this.maxBufferedBytes = maxBufferedBytes;
+    }
+
+    /**
+     * Pipe all streams concurrently and wait for them to finish. A failing stream does not stop the others.
+     *
+     * @return the number of streams that failed.
+     */
+    public int tee(Duration duration, Collection<StreamInfo> streams, StartSelector startSelector, OutputOpener outputOpener)
+            throws InterruptedException {
+        return tee(duration, streams, startSelector, outputOpener, s -> FrameRecordWriter.RecordListener.NONE);
+    }
+
+    /**
+     * @param indexOpener Opens what is told about the records written to the output of a stream.
+     */
+    public int tee(Duration duration, Collection<StreamInfo> streams, StartSelector startSelector, OutputOpener outputOpener,
+            IndexOpener indexOpener) throws InterruptedException {
+        List<Future<?>> futures = new ArrayList<>(streams.size());
+        List<StreamInfo> startedStreams = new ArrayList<>(streams.size());
+        try (var executor = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("tee-", 0).factory())) {
+            for (StreamInfo stream : streams) {
+                log.info("Starting pipe for stream %s".formatted(stream.streamName()));
+                futures.add(executor.submit(() -> {
+                    pipe(duration, stream, startSelector, outputOpener, indexOpener);
+                    return null;
+                }));
+                startedStreams.add(stream);
+            }
+            int failed = 0;
+            for (int i = 0; i < futures.size(); i++) {
+                var streamName = startedStreams.get(i).streamName();
+                try {
+                    futures.get(i).get();
+                    log.info("Pipe for stream %s finished".formatted(streamName));
+                } catch (ExecutionException e) {
+                    failed++;
+                    log.error("Pipe for stream %s failed".formatted(streamName), e.getCause());
+                }
+            }
+            return failed;
+        }
+    }
+
+    private void pipe(Duration duration, StreamInfo stream, StartSelector startSelector, OutputOpener outputOpener,
+            IndexOpener indexOpener) throws IOException {
+        try (var index = indexOpener.open(stream);
+             var os = new BoundedAsyncOutputStream(outputOpener.open(stream), maxBufferedBytes, stream.streamName())) {
+            streamingEngine.pipe(duration, stream.streamName(), stream.streamARN(), startSelector, os, index);
+        }
+    }
+}
@@ -0,0 +1,362 @@
+package com.amazonaws.kinesisvideo.parser.ebml;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import com.amazonaws.kinesisvideo.parser.mkv.MkvDataElement;
+import com.amazonaws.kinesisvideo.parser.mkv.MkvElement;
+import com.amazonaws.kinesisvideo.parser.mkv.MkvTypeInfoProvider;
+import com.amazonaws.kinesisvideo.parser.mkv.ReadBufferPool;
+import com.amazonaws.kinesisvideo.parser.mkv.StreamingMkvReader;
+
+public class EBMLParserTest {
+    private static final byte[] EBML_HEADER = {
+        0x1A, 0x45, (byte) 0xDF, (byte) 0xA3, (byte) 0x8B,
+        0x42, (byte) 0x82, (byte) 0x88, 'm', 'a', 't', 'r', 'o', 's', 'k', 'a'
+    };
+    private static final byte[] SEGMENT_WITH_UNKNOWN_LENGTH = {
+        0x18, 0x53, (byte) 0x80, 0x67, 0x01, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF,
+        (byte) 0xFF, (byte) 0xFF
+    };
+
+    @Test
+    public void testReadAheadWindowMatchesByteAtATimeParsing() {
+        byte[] mkv = createMkv(20);
+
+        List<String> expected = readAll(StreamingMkvReader.createDefault(
+                new InputStreamParserByteSource(new ByteArrayInputStream(mkv))));
+        List<String> windowed = readAll(StreamingMkvReader.createWithReadAheadWindow(
+                new InputStreamParserByteSource(new ByteArrayInputStream(mkv))));
+        List<String> trickled = readAll(StreamingMkvReader.createWithReadAheadWindow(
+                new InputStreamParserByteSource(new TricklingInputStream(mkv))));
+
+        assertFalse(expected.isEmpty());
+        assertEquals(expected, windowed);
+        assertEquals(expected, trickled);
+    }
+
+    @Test
+    public void testPooledReadBuffersMatchDefaultReadBuffer() {
+        byte[] mkv = createMkv(20);
+        ReadBufferPool pool = ReadBufferPool.builder()
+                .minBufferSize(256)
+                .maxPooledBufferSize(512)
+                .maxPooledBytes(1024L)
+                .direct(true)
+                .build();
+
+        List<String> expected = readAll(StreamingMkvReader.createDefault(
+                new InputStreamParserByteSource(new ByteArrayInputStream(mkv))));
+        List<String> pooled = readAll(StreamingMkvReader.create(
+                new InputStreamParserByteSource(new TricklingInputStream(mkv)),
+                StreamingMkvReader.Configuration.builder()
+                        .useReadAheadWindow(true)
+                        .readBufferPool(Optional.of(pool))
+                        .build()));
+
+        assertEquals(expected, pooled);
+        assertTrue(pool.getPooledBytes() > 0);
+        assertTrue(pool.getPooledBytes() <= pool.getMaxPooledBytes());
+    }
+
+    @Test
+    public void testKeyFramesOnlyDropsOtherSimpleBlocks() {
+        byte[] mkv = createMkv(20);
+
+        List<String> expected = readAll(StreamingMkvReader.createDefault(
+                new InputStreamParserByteSource(new ByteArrayInputStream(mkv))));
+        expected.removeIf(e -> e.endsWith("keyFrame=false"));
+        List<String> keyFramesOnly = readAll(StreamingMkvReader.create(
+                new InputStreamParserByteSource(new TricklingInputStream(mkv)),
+                StreamingMkvReader.Configuration.builder()
+                        .keyFramesOnly(true)
+                        .build()));
+        long[] skippedBytes = new long[1];
+        ParserByteSource skipCounting = new InputStreamParserByteSource(new ByteArrayInputStream(mkv)) {
+            @Override
+            public long skip(long numBytes) {
+                long skipped = super.skip(numBytes);
+                skippedBytes[0] += skipped;
+                return skipped;
+            }
+        };
+        List<String> skipped = readAll(StreamingMkvReader.create(skipCounting,
+                StreamingMkvReader.Configuration.builder()
+                        .keyFramesOnly(true)
+                        .build()));
+
+        assertEquals(20, expected.stream().filter(e -> e.endsWith("keyFrame=true")).count());
+        assertEquals(expected, keyFramesOnly);
+        assertEquals(expected, skipped);
+        //The payload of the other blocks is skipped past their header rather than read.
+        assertTrue(skippedBytes[0] > 0);
+    }
+
+    @Test
+    public void testTypeInfosToReadSkipsOtherDataElementsInParser() {
+        byte[] mkv = createMkv(20);
+        List<EBMLTypeInfo> typeInfosToRead = List.of(MkvTypeInfos.TIMECODE);
+
+        List<String> expected = readAll(StreamingMkvReader.createDefault(
+                new InputStreamParserByteSource(new ByteArrayInputStream(mkv))));
+        expected.removeIf(e -> e.startsWith("MkvDataElement") && !e.contains(MkvTypeInfos.TIMECODE.getName()));
+        long[] skippedBytes = new long[1];
+        ParserByteSource skipCounting = new InputStreamParserByteSource(new ByteArrayInputStream(mkv)) {
+            @Override
+            public long skip(long numBytes) {
+                long skipped = super.skip(numBytes);
+                skippedBytes[0] += skipped;
+                return skipped;
+            }
+        };
+        List<String> filtered = readAll(StreamingMkvReader.create(skipCounting,
+                StreamingMkvReader.Configuration.builder()
+                        .typeInfosToRead(typeInfosToRead)
+                        .build()));
+        List<String> windowed = readAll(StreamingMkvReader.create(
+                new InputStreamParserByteSource(new TricklingInputStream(mkv)),
+                StreamingMkvReader.Configuration.builder()
+                        .typeInfosToRead(typeInfosToRead)
+                        .useReadAheadWindow(true)
+                        .build()));
+
+        assertEquals(expected, filtered);
+        assertEquals(expected, windowed);
+        assertTrue(skippedBytes[0] > 0);
+    }
+
+    @Test
+    public void testRingBufferByteSourceMatchesInputStreamByteSource() {
+        byte[] mkv = createMkv(20);
+
+        List<String> expected = readAll(StreamingMkvReader.createDefault(
+                new InputStreamParserByteSource(new ByteArrayInputStream(mkv))));
+        //A ring much smaller than the stream, so that the reader thread waits for space and reads wrap around.
+        try (RingBufferParserByteSource byteSource =
+                     RingBufferParserByteSource.create(new TricklingInputStream(mkv), 256, 64)) {
+            List<String> fromRing = readAll(StreamingMkvReader.createWithReadAheadWindow(byteSource));
+            assertEquals(expected, fromRing);
+            assertTrue(byteSource.eof());
+        }
+    }
+
+    @Test
+    public void testRingBufferByteSourceRethrowsRuntimeFailuresOfInputStream() {
+        byte[] mkv = createMkv(20);
+        InputStream failing = new SequenceInputStream(new ByteArrayInputStream(mkv, 0, mkv.length / 2),
+                new InputStream() {
+                    @Override
+                    public int read() {
+                        throw new IllegalStateException("Connection reset");
+                    }
+                });
+        try (RingBufferParserByteSource byteSource = RingBufferParserByteSource.create(failing, 256, 64)) {
+            StreamingMkvReader reader = StreamingMkvReader.createWithReadAheadWindow(byteSource);
+            RuntimeException e = assertThrows(RuntimeException.class, () -> readAll(reader));
+            assertInstanceOf(IllegalStateException.class, e.getCause());
+        }
+    }
+
+    @Test
+    public void testPublisherByteSourceKeepsDemandBounded() throws InterruptedException {
+        byte[] mkv = createMkv(20);
+        int maxQueuedChunks = 3;
+
+        List<String> expected = readAll(StreamingMkvReader.createDefault(
+                new InputStreamParserByteSource(new ByteArrayInputStream(mkv))));
+        PublisherParserByteSource byteSource = PublisherParserByteSource.create(maxQueuedChunks);
+        ChunkPublisher publisher = new ChunkPublisher(mkv, 50);
+        publisher.subscribe(byteSource);
+        List<String> published = readAll(StreamingMkvReader.createWithReadAheadWindow(byteSource));
+        publisher.join();
+
+        assertEquals(expected, published);
+        assertTrue(publisher.maxOutstandingChunks <= maxQueuedChunks);
+    }
+
+    @Test
+    public void testMappedFileByteSourceMatchesInputStreamByteSource(@TempDir Path directory) throws IOException {
+        byte[] mkv = createMkv(20);
+        Path file = Files.write(directory.resolve("recorded.mkv"), mkv);
+
+        List<String> expected = readAll(StreamingMkvReader.createDefault(
+                new InputStreamParserByteSource(new ByteArrayInputStream(mkv))));
+        //Chunks much smaller than the file, so that reads and skips cross chunks and the file is mapped again.
+        try (MappedFileParserByteSource byteSource = MappedFileParserByteSource.open(file, 100)) {
+            List<String> mapped = readAll(StreamingMkvReader.createWithReadAheadWindow(byteSource));
+            assertEquals(expected, mapped);
+            assertTrue(byteSource.eof());
+        }
+        try (MappedFileParserByteSource byteSource = MappedFileParserByteSource.open(file, 100)) {
+            byteSource.skip(90);
+            ByteBuffer view = byteSource.readView(20);
+            assertEquals(ByteBuffer.wrap(mkv, 90, 20), view);
+            assertEquals(110, byteSource.position());
+        }
+    }
+
+    @Test
+    public void testTypeInfoProviderFindsEveryMkvType() throws IllegalAccessException {
+        MkvTypeInfoProvider typeInfoProvider = new MkvTypeInfoProvider();
+        int types = 0;
+        for (Field field : MkvTypeInfos.class.getDeclaredFields()) {
+            if (field.getType().equals(EBMLTypeInfo.class)) {
+                EBMLTypeInfo type = (EBMLTypeInfo) field.get(null);
+                assertSame(type, typeInfoProvider.getTypeOrNull(type.getId()));
+                assertSame(type, typeInfoProvider.getType(type.getId()).get());
+                types++;
+            }
+        }
+        assertTrue(types > 100);
+        assertNull(typeInfoProvider.getTypeOrNull(0));
+        assertNull(typeInfoProvider.getTypeOrNull(0x1A45DFA4));
+        assertFalse(typeInfoProvider.getType(0xFF).isPresent());
+    }
+
+    private static List<String> readAll(StreamingMkvReader reader) {
+        List<String> elements = new ArrayList<>();
+        while (reader.mightHaveNext()) {
+            Optional<MkvElement> element = reader.nextIfAvailable();
+            element.ifPresent(e -> {
+                StringBuilder builder = new StringBuilder(e.getClass().getSimpleName())
+                        .append(' ')
+                        .append(e.getElementMetaData());
+                if (e instanceof MkvDataElement dataElement) {
+                    builder.append(' ').append(dataElement.getDataSize())
+                            .append(' ').append(dataElement.getDataBuffer().hashCode());
+                    if (MkvTypeInfos.SIMPLEBLOCK.equals(dataElement.getElementMetaData().getTypeInfo())) {
+                        builder.append(" keyFrame=").append(dataElement.getFrameWithoutCopy().isKeyFrame());
+                    }
+                }
+                elements.add(builder.toString());
+            });
+        }
+        return elements;
+    }
+
+    private static byte[] createMkv(int numClusters) {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        os.writeBytes(EBML_HEADER);
+        os.writeBytes(SEGMENT_WITH_UNKNOWN_LENGTH);
+        for (int i = 0; i < numClusters; i++) {
+            ByteArrayOutputStream cluster = new ByteArrayOutputStream();
+            //Timecode
+            cluster.writeBytes(new byte[] {(byte) 0xE7, (byte) 0x82, (byte) (i >> 8), (byte) i});
+            for (int j = 0; j < 3; j++) {
+                //SimpleBlock with a two byte size, track 1, relative timecode j and a keyframe flag on the first frame
+                int frameSize = 200 + 37 * i + j;
+                cluster.writeBytes(new byte[] {(byte) 0xA3, (byte) (0x40 | ((frameSize + 4) >> 8)),
+                        (byte) (frameSize + 4), (byte) 0x81, 0x00, (byte) j, (byte) (j == 0 ? 0x80 : 0x00)});
+                for (int k = 0; k < frameSize; k++) {
+                    cluster.write(k * 31 + i);
+                }
+            }
+            int clusterSize = cluster.size();
+            os.writeBytes(new byte[] {0x1F, 0x43, (byte) 0xB6, 0x75, (byte) (0x40 | (clusterSize >> 8)),
+                    (byte) clusterSize});
+            os.writeBytes(cluster.toByteArray());
+        }
+        return os.toByteArray();
+    }
+
+    /**
+     * Publisher that pushes chunks of a byte array from its own thread as they are requested, recording the most
+     * chunks the subscriber ever requested without having received them.
+     */
+    private static class ChunkPublisher implements Publisher<ByteBuffer> {
+        private final byte[] data;
+        private final int chunkSize;
+        private final Semaphore demand = new Semaphore(0);
+        private final AtomicLong outstandingChunks = new AtomicLong();
+        private Thread thread;
+        private volatile boolean cancelled;
+        volatile long maxOutstandingChunks;
+
+        ChunkPublisher(byte[] data, int chunkSize) {
+            this.data = data;
+            this.chunkSize = chunkSize;
+        }
+
+        @Override
+        public void subscribe(Subscriber<? super ByteBuffer> subscriber) {
+            subscriber.onSubscribe(new Subscription() {
+                @Override
+                public void request(long n) {
+                    long outstanding = outstandingChunks.addAndGet(n);
+                    maxOutstandingChunks = Math.max(maxOutstandingChunks, outstanding);
+                    demand.release((int) n);
+                }
+
+                @Override
+                public void cancel() {
+                    cancelled = true;
+                }
+            });
+            thread = Thread.ofPlatform().start(() -> {
+                for (int offset = 0; offset < data.length && !cancelled; offset += chunkSize) {
+                    demand.acquireUninterruptibly();
+                    outstandingChunks.decrementAndGet();
+                    subscriber.onNext(ByteBuffer.wrap(data, offset, Math.min(chunkSize, data.length - offset)));
+                }
+                subscriber.onComplete();
+            });
+        }
+
+        void join() throws InterruptedException {
+            thread.join();
+        }
+    }
+
+    /**
+     * Input stream that only makes a few bytes available at a time, so element headers straddle reads.
+     */
+    private static class TricklingInputStream extends InputStream {
+        private final ByteArrayInputStream delegate;
+        private int count;
+
+        TricklingInputStream(byte[] data) {
+            this.delegate = new ByteArrayInputStream(data);
+        }
+
+        @Override
+        public int read() {
+            return delegate.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            return delegate.read(b, off, Math.min(len, 1 + (count++ % 7)));
+        }
+
+        @Override
+        public int available() throws IOException {
+            return Math.min(delegate.available(), count++ % 11);
+        }
+    }
+}
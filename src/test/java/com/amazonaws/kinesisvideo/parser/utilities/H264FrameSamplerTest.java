@@ -0,0 +1,73 @@
+package com.amazonaws.kinesisvideo.parser.utilities;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+import org.junit.jupiter.api.Test;
+
+import com.amazonaws.kinesisvideo.parser.mkv.Frame;
+
+public class H264FrameSamplerTest {
+    //AVCDecoderConfigurationRecord up to lengthSizeMinusOne, with 4 byte NAL lengths.
+    private static final MkvTrackMetadata VIDEO = MkvTrackMetadata.builder()
+            .trackNumber(BigInteger.ONE)
+            .codecId("V_MPEG4/ISO/AVC")
+            .codecPrivateData(ByteBuffer.wrap(new byte[] {1, 0x64, 0, 0x1F, (byte) 0xFF}))
+            .build();
+    private static final MkvTrackMetadata AUDIO = MkvTrackMetadata.builder()
+            .trackNumber(BigInteger.TWO)
+            .codecId("A_AAC")
+            .codecPrivateData(ByteBuffer.wrap(new byte[] {0x12, 0x10}))
+            .build();
+    //A single non-IDR slice with a non-zero nal_ref_idc.
+    private static final byte[] REFERENCE_SLICE = {0, 0, 0, 1, 0x41};
+
+    private final List<String> decoded = new ArrayList<>();
+    private final H264FrameDecoder decoder = new H264FrameDecoder() {
+        @Override
+        public void process(Frame frame, MkvTrackMetadata trackMetadata, Optional<FragmentMetadata> fragmentMetadata,
+                Optional<FragmentMetadataVisitor.MkvTagProcessor> tagProcessor, Optional<BigInteger> timescale,
+                Optional<BigInteger> fragmentTimecode) {
+            decoded.add("frame %d@%d".formatted(frame.getTrackNumber(), frame.getTimeCode()));
+        }
+
+        @Override
+        public void decodeReferenceFrame(Frame frame, MkvTrackMetadata trackMetadata) {
+            decoded.add("reference %d@%d".formatted(frame.getTrackNumber(), frame.getTimeCode()));
+        }
+    };
+
+    @Test
+    public void testAudioFramesDoNotDropTheReferencesOfVideoFrames() throws Exception {
+        var sampler = H264FrameSampler.create(decoder, Duration.ofMillis(100));
+        process(sampler, VIDEO, 0, true);
+        process(sampler, VIDEO, 33, false);
+        //Every audio block is flagged as a key frame.
+        process(sampler, AUDIO, 40, true);
+        process(sampler, VIDEO, 66, false);
+        process(sampler, AUDIO, 80, true);
+        process(sampler, VIDEO, 100, false);
+
+        assertEquals(List.of("frame 1@0", "frame 2@40", "frame 2@80", "reference 1@33", "reference 1@66", "frame 1@100"),
+                decoded);
+        assertEquals(2, sampler.getSampledFrameCount());
+        assertEquals(2, sampler.getReferenceFrameCount());
+    }
+
+    private static void process(H264FrameSampler sampler, MkvTrackMetadata trackMetadata, int timeCode,
+            boolean keyFrame) throws Exception {
+        var frame = Frame.builder()
+                .trackNumber(trackMetadata.getTrackNumber().longValue())
+                .timeCode(timeCode)
+                .keyFrame(keyFrame)
+                .frameData(ByteBuffer.wrap(REFERENCE_SLICE))
+                .build();
+        sampler.process(frame, trackMetadata, Optional.empty(), Optional.empty(), Optional.empty(), Optional.empty());
+    }
+}
@@ -0,0 +1,392 @@
+package com.amazonaws.kinesisvideo.parser.utilities;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Optional;
+import java.util.function.Function;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.amazonaws.kinesisvideo.parser.ebml.InputStreamParserByteSource;
+import com.amazonaws.kinesisvideo.parser.ebml.MkvTypeInfos;
+import com.amazonaws.kinesisvideo.parser.mkv.MkvDataElement;
+import com.amazonaws.kinesisvideo.parser.mkv.MkvElement;
+import com.amazonaws.kinesisvideo.parser.mkv.MkvElementVisitException;
+import com.amazonaws.kinesisvideo.parser.mkv.MkvElementVisitor;
+import com.amazonaws.kinesisvideo.parser.mkv.MkvEndMasterElement;
+import com.amazonaws.kinesisvideo.parser.mkv.MkvStartMasterElement;
+import com.amazonaws.kinesisvideo.parser.mkv.StreamingMkvReader;
+
+public class OutputSegmentMergerTest {
+    private static final byte[] CLUSTER_ID = {0x1F, 0x43, (byte) 0xB6, 0x75};
+    private static final int TRACKS_SIZE_OFFSET = 0x50;
+    private static final int DOC_TYPE_READ_VERSION_OFFSET = 0x27;
+    private static final int TIMECODE_DATA_SIZE = 8;
+    //The id and size of a TimecodeScale of three bytes.
+    private static final byte[] TIMECODE_SCALE = {0x2A, (byte) 0xD7, (byte) 0xB1, (byte) 0x83};
+
+    //SHA-256 of the output of the merger as it was before headers were fingerprinted, for the segments() fixture.
+    private static final String DEFAULT_OUTPUT =
+            "589c04974fb438dddb6857951099303809e1323c46ece80e4a546483b646130b";
+    private static final String STOP_AT_FIRST_NON_MATCHING_SEGMENT_OUTPUT =
+            "db396407211aba1b72650e502d3a34244ac4f5a313223d2c33657c5aad80172a";
+    private static final String PACKED_CLUSTERS_OUTPUT =
+            "cfebc1d6e2594193839bbd25ed7bcbe59c86aa1f78595824ea539ee2c1d6b61d";
+
+    @TempDir
+    Path directory;
+
+    @Test
+    public void testDefaultOutputMatchesGoldenOutput() throws Exception {
+        assertGoldenOutput(DEFAULT_OUTPUT, OutputSegmentMerger::createDefault);
+
+        ByteArrayOutputStream merged = new ByteArrayOutputStream();
+        OutputSegmentMerger merger = OutputSegmentMerger.createDefault(merged);
+        visitAll(segments(), merger);
+        assertEquals(4, merger.getSegmentsCount());
+        //The first three segments are merged, the last one does not match them.
+        OutputSegmentMerger outputCounter = OutputSegmentMerger.createDefault(OutputStream.nullOutputStream());
+        visitAll(merged.toByteArray(), outputCounter);
+        assertEquals(2, outputCounter.getSegmentsCount());
+    }
+
+    @Test
+    public void testStopAtFirstNonMatchingSegmentOutputMatchesGoldenOutput() throws Exception {
+        assertGoldenOutput(STOP_AT_FIRST_NON_MATCHING_SEGMENT_OUTPUT,
+                outputStream -> OutputSegmentMerger.create(outputStream, OutputSegmentMerger.Configuration.builder()
+                        .stopAtFirstNonMatchingSegment(true)
+                        .build()));
+    }
+
+    @Test
+    public void testPackedClustersOutputMatchesGoldenOutput() throws Exception {
+        assertGoldenOutput(PACKED_CLUSTERS_OUTPUT,
+                outputStream -> OutputSegmentMerger.create(outputStream, OutputSegmentMerger.Configuration.builder()
+                        .packClusters(true)
+                        .build()));
+    }
+
+    @Test
+    public void testRollingMergerStartsEveryOutputWithTheSegmentHeaders() throws IOException, MkvElementVisitException {
+        byte[] mkv;
+        try (InputStream is = OutputSegmentMergerTest.class.getResourceAsStream("/recorded.mkv")) {
+            mkv = is.readAllBytes();
+        }
+        OutputSegmentMerger counter = OutputSegmentMerger.createDefault(OutputStream.nullOutputStream());
+        visitAll(mkv, counter);
+
+        List<ByteArrayOutputStream> outputs = new ArrayList<>();
+        //Every cluster goes over the limit, so every cluster gets an output of its own.
+        try (OutputSegmentMerger merger = OutputSegmentMerger.createRolling(outputIndex -> {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            outputs.add(output);
+            return output;
+        }, OutputSegmentMerger.Configuration.builder().maxOutputBytes(Optional.of(1L)).build())) {
+            visitAll(mkv, merger);
+            assertEquals(counter.getClustersCount(), merger.getOutputsCount());
+        }
+
+        assertEquals(counter.getClustersCount(), outputs.size());
+        int simpleBlocks = 0;
+        for (ByteArrayOutputStream output : outputs) {
+            OutputSegmentMerger outputCounter = OutputSegmentMerger.createDefault(OutputStream.nullOutputStream());
+            visitAll(output.toByteArray(), outputCounter);
+            assertEquals(1, outputCounter.getSegmentsCount());
+            assertEquals(1, outputCounter.getClustersCount());
+            simpleBlocks += outputCounter.getSimpleBlocksCount();
+        }
+        assertEquals(counter.getSimpleBlocksCount(), simpleBlocks);
+    }
+
+    @Test
+    public void testPackedClusterTimecodesMatchSortedFrameDurations() throws Exception {
+        //Frame timecodes of every cluster, in decoding order: several frames, none, one, b-frames, and a long cluster.
+        List<List<Integer>> clusters = List.of(
+                List.of(0, 33, 66),
+                List.of(),
+                List.of(0),
+                List.of(0, 100, 33, 66, 200, 133, 166),
+                List.of(-20, 30000),
+                List.of(0, 40));
+        byte[] mkv;
+        try (InputStream is = OutputSegmentMergerTest.class.getResourceAsStream("/recorded.mkv")) {
+            mkv = is.readAllBytes();
+        }
+        ByteArrayOutputStream input = new ByteArrayOutputStream();
+        input.write(mkv, 0, indexOf(mkv, CLUSTER_ID));
+        for (int i = 0; i < clusters.size(); i++) {
+            input.writeBytes(cluster(1000L * (i + 1), clusters.get(i)));
+        }
+
+        ByteArrayOutputStream packed = new ByteArrayOutputStream();
+        visitAll(input.toByteArray(), OutputSegmentMerger.create(packed, OutputSegmentMerger.Configuration.builder()
+                .packClusters(true)
+                .build()));
+
+        List<byte[]> timecodes = new ArrayList<>();
+        visitAll(packed.toByteArray(), new MkvElementVisitor() {
+            @Override
+            public void visit(MkvStartMasterElement startMasterElement) {
+            }
+
+            @Override
+            public void visit(MkvEndMasterElement endMasterElement) {
+            }
+
+            @Override
+            public void visit(MkvDataElement dataElement) {
+                if (MkvTypeInfos.TIMECODE.equals(dataElement.getElementMetaData().getTypeInfo())) {
+                    ByteBuffer data = dataElement.getDataBuffer().duplicate();
+                    data.rewind();
+                    byte[] bytes = new byte[data.remaining()];
+                    data.get(bytes);
+                    timecodes.add(bytes);
+                }
+            }
+        });
+        List<byte[]> expected = packedTimecodes(clusters);
+        assertEquals(expected.size(), timecodes.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertArrayEquals(expected.get(i), timecodes.get(i), "timecode of cluster " + i);
+        }
+    }
+
+    /**
+     * The packed timecodes as the merger computed them before it only kept the earliest and latest frame timecodes:
+     * the sum of the differences between the sorted frame timecodes of the previous cluster plus their average,
+     * encoded as a two's complement big-endian number in the data size of the original timecode.
+     */
+    private static List<byte[]> packedTimecodes(List<List<Integer>> clusters) {
+        List<byte[]> timecodes = new ArrayList<>();
+        BigInteger timecode = BigInteger.ZERO;
+        for (int i = 0; i < clusters.size(); i++) {
+            if (i > 0) {
+                List<Integer> frameTimecodes = new ArrayList<>(clusters.get(i - 1));
+                Collections.sort(frameTimecodes);
+                List<Integer> frameDurations = new ArrayList<>();
+                for (int j = 1; j < frameTimecodes.size(); j++) {
+                    frameDurations.add(frameTimecodes.get(j) - frameTimecodes.get(j - 1));
+                }
+                int sum = frameDurations.stream().mapToInt(Integer::intValue).sum();
+                int average = frameDurations.isEmpty() ? 1 : sum / frameDurations.size();
+                timecode = timecode.add(BigInteger.valueOf(sum + average));
+            }
+            byte[] bytes = timecode.toByteArray();
+            byte[] data = new byte[TIMECODE_DATA_SIZE];
+            System.arraycopy(bytes, 0, data, TIMECODE_DATA_SIZE - bytes.length, bytes.length);
+            timecodes.add(data);
+        }
+        return timecodes;
+    }
+
+    /**
+     * @return A cluster with a timecode of eight bytes and a key frame of the first track for every frame timecode.
+     */
+    private static byte[] cluster(long timecode, List<Integer> frameTimecodes) {
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        content.write(0xE7);
+        content.write(0x80 | TIMECODE_DATA_SIZE);
+        content.writeBytes(ByteBuffer.allocate(TIMECODE_DATA_SIZE).putLong(timecode).array());
+        for (int frameTimecode : frameTimecodes) {
+            //Track number, timecode, key frame flag and a byte of data.
+            content.writeBytes(new byte[] {(byte) 0xA3, (byte) 0x85, (byte) 0x81,
+                    (byte) (frameTimecode >> 8), (byte) frameTimecode, (byte) 0x80, 0});
+        }
+        ByteArrayOutputStream cluster = new ByteArrayOutputStream();
+        cluster.writeBytes(CLUSTER_ID);
+        cluster.write(0x40 | content.size() >> 8);
+        cluster.write(content.size());
+        cluster.writeBytes(content.toByteArray());
+        return cluster.toByteArray();
+    }
+
+    private static int indexOf(byte[] bytes, byte[] pattern) {
+        for (int i = 0; i + pattern.length <= bytes.length; i++) {
+            if (matchesAt(bytes, i, pattern)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Pattern not found");
+    }
+
+    /**
+     * Merge the fixture into a stream and into a file, which is written with gathering writes, and compare both with
+     * the golden output.
+     */
+    private void assertGoldenOutput(String expectedSha256, Function<OutputStream, OutputSegmentMerger> mergerFactory)
+            throws Exception {
+        byte[] segments = segments();
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        visitAll(segments, mergerFactory.apply(stream));
+        assertEquals(expectedSha256, sha256(stream.toByteArray()));
+
+        Path file = directory.resolve("merged.mkv");
+        try (FileOutputStream fileOutputStream = new FileOutputStream(file.toFile())) {
+            visitAll(segments, mergerFactory.apply(fileOutputStream));
+        }
+        assertEquals(expectedSha256, sha256(Files.readAllBytes(file)));
+    }
+
+    /**
+     * @return Four copies of recorded.mkv, each one a second later than the one before. The third one has the size of
+     * its tracks encoded in two bytes instead of one, and the last one has a different EBML header.
+     */
+    static byte[] segments() throws IOException {
+        byte[] mkv;
+        try (InputStream is = OutputSegmentMergerTest.class.getResourceAsStream("/recorded.mkv")) {
+            mkv = is.readAllBytes();
+        }
+        ByteArrayOutputStream segments = new ByteArrayOutputStream();
+        segments.writeBytes(mkv);
+        segments.writeBytes(later(mkv, 1000));
+
+        byte[] reencoded = later(mkv, 2000);
+        assertEquals(0xBB, reencoded[TRACKS_SIZE_OFFSET] & 0xFF);
+        segments.write(reencoded, 0, TRACKS_SIZE_OFFSET);
+        segments.write(0x40);
+        segments.write(0x3B);
+        segments.write(reencoded, TRACKS_SIZE_OFFSET + 1, reencoded.length - TRACKS_SIZE_OFFSET - 1);
+
+        byte[] different = later(mkv, 3000);
+        assertEquals(2, different[DOC_TYPE_READ_VERSION_OFFSET]);
+        different[DOC_TYPE_READ_VERSION_OFFSET] = 3;
+        segments.writeBytes(different);
+        return segments.toByteArray();
+    }
+
+    /**
+     * @return A copy of the mkv with the timecodes of its clusters moved forward.
+     */
+    private static byte[] later(byte[] mkv, long millis) {
+        byte[] copy = mkv.clone();
+        for (int i = 0; i + CLUSTER_ID.length < copy.length; i++) {
+            if (!matchesAt(copy, i, CLUSTER_ID)) {
+                continue;
+            }
+            int sizeLength = Integer.numberOfLeadingZeros(copy[i + CLUSTER_ID.length] & 0xFF) - 23;
+            int timecode = i + CLUSTER_ID.length + sizeLength;
+            assertEquals(0xE7, copy[timecode] & 0xFF);
+            int length = copy[timecode + 1] & 0x7F;
+            long value = 0;
+            for (int j = 0; j < length; j++) {
+                value = value << 8 | (copy[timecode + 2 + j] & 0xFF);
+            }
+            value += millis;
+            for (int j = length - 1; j >= 0; j--) {
+                copy[timecode + 2 + j] = (byte) value;
+                value >>>= 8;
+            }
+        }
+        return copy;
+    }
+
+    private static boolean matchesAt(byte[] bytes, int offset, byte[] pattern) {
+        for (int i = 0; i < pattern.length; i++) {
+            if (bytes[offset + i] != pattern[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String sha256(byte[] bytes) throws NoSuchAlgorithmException {
+        return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(bytes));
+    }
+
+    @Test
+    public void testRollingMergerStartsNextOutputWhereHeadersChange() throws Exception {
+        byte[] segments = segments();
+        OutputSegmentMerger counter = OutputSegmentMerger.createDefault(OutputStream.nullOutputStream());
+        visitAll(segments, counter);
+
+        //The first three segments share their headers, the last one does not.
+        List<byte[]> outputs = rollingOutputs(segments, OutputSegmentMerger.Configuration.builder().build());
+        assertEquals(2, outputs.size());
+        assertEquals(2, outputs.get(0)[DOC_TYPE_READ_VERSION_OFFSET]);
+        assertEquals(3, outputs.get(1)[DOC_TYPE_READ_VERSION_OFFSET]);
+        int clusters = 0;
+        for (byte[] output : outputs) {
+            OutputSegmentMerger outputCounter = OutputSegmentMerger.createDefault(OutputStream.nullOutputStream());
+            visitAll(output, outputCounter);
+            assertEquals(1, outputCounter.getSegmentsCount());
+            clusters += outputCounter.getClustersCount();
+        }
+        assertEquals(counter.getClustersCount(), clusters);
+        assertEquals(counter.getClustersCount() / 4, countClusters(outputs.get(1)));
+    }
+
+    @Test
+    public void testRollingMergerLimitsOutputDurationInTimecodeScaleUnits() throws Exception {
+        byte[] mkv;
+        try (InputStream is = OutputSegmentMergerTest.class.getResourceAsStream("/recorded.mkv")) {
+            mkv = is.readAllBytes();
+        }
+        //The clusters of recorded.mkv are 330 timecodes apart, in milliseconds.
+        OutputSegmentMerger.Configuration threeSeconds = OutputSegmentMerger.Configuration.builder()
+                .maxOutputDuration(Optional.of(Duration.ofSeconds(3)))
+                .build();
+        assertEquals(1, rollingOutputs(mkv, threeSeconds).size());
+
+        //In units of 10 ms, the third cluster starts 6.6 seconds after the first one.
+        byte[] slower = mkv.clone();
+        int timecodeScale = indexOf(slower, TIMECODE_SCALE) + TIMECODE_SCALE.length;
+        assertEquals(1_000_000, ByteBuffer.wrap(new byte[] {0, slower[timecodeScale], slower[timecodeScale + 1],
+                slower[timecodeScale + 2]}).getInt());
+        slower[timecodeScale] = (byte) 0x98;
+        slower[timecodeScale + 1] = (byte) 0x96;
+        slower[timecodeScale + 2] = (byte) 0x80;
+        List<byte[]> outputs = rollingOutputs(slower, threeSeconds);
+        assertEquals(2, outputs.size());
+        assertEquals(2, countClusters(outputs.get(0)));
+        assertEquals(1, countClusters(outputs.get(1)));
+    }
+
+    private static List<byte[]> rollingOutputs(byte[] mkv, OutputSegmentMerger.Configuration configuration)
+            throws IOException, MkvElementVisitException {
+        List<ByteArrayOutputStream> outputs = new ArrayList<>();
+        try (OutputSegmentMerger merger = OutputSegmentMerger.createRolling(outputIndex -> {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            outputs.add(output);
+            return output;
+        }, configuration)) {
+            visitAll(mkv, merger);
+        }
+        return outputs.stream().map(ByteArrayOutputStream::toByteArray).toList();
+    }
+
+    private static int countClusters(byte[] mkv) throws MkvElementVisitException {
+        OutputSegmentMerger counter = OutputSegmentMerger.createDefault(OutputStream.nullOutputStream());
+        visitAll(mkv, counter);
+        return counter.getClustersCount();
+    }
+
+    static void visitAll(byte[] mkv, MkvElementVisitor visitor) throws MkvElementVisitException {
+        StreamingMkvReader reader = StreamingMkvReader.createDefault(
+                new InputStreamParserByteSource(new ByteArrayInputStream(mkv)));
+        while (reader.mightHaveNext()) {
+            Optional<MkvElement> element = reader.nextIfAvailable();
+            if (element.isPresent()) {
+                element.get().accept(visitor);
+            }
+        }
+    }
+}
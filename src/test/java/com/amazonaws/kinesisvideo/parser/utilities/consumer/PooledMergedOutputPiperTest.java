@@ -0,0 +1,79 @@
+package com.amazonaws.kinesisvideo.parser.utilities.consumer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.amazonaws.kinesisvideo.parser.mkv.MkvElementVisitException;
+
+public class PooledMergedOutputPiperTest {
+
+    @Test
+    public void testJobsOfSeveralConsumersShareOneChild(@TempDir Path directory)
+            throws IOException, MkvElementVisitException, InterruptedException {
+        byte[] mkv;
+        try (InputStream is = PooledMergedOutputPiperTest.class.getResourceAsStream("/recorded.mkv")) {
+            mkv = is.readAllBytes();
+        }
+        //The second copy has the same headers, but its timecodes go back, so it is piped as a job of its own.
+        ByteArrayOutputStream twice = new ByteArrayOutputStream();
+        twice.writeBytes(mkv);
+        twice.writeBytes(mkv);
+
+        Path received = directory.resolve("received");
+        ChildProcessPool pool = ChildProcessPool.builder()
+                .processBuilder(new ProcessBuilder("cat").redirectOutput(received.toFile()))
+                .build();
+        try (PooledMergedOutputPiperFactory factory = new PooledMergedOutputPiperFactory(pool)) {
+            for (int i = 0; i < 2; i++) {
+                try (GetMediaResponseStreamConsumer consumer = factory.createConsumer()) {
+                    consumer.process(new ByteArrayInputStream(twice.toByteArray()), fragment -> { });
+                    assertEquals(2, ((PooledMergedOutputPiper) consumer).getJobsCount());
+                }
+            }
+        }
+        assertEquals(1, pool.getStartedProcesses());
+
+        //The child echoes the frames back, so the received jobs show up once it has read them.
+        long deadline = System.currentTimeMillis() + 10_000;
+        List<byte[]> jobs = readJobs(received);
+        while (jobs.size() < 4 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+            jobs = readJobs(received);
+        }
+        assertEquals(4, jobs.size());
+        for (byte[] job : jobs) {
+            assertEquals(mkv.length, job.length);
+        }
+    }
+
+    private static List<byte[]> readJobs(Path received) throws IOException {
+        List<byte[]> jobs = new ArrayList<>();
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(Files.readAllBytes(received)))) {
+            ByteArrayOutputStream job = new ByteArrayOutputStream();
+            while (true) {
+                int length = in.readInt();
+                if (length == 0) {
+                    jobs.add(job.toByteArray());
+                    job.reset();
+                } else {
+                    job.write(in.readNBytes(length));
+                }
+            }
+        } catch (EOFException e) {
+            return jobs;
+        }
+    }
+}
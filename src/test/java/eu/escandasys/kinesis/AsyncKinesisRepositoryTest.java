@@ -0,0 +1,133 @@
+package eu.escandasys.kinesis;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import com.amazonaws.kinesisvideo.parser.ebml.InputStreamParserByteSource;
+import com.amazonaws.kinesisvideo.parser.mkv.MkvDataElement;
+import com.amazonaws.kinesisvideo.parser.mkv.MkvElement;
+import com.amazonaws.kinesisvideo.parser.mkv.StreamingMkvReader;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
+import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider;
+import software.amazon.awssdk.http.apache.ApacheHttpClient;
+import software.amazon.awssdk.http.nio.netty.NettyNioAsyncHttpClient;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.kinesisvideo.KinesisVideoClient;
+import software.amazon.awssdk.services.kinesisvideomedia.model.StartSelector;
+import software.amazon.awssdk.services.kinesisvideomedia.model.StartSelectorType;
+
+/**
+ * Reads a recorded GetMedia response from a local HTTP stand-in for both the control plane and the media endpoint.
+ */
+public class AsyncKinesisRepositoryTest {
+    private static final String STREAM_ARN = "arn:aws:kinesisvideo:us-east-1:123456789012:stream/recorded/1";
+    // Small writes, so the response body reaches the client in many chunks.
+    private static final int RESPONSE_CHUNK_SIZE = 100;
+
+    private static HttpServer server;
+    private static byte[] recordedMkv;
+
+    @BeforeAll
+    public static void startStandIn() throws IOException {
+        try (InputStream is = AsyncKinesisRepositoryTest.class.getResourceAsStream("/recorded.mkv")) {
+            recordedMkv = is.readAllBytes();
+        }
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/getDataEndpoint", exchange -> {
+            var body = "{\"DataEndpoint\":\"%s\"}".formatted(endpoint()).getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(body);
+            }
+        });
+        server.createContext("/getMedia", AsyncKinesisRepositoryTest::serveRecordedMedia);
+        server.start();
+    }
+
+    @AfterAll
+    public static void stopStandIn() {
+        server.stop(0);
+    }
+
+    @Test
+    public void testAsyncGetMediaMatchesRecordedStream() throws IOException {
+        List<String> expected = readAll(StreamingMkvReader.createDefault(
+                new InputStreamParserByteSource(new ByteArrayInputStream(recordedMkv))));
+
+        List<String> elements = new ArrayList<>();
+        try (var httpClient = ApacheHttpClient.create();
+             var asyncHttpClient = NettyNioAsyncHttpClient.builder().maxConcurrency(4).build()) {
+            var videoClient = KinesisVideoClient.builder()
+                    .httpClient(httpClient)
+                    .endpointOverride(URI.create(endpoint()))
+                    .region(Region.US_EAST_1)
+                    .credentialsProvider(StaticCredentialsProvider.create(AwsBasicCredentials.create("test", "test")))
+                    .build();
+            var startSelector = StartSelector.builder().startSelectorType(StartSelectorType.NOW).build();
+            // The media clients get the region and credentials of the video client, not those of the default chains.
+            try (var repository = new AsyncKinesisRepository(videoClient, asyncHttpClient, Instant::now);
+                 var it = repository.getMedia(startSelector, "recorded", STREAM_ARN)) {
+                while (it.hasNext()) {
+                    it.next().ifPresent(e -> elements.add(describe(e)));
+                }
+            }
+        }
+
+        assertFalse(expected.isEmpty());
+        assertEquals(expected, elements);
+    }
+
+    private static void serveRecordedMedia(HttpExchange exchange) throws IOException {
+        exchange.getRequestBody().readAllBytes();
+        exchange.getResponseHeaders().add("Content-Type", "video/webm");
+        // A zero length means a chunked response, like the open ended GetMedia responses.
+        exchange.sendResponseHeaders(200, 0);
+        try (OutputStream os = exchange.getResponseBody()) {
+            for (int offset = 0; offset < recordedMkv.length; offset += RESPONSE_CHUNK_SIZE) {
+                os.write(recordedMkv, offset, Math.min(RESPONSE_CHUNK_SIZE, recordedMkv.length - offset));
+                os.flush();
+            }
+        }
+    }
+
+    private static String endpoint() {
+        return "http://localhost:%d".formatted(server.getAddress().getPort());
+    }
+
+    private static List<String> readAll(StreamingMkvReader reader) {
+        List<String> elements = new ArrayList<>();
+        while (reader.mightHaveNext()) {
+            Optional<MkvElement> element = reader.nextIfAvailable();
+            element.ifPresent(e -> elements.add(describe(e)));
+        }
+        return elements;
+    }
+
+    private static String describe(MkvElement element) {
+        var description = element.getClass().getSimpleName() + " " + element.getElementMetaData();
+        if (element instanceof MkvDataElement dataElement) {
+            description += " " + dataElement.getDataSize() + " " + dataElement.getDataBuffer().hashCode();
+        }
+        return description;
+    }
+}
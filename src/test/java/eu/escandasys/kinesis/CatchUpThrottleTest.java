@@ -0,0 +1,95 @@
+package eu.escandasys.kinesis;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.OptionalLong;
+
+import org.junit.jupiter.api.Test;
+
+import com.amazonaws.kinesisvideo.parser.mkv.Frame;
+import com.amazonaws.kinesisvideo.parser.utilities.FragmentMetadata;
+import com.amazonaws.kinesisvideo.parser.utilities.FrameVisitor;
+import com.amazonaws.kinesisvideo.parser.utilities.MkvTrackMetadata;
+
+public class CatchUpThrottleTest {
+    private static final MkvTrackMetadata VIDEO = track(1, "V_MPEG4/ISO/AVC");
+    private static final MkvTrackMetadata AUDIO = track(2, "A_AAC");
+    private static final MkvTrackMetadata OTHER_VIDEO = track(3, "V_MPEG4/ISO/AVC");
+
+    private final List<String> processed = new ArrayList<>();
+    private final FrameVisitor.FrameProcessor recorder = new FrameVisitor.FrameProcessor() {
+        @Override
+        public void process(Frame frame, MkvTrackMetadata trackMetadata, Optional<FragmentMetadata> fragmentMetadata) {
+            processed.add("%d%s".formatted(frame.getTrackNumber(), frame.isKeyFrame() ? "K" : ""));
+        }
+    };
+    private final CatchUpThrottle throttle = new CatchUpThrottle(recorder,
+            new CatchUpOptions(Duration.ofSeconds(10), Duration.ofSeconds(2), DecodeMode.KEY_FRAMES), "test");
+
+    @Test
+    public void testDecodesKeyFramesOnlyWhileLaggingAndResumesAtKeyFrame() throws Exception {
+        process(VIDEO, true, false);
+        throttle.onLag(OptionalLong.of(20_000));
+        process(VIDEO, true, false, false);
+        assertEquals("KEY_FRAMES", throttle.getDecodeMode());
+
+        throttle.onLag(OptionalLong.of(1_000));
+        // Caught up, but the next frame depends on skipped ones.
+        process(VIDEO, false, true, false);
+
+        assertEquals(List.of("1K", "1", "1K", "1K", "1"), processed);
+        assertEquals("FULL", throttle.getDecodeMode());
+        assertEquals(3, throttle.getFramesSkipped());
+        assertEquals(2, throttle.getModeSwitches());
+        assertEquals(1_000, throttle.getMillisBehindNow());
+    }
+
+    @Test
+    public void testAudioBlocksDoNotResumeDecodingInTheMiddleOfAGroupOfPictures() throws Exception {
+        process(VIDEO, true);
+        process(OTHER_VIDEO, true);
+        throttle.onLag(OptionalLong.of(20_000));
+        process(VIDEO, false);
+        throttle.onLag(OptionalLong.of(1_000));
+
+        // Every audio block is flagged as a key frame.
+        process(AUDIO, true);
+        process(VIDEO, false);
+        process(OTHER_VIDEO, false);
+        assertEquals("KEY_FRAMES", throttle.getDecodeMode());
+
+        process(VIDEO, true);
+        assertEquals("FULL", throttle.getDecodeMode());
+        process(AUDIO, true);
+        process(VIDEO, false);
+        // The other video track waits for a key frame of its own.
+        process(OTHER_VIDEO, false);
+        process(OTHER_VIDEO, true, false);
+
+        assertEquals(List.of("1K", "3K", "2K", "1K", "2K", "1", "3K", "3"), processed);
+        assertEquals(4, throttle.getFramesSkipped());
+    }
+
+    private void process(MkvTrackMetadata trackMetadata, boolean... keyFrames) throws Exception {
+        for (boolean keyFrame : keyFrames) {
+            // Track number, timecode 0, flags, one byte of data.
+            var simpleBlock = ByteBuffer.wrap(new byte[] {
+                    (byte) (0x80 | trackMetadata.getTrackNumber().intValue()), 0, 0, (byte) (keyFrame ? 0x80 : 0), 0});
+            throttle.process(Frame.withoutCopy(simpleBlock), trackMetadata, Optional.empty(), Optional.empty(),
+                    Optional.empty(), Optional.empty());
+        }
+    }
+
+    private static MkvTrackMetadata track(long trackNumber, String codecId) {
+        return MkvTrackMetadata.builder()
+                .trackNumber(BigInteger.valueOf(trackNumber))
+                .codecId(codecId)
+                .build();
+    }
+}
@@ -0,0 +1,83 @@
+package eu.escandasys.kinesis;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class FragmentIndexTest {
+    // Fragment numbers of Kinesis Video Streams are longer than a long.
+    private static final BigInteger FIRST_FRAGMENT = new BigInteger("91343852333181432392682062607743920146264867295");
+    private static final int FRAGMENTS = 100;
+    private static final int FRAMES_PER_FRAGMENT = 5;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    public void testFindsRecordsByFragmentNumberAndProducerTimestamp() throws IOException {
+        var output = directory.resolve("stream.out");
+        var indexPath = directory.resolve("stream.idx");
+        byte[] pixels = new byte[2 * 2 * 3];
+        try (var channel = FileChannel.open(output, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+             var index = FragmentIndexWriter.create(indexPath)) {
+            var writer = new FrameRecordWriter(channel, index);
+            for (int fragment = 0; fragment < FRAGMENTS; fragment++) {
+                for (int frame = 0; frame < FRAMES_PER_FRAGMENT; frame++) {
+                    // The first frame of every fragment is a delta frame, the key frame comes second.
+                    writer.write(new FrameRecord(1, frame == 1, 2, 2, FrameRecord.PixelFormat.BGR24,
+                            (fragment * FRAMES_PER_FRAGMENT + frame) * 1_000_000L, 1_000L * fragment, 1_000L * fragment + 5,
+                            FIRST_FRAGMENT.add(BigInteger.valueOf(2L * fragment)).toString()), pixels, pixels.length);
+                }
+            }
+        }
+
+        var index = FragmentIndex.open(indexPath);
+        assertEquals(FRAGMENTS, index.size());
+
+        var entry = index.findByFragmentNumber(FIRST_FRAGMENT.add(BigInteger.valueOf(2L * 42))).orElseThrow();
+        assertEquals(42_000L, entry.producerTimestampMillis());
+        assertEquals(42_005L, entry.serverTimestampMillis());
+        assertEquals(42L * FRAMES_PER_FRAGMENT * 1_000_000L, entry.timecodeNanos());
+        assertEquals(FRAMES_PER_FRAGMENT, entry.records());
+        assertEquals(1, entry.keyFrames());
+        assertRecordAt(output, entry.offset(), false);
+        assertRecordAt(output, entry.firstKeyFrameOffset(), true);
+        assertTrue(index.findByFragmentNumber(FIRST_FRAGMENT.add(BigInteger.ONE)).isEmpty());
+
+        assertEquals(entry, index.findByProducerTimestamp(42_999L).orElseThrow());
+        assertEquals(index.entry(FRAGMENTS - 1), index.findByProducerTimestamp(Long.MAX_VALUE).orElseThrow());
+        assertTrue(index.findByProducerTimestamp(-1L).isEmpty());
+    }
+
+    @Test
+    public void testIgnoresPartialEntryLeftByCrash() throws IOException {
+        var indexPath = directory.resolve("stream.idx");
+        try (var index = FragmentIndexWriter.create(indexPath)) {
+            index.onRecord(new FrameRecord(1, true, 2, 2, FrameRecord.PixelFormat.BGR24, 0, 0, 0, "1"), 0);
+        }
+        Files.write(indexPath, new byte[FragmentIndexWriter.ENTRY_LENGTH / 2], StandardOpenOption.APPEND);
+
+        var index = FragmentIndex.open(indexPath);
+        assertEquals(1, index.size());
+        assertEquals(BigInteger.ONE, index.entry(0).fragmentNumber());
+    }
+
+    private static void assertRecordAt(Path output, long offset, boolean keyFrame) throws IOException {
+        try (var channel = FileChannel.open(output, StandardOpenOption.READ)) {
+            var header = ByteBuffer.allocate(FrameRecordWriter.FIXED_HEADER_LENGTH);
+            channel.read(header, offset);
+            assertEquals(FrameRecordWriter.MAGIC, header.getInt(0));
+            assertEquals(keyFrame, (header.get(9) & 0x1) != 0);
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package eu.escandasys.kinesis;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.amazonaws.kinesisvideo.parser.mkv.Frame;
+import com.amazonaws.kinesisvideo.parser.utilities.FragmentMetadata;
+import com.amazonaws.kinesisvideo.parser.utilities.MkvTrackMetadata;
+import com.amazonaws.kinesisvideo.parser.utilities.ReferenceFrameDecoder;
+
+/**
+ * Samples a recorded file in the parser stage of a pipeline, and checks that the output is the same as sampling it on
+ * the calling thread.
+ */
+public class FramePipelineTest {
+    private static final Optional<Duration> FRAME_INTERVAL = Optional.of(Duration.ofMillis(200));
+
+    @TempDir
+    Path directory;
+
+    @Test
+    public void testSamplingInParserStageMatchesSequentialSampling() throws IOException {
+        var path = directory.resolve("recorded.mkv");
+        try (InputStream is = FramePipelineTest.class.getResourceAsStream("/recorded.mkv")) {
+            Files.copy(is, path);
+        }
+        var repository = new MkvFileRepository(path);
+        var sequential = pipe(repository, new EngineOptions(FRAME_INTERVAL, false, Optional.empty(),
+                ReconnectOptions.none(), Optional.empty()));
+        var pipelined = pipe(repository, new EngineOptions(FRAME_INTERVAL, false,
+                Optional.of(new PipelineOptions(2, QueuePolicy.BLOCK, 2, QueuePolicy.BLOCK)),
+                ReconnectOptions.none(), Optional.empty()));
+        var everyFrame = pipe(repository, EngineOptions.defaults());
+
+        assertTrue(sequential.length > 0);
+        assertTrue(sequential.length < everyFrame.length);
+        assertArrayEquals(sequential, pipelined);
+    }
+
+    @Test
+    public void testTracksOtherThanH264AreIgnoredOnce() throws Exception {
+        var video = MkvTrackMetadata.builder().trackNumber(BigInteger.ONE).codecId("V_MPEG4/ISO/AVC").build();
+        var audio = MkvTrackMetadata.builder().trackNumber(BigInteger.TWO).codecId("A_AAC").build();
+        List<Long> decodedTracks = new ArrayList<>();
+        var decoders = new int[1];
+        var pipeline = new FramePipeline(new PipelineOptions(2, QueuePolicy.BLOCK, 2, QueuePolicy.BLOCK),
+                Optional.empty(), consumer -> {
+                    decoders[0]++;
+                    return new ReferenceFrameDecoder() {
+                        @Override
+                        public void process(Frame frame, MkvTrackMetadata trackMetadata,
+                                Optional<FragmentMetadata> fragmentMetadata) {
+                            decodedTracks.add(frame.getTrackNumber());
+                        }
+
+                        @Override
+                        public void decodeReferenceFrame(Frame frame, MkvTrackMetadata trackMetadata) {
+                        }
+                    };
+                }, (frameRecord, pixels, length) -> { });
+        try (pipeline) {
+            for (int i = 0; i < 3; i++) {
+                process(pipeline, audio);
+                process(pipeline, video);
+            }
+        }
+
+        assertEquals(1, decoders[0]);
+        assertEquals(Set.of(2L), pipeline.ignoredTracks());
+        assertEquals(List.of(1L, 1L, 1L), decodedTracks);
+    }
+
+    private static void process(FramePipeline pipeline, MkvTrackMetadata trackMetadata) throws Exception {
+        // Track number, timecode 0, key frame, one byte of data.
+        var simpleBlock = ByteBuffer.wrap(new byte[] {
+                (byte) (0x80 | trackMetadata.getTrackNumber().intValue()), 0, 0, (byte) 0x80, 0});
+        pipeline.process(Frame.withoutCopy(simpleBlock), trackMetadata, Optional.empty(), Optional.empty(),
+                Optional.empty(), Optional.empty());
+    }
+
+    private static byte[] pipe(MkvFileRepository repository, EngineOptions options) throws IOException {
+        var os = new ByteArrayOutputStream();
+        new StreamingEngine(repository, Instant::now, options).pipe(ChronoUnit.MILLENNIA.getDuration(),
+                repository.streamInfo().streamName(), repository.streamInfo().streamARN(), null, os);
+        return os.toByteArray();
+    }
+}
@@ -0,0 +1,101 @@
+package eu.escandasys.kinesis;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.jupiter.api.Test;
+
+import software.amazon.awssdk.services.kinesisvideo.KinesisVideoClient;
+import software.amazon.awssdk.services.kinesisvideo.model.GetDataEndpointRequest;
+import software.amazon.awssdk.services.kinesisvideo.model.GetDataEndpointResponse;
+import software.amazon.awssdk.services.kinesisvideo.model.ListStreamsRequest;
+import software.amazon.awssdk.services.kinesisvideo.model.ListStreamsResponse;
+import software.amazon.awssdk.services.kinesisvideo.model.StreamInfo;
+
+public class KinesisVideoDirectoryTest {
+    private static final Duration TIME_TO_LIVE = Duration.ofMinutes(1);
+
+    private final AtomicReference<Instant> now = new AtomicReference<>(Instant.EPOCH);
+    private final CountingVideoClient videoClient = new CountingVideoClient();
+    private final KinesisVideoDirectory directory = new KinesisVideoDirectory(videoClient, TIME_TO_LIVE, now::get);
+
+    @Test
+    public void testDataEndpointIsReusedUntilItExpires() {
+        assertEquals("https://a.example", directory.dataEndpoint("a"));
+        assertEquals("https://a.example", directory.dataEndpoint("a"));
+        assertEquals("https://b.example", directory.dataEndpoint("b"));
+        assertEquals(2, videoClient.dataEndpointCalls.get());
+
+        now.set(Instant.EPOCH.plus(TIME_TO_LIVE));
+        directory.dataEndpoint("a");
+        assertEquals(3, videoClient.dataEndpointCalls.get());
+
+        directory.invalidate("a");
+        directory.dataEndpoint("a");
+        assertEquals(4, videoClient.dataEndpointCalls.get());
+    }
+
+    @Test
+    public void testStreamInfosGoThroughEveryPageOnce() {
+        var streamNames = directory.streamInfos().stream().map(StreamInfo::streamName).toList();
+        directory.streamInfos();
+
+        assertEquals(List.of("a", "b", "c"), streamNames);
+        assertEquals(2, videoClient.listStreamsCalls.get());
+    }
+
+    @Test
+    public void testClosingTheDirectoryClosesItsClient() {
+        directory.close();
+
+        assertTrue(videoClient.closed);
+    }
+
+    private static class CountingVideoClient implements KinesisVideoClient {
+        final AtomicInteger dataEndpointCalls = new AtomicInteger();
+        final AtomicInteger listStreamsCalls = new AtomicInteger();
+        volatile boolean closed;
+
+        @Override
+        public GetDataEndpointResponse getDataEndpoint(GetDataEndpointRequest request) {
+            dataEndpointCalls.incrementAndGet();
+            return GetDataEndpointResponse.builder()
+                .dataEndpoint("https://%s.example".formatted(request.streamARN()))
+                .build();
+        }
+
+        @Override
+        public ListStreamsResponse listStreams(ListStreamsRequest request) {
+            listStreamsCalls.incrementAndGet();
+            if (request.nextToken() == null) {
+                return ListStreamsResponse.builder()
+                    .streamInfoList(streamInfo("a"), streamInfo("b"))
+                    .nextToken("page-2")
+                    .build();
+            }
+            return ListStreamsResponse.builder()
+                .streamInfoList(streamInfo("c"))
+                .build();
+        }
+
+        @Override
+        public String serviceName() {
+            return SERVICE_NAME;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+
+        private static StreamInfo streamInfo(String streamName) {
+            return StreamInfo.builder().streamName(streamName).streamARN(streamName).build();
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package eu.escandasys.kinesis;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+public class LatencyHistogramTest {
+    @Test
+    public void testPercentilesAreWithinTheBucketPrecision() {
+        var histogram = new LatencyHistogram();
+        for (long nanos = 1; nanos <= 1_000_000; nanos++) {
+            histogram.record(nanos * 1_000);
+        }
+        assertEquals(1_000_000, histogram.count());
+        assertEquals(1_000_000_000L, histogram.max());
+        for (double percentile : new double[] {1, 50, 99, 99.9}) {
+            long expected = (long) (percentile * 10_000) * 1_000;
+            long actual = histogram.percentile(percentile);
+            assertTrue(actual >= expected && actual < expected * 1.02, "p%s was %d".formatted(percentile, actual));
+        }
+        assertEquals(1_000_000_000L, histogram.percentile(100));
+    }
+
+    @Test
+    public void testBucketsCoverEveryValue() {
+        long previousHighest = -1;
+        for (int bucket = 0; bucket <= LatencyHistogram.bucketOf(Long.MAX_VALUE); bucket++) {
+            long highest = LatencyHistogram.highestValueOf(bucket);
+            assertEquals(bucket, LatencyHistogram.bucketOf(previousHighest + 1));
+            assertEquals(bucket, LatencyHistogram.bucketOf(highest));
+            previousHighest = highest;
+        }
+        assertEquals(Long.MAX_VALUE, previousHighest);
+    }
+}
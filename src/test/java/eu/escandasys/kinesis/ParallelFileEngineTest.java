@@ -0,0 +1,84 @@
+package eu.escandasys.kinesis;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.Optional;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Decodes a recorded file on several threads, and checks that the output is the same as decoding it in order.
+ */
+public class ParallelFileEngineTest {
+    private static final EngineOptions EVERY_FRAME =
+            new EngineOptions(Optional.empty(), false, Optional.empty(), ReconnectOptions.none(), Optional.empty());
+
+    @TempDir
+    Path directory;
+
+    @Test
+    public void testParallelOutputMatchesSequentialOutput() throws IOException {
+        var path = copyRecorded();
+        assertTrue(MkvChunkScanner.scan(path, 1).size() > 1);
+        var expected = pipeSequentially(path);
+
+        var pool = new ForkJoinPool(4);
+        try {
+            var parallel = new ByteArrayOutputStream();
+            new ParallelFileEngine(pool, EVERY_FRAME, 1, ParallelFileEngine.DEFAULT_QUEUED_FRAMES_PER_CHUNK)
+                    .pipe(path, parallel, FrameRecordWriter.RecordListener.NONE);
+            assertTrue(expected.length > 0);
+            assertArrayEquals(expected, parallel.toByteArray());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testChunkOfMoreFramesThanItsQueueHoldsIsWrittenWhole() throws IOException {
+        var path = copyRecorded();
+        assertEquals(1, MkvChunkScanner.scan(path, Long.MAX_VALUE).size());
+        var expected = pipeSequentially(path);
+
+        // A single thread decodes the single chunk, handing its frames over one at a time.
+        var pool = new ForkJoinPool(1);
+        try {
+            var parallel = new ByteArrayOutputStream();
+            var records = new AtomicInteger();
+            new ParallelFileEngine(pool, EVERY_FRAME, Long.MAX_VALUE, 1)
+                    .pipe(path, parallel, (frameRecord, offset) -> records.incrementAndGet());
+            assertTrue(records.get() > 2, "only %d frames".formatted(records.get()));
+            assertArrayEquals(expected, parallel.toByteArray());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private Path copyRecorded() throws IOException {
+        var path = directory.resolve("recorded.mkv");
+        try (InputStream is = ParallelFileEngineTest.class.getResourceAsStream("/recorded.mkv")) {
+            Files.copy(is, path);
+        }
+        return path;
+    }
+
+    private static byte[] pipeSequentially(Path path) throws IOException {
+        var repository = new MkvFileRepository(path);
+        var expected = new ByteArrayOutputStream();
+        new StreamingEngine(repository, Instant::now, EVERY_FRAME).pipe(ChronoUnit.MILLENNIA.getDuration(),
+                repository.streamInfo().streamName(), repository.streamInfo().streamARN(), null, expected);
+        return expected.toByteArray();
+    }
+}
@@ -0,0 +1,117 @@
+package eu.escandasys.kinesis;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import com.amazonaws.kinesisvideo.parser.ebml.InputStreamParserByteSource;
+import com.amazonaws.kinesisvideo.parser.mkv.MkvElement;
+import com.amazonaws.kinesisvideo.parser.mkv.StreamingMkvReader;
+
+import software.amazon.awssdk.services.kinesisvideo.model.StreamInfo;
+import software.amazon.awssdk.services.kinesisvideomedia.model.StartSelector;
+import software.amazon.awssdk.services.kinesisvideomedia.model.StartSelectorType;
+
+/**
+ * Pipes a recorded stream whose first GetMedia response fails halfway, and checks that the output is the same as
+ * without the failure.
+ */
+public class StreamingEngineResumeTest {
+    private static final String STREAM_NAME = "recorded";
+    private static final StartSelector START_SELECTOR = StartSelector.builder()
+            .startSelectorType(StartSelectorType.NOW)
+            .build();
+
+    private static byte[] recordedMkv;
+    private static int recordedElements;
+
+    @BeforeAll
+    public static void loadRecording() throws IOException {
+        try (InputStream is = StreamingEngineResumeTest.class.getResourceAsStream("/recorded.mkv")) {
+            recordedMkv = is.readAllBytes();
+        }
+        var reader = StreamingMkvReader.createDefault(new InputStreamParserByteSource(new ByteArrayInputStream(recordedMkv)));
+        while (reader.mightHaveNext()) {
+            if (reader.nextIfAvailable().isPresent()) {
+                recordedElements++;
+            }
+        }
+    }
+
+    @Test
+    public void testResumesFromContinuationTokenWithoutDuplicateFrames() throws IOException {
+        var uninterrupted = new RecordedRepository(Integer.MAX_VALUE);
+        var expected = pipe(uninterrupted, ReconnectOptions.none());
+
+        // The second response replays the whole recording, as a resumed GetMedia call replays the fragment that
+        // was cut short.
+        var interrupted = new RecordedRepository(recordedElements / 2, Integer.MAX_VALUE);
+        var resumed = pipe(interrupted, new ReconnectOptions(2, Duration.ZERO, Duration.ZERO));
+
+        assertTrue(expected.length > 0);
+        assertArrayEquals(expected, resumed);
+        assertEquals(StartSelectorType.NOW, interrupted.selectors.get(0).startSelectorType());
+        assertEquals(StartSelectorType.CONTINUATION_TOKEN, interrupted.selectors.get(1).startSelectorType());
+        // Two reconnects in a row that bring no new frames end the pipe.
+        assertEquals(4, interrupted.selectors.size());
+    }
+
+    private static byte[] pipe(KinesisRepository repository, ReconnectOptions reconnect) throws IOException {
+        var options = new EngineOptions(Optional.empty(), false, Optional.empty(), reconnect, Optional.empty());
+        var engine = new StreamingEngine(repository, Instant::now, options);
+        var os = new ByteArrayOutputStream();
+        engine.pipe(Duration.ofMinutes(1), STREAM_NAME, STREAM_NAME, START_SELECTOR, os);
+        return os.toByteArray();
+    }
+
+    /**
+     * Serves the recording once per given element count, failing after that many elements, then empty responses.
+     */
+    private static class RecordedRepository implements KinesisRepository {
+        private final int[] elementsBeforeFailure;
+        private final List<StartSelector> selectors = new ArrayList<>();
+
+        RecordedRepository(int... elementsBeforeFailure) {
+            this.elementsBeforeFailure = elementsBeforeFailure;
+        }
+
+        @Override
+        public Collection<StreamInfo> streamInfos() {
+            return List.of();
+        }
+
+        @Override
+        public ClosingIterator<MkvElement> getMedia(StartSelector startSelector, String streamName, String streamARN,
+                boolean keyFramesOnly) {
+            int call = selectors.size();
+            selectors.add(startSelector);
+            if (call >= elementsBeforeFailure.length) {
+                return ClosingIterator.of(() -> false, Optional::empty, () -> { });
+            }
+            var reader = StreamingMkvReader.createDefault(new InputStreamParserByteSource(new ByteArrayInputStream(recordedMkv)));
+            int[] remaining = {elementsBeforeFailure[call]};
+            return ClosingIterator.of(reader::mightHaveNext, () -> {
+                var element = reader.nextIfAvailable();
+                if (element.isPresent() && remaining[0]-- == 0) {
+                    throw new UncheckedIOException(new IOException("Connection reset"));
+                }
+                return element;
+            }, () -> { });
+        }
+    }
+}
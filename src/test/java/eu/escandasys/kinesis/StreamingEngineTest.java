@@ -38,8 +38,8 @@ public class StreamingEngineTest {
 
         String streamNameStr = "esys-casa-hall";
 
-        try (var httpClient = ApacheHttpClient.create()) {
-            var repository = new DefaultKinesisRepository(httpClient, timestampSupplier);
+        try (var httpClient = ApacheHttpClient.create();
+             var repository = new DefaultKinesisRepository(httpClient, timestampSupplier)) {
             var engine = new StreamingEngine(repository, timestampSupplier);
             var streamOpt = engine.findStreamInfo(streamNameStr, null);
             assertNotEquals(false, streamOpt.isPresent(), "cannot find stream in remote");